@@ -0,0 +1,247 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AdmissionControl {
+    /**
+     * Class:   AdmissionControl
+     * Purpose: Decides what the Server will take on, so one abusive host cannot degrade everyone else. Checks are
+     *          made as early and as cheaply as possible:
+     *              accept      a global cap on open connections, and per host a cap on open connections and a
+     *                          token bucket for new ones. Turned away connections get a BUSY frame and are closed.
+     *              each frame  a token bucket per host, checked on the frame header before any field is decoded.
+     *                          A frame over the limit is answered with BUSY, and the ServerLoop stops reading from
+     *                          the connection until the bucket refills, so the flood backs up in the client's
+     *                          socket instead of in the Server.
+     *              per user    a token bucket per username for HELLO, RENEW, CONNECT, STORE, SAY and JOIN, checked once the
+     *                          username field has been read.
+     *          State for a host or user is only kept while it has connections open or its bucket is not yet full.
+     * Usage:   Created by the Server with the default limits. Change them with the setters, or turn them off with
+     *          setEnabled() for trusted single-host setups such as benchmarks. Hosts given to exempt() are never limited.
+     */
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 65536;  // Open connections across every host
+    public static final int DEFAULT_HOST_CONNECTIONS = 1024;  // Open connections from one host
+    public static final double DEFAULT_HOST_CONNECT_RATE = 200;   // New connections per second from one host
+    public static final double DEFAULT_HOST_FRAME_RATE = 20000;   // Frames per second from one host
+    public static final double DEFAULT_USER_RATE = 50;            // HELLO, RENEW, CONNECT, STORE, SAY and JOIN per second by one user
+    private static final double BURST_SECONDS = 2;     // Each bucket holds this many seconds' worth of tokens.
+    public static final long RETRY_AFTER = 100;        // Retry hint sent with BUSY, in ms.
+
+    private final ConcurrentHashMap<InetAddress, Host> hosts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private final Set<InetAddress> exempt = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean enabled = true;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int hostConnections = DEFAULT_HOST_CONNECTIONS;
+    private volatile long connectInterval = interval(DEFAULT_HOST_CONNECT_RATE);
+    private volatile long frameInterval = interval(DEFAULT_HOST_FRAME_RATE);
+    private volatile long userInterval = interval(DEFAULT_USER_RATE);
+    private final LongAdder rejectedConnections;
+    private final LongAdder rejectedHostConnections;
+    private final LongAdder rejectedConnectRate;
+    private final LongAdder rejectedFrameRate;
+    private final LongAdder rejectedUserRate;
+
+    // Constructor accepts the Metrics the rejection counters are kept in.
+    public AdmissionControl(Metrics metrics) {
+        rejectedConnections = metrics.counter("server_rejected{reason=\"connections\"}");
+        rejectedHostConnections = metrics.counter("server_rejected{reason=\"host_connections\"}");
+        rejectedConnectRate = metrics.counter("server_rejected{reason=\"connect_rate\"}");
+        rejectedFrameRate = metrics.counter("server_rejected{reason=\"frame_rate\"}");
+        rejectedUserRate = metrics.counter("server_rejected{reason=\"user_rate\"}");
+        metrics.gauge("server_admission_hosts", hosts::size);
+        metrics.gauge("server_admission_users", users::size);
+    }
+
+    /**
+     * Parse limits written as a comma separated list of name=value pairs, e.g. "host-rate=5000,user-rate=20",
+     * or "off" to turn admission control off. Names are connections, host-connections, connect-rate, host-rate
+     * and user-rate.
+     */
+    public void configure(String limits) {
+        if (limits.equals("off")) {
+            setEnabled(false);
+            return;
+        }
+        for (String limit : limits.split(",")) {
+            String[] pair = limit.trim().split("=");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Limit must be name=value: " + limit);
+            double value = Double.parseDouble(pair[1]);
+            switch (pair[0]) {
+                case "connections": setMaxConnections((int) value); break;
+                case "host-connections": setHostConnections((int) value); break;
+                case "connect-rate": setHostConnectRate(value); break;
+                case "host-rate": setHostFrameRate(value); break;
+                case "user-rate": setUserRate(value); break;
+                default: throw new IllegalArgumentException("Unknown limit " + pair[0]);
+            }
+        }
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setHostConnections(int hostConnections) {
+        this.hostConnections = hostConnections;
+    }
+
+    // Set how many new connections per second one host may open, with bursts of twice as many.
+    public void setHostConnectRate(double perSecond) {
+        connectInterval = interval(perSecond);
+    }
+
+    // Set how many frames per second one host may send, over all of its connections.
+    public void setHostFrameRate(double perSecond) {
+        frameInterval = interval(perSecond);
+    }
+
+    // Set how many HELLO, RENEW, CONNECT, STORE, SAY and JOIN requests per second one user may make.
+    public void setUserRate(double perSecond) {
+        userInterval = interval(perSecond);
+    }
+
+    // Turn limiting on or off. Connections are counted either way.
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Never limit connections from the given address, e.g. the other Servers of a cluster.
+    public void exempt(InetAddress address) {
+        exempt.add(address);
+    }
+
+    /**
+     * Decide whether to take on a connection just accepted from the given address. Called on the accepting thread.
+     * Returns the Host to pass to the connection, or null if it must be turned away.
+     */
+    public Host admit(InetAddress address) {
+        if (open.incrementAndGet() > maxConnections && enabled) {
+            open.decrementAndGet();
+            rejectedConnections.increment();
+            return null;
+        }
+        boolean limited = enabled && !exempt.contains(address);
+        Host[] admitted = new Host[1];
+        hosts.compute(address, (key, host) -> { // compute() keeps sweep() from dropping the host while it is counted.
+            if (host == null)
+                host = new Host();
+            if (limited && host.connections.get() >= hostConnections)
+                rejectedHostConnections.increment();
+            else if (limited && !host.connects.take(connectInterval))
+                rejectedConnectRate.increment();
+            else {
+                host.connections.incrementAndGet();
+                host.limited = limited;
+                admitted[0] = host;
+            }
+            return host;
+        });
+        if (admitted[0] == null)
+            open.decrementAndGet();
+        return admitted[0];
+    }
+
+    // Release what admit() took for a connection that has closed.
+    public void release(Host host) {
+        host.connections.decrementAndGet();
+        open.decrementAndGet();
+    }
+
+    /**
+     * Take a token for one frame from a host. Returns 0 if the frame may be handled, otherwise how many ns until
+     * the bucket has a token again. Safe to call from any thread; a single compare-and-set when not limited.
+     */
+    public long takeFrame(Host host) {
+        if (!host.limited || !enabled)
+            return 0;
+        long wait = host.frames.delay(frameInterval);
+        if (wait > 0)
+            rejectedFrameRate.increment();
+        return wait;
+    }
+
+    // Take a token for one request by a user. Returns false if they are over their rate.
+    public boolean takeUser(String username) {
+        if (!enabled)
+            return true;
+        TokenBucket bucket = users.computeIfAbsent(username, name -> new TokenBucket());
+        if (bucket.take(userInterval))
+            return true;
+        rejectedUserRate.increment();
+        return false;
+    }
+
+    // Forget hosts and users whose buckets have refilled and who have nothing open. Run now and then by the Server.
+    public void sweep() {
+        long now = System.nanoTime();
+        users.values().removeIf(bucket -> bucket.isFull(now));
+        for (InetAddress address : hosts.keySet())
+            hosts.computeIfPresent(address, (key, host) ->
+                host.connections.get() == 0 && host.connects.isFull(now) && host.frames.isFull(now) ? null : host);
+    }
+
+    // Helper method to turn a rate into the ns between tokens. A rate of 0 or less means no limit.
+    private static long interval(double perSecond) {
+        return perSecond <= 0 ? 0 : (long) (1e9 / perSecond);
+    }
+
+    /**
+     * Class:   Host
+     * Purpose: What is known about one remote address. Shared by every connection from it.
+     */
+    public static class Host {
+        private final AtomicInteger connections = new AtomicInteger();
+        private final TokenBucket connects = new TokenBucket();
+        private final TokenBucket frames = new TokenBucket();
+        private volatile boolean limited;
+    }
+
+    /**
+     * Class:   TokenBucket
+     * Purpose: Lock-free token bucket holding BURST_SECONDS worth of tokens. Kept as the time by which every token
+     *          taken will have been replaced (the "theoretical arrival time" of the generic cell rate algorithm), so
+     *          taking a token is one compare-and-set and refilling needs no timer. The rate is passed in on each
+     *          call, so changing a limit applies to existing buckets at once.
+     */
+    static class TokenBucket {
+        private final AtomicLong paidUntil = new AtomicLong(System.nanoTime()); // When every token taken so far will have been replaced
+
+        // Take a token if there is one. Returns True if taken.
+        boolean take(long interval) {
+            return delay(interval) == 0;
+        }
+
+        // Take a token if there is one. Returns 0 if taken, otherwise ns until there is one.
+        long delay(long interval) {
+            if (interval == 0)
+                return 0;
+            long burst = (long) (BURST_SECONDS * 1e9);
+            while (true) {
+                long now = System.nanoTime();
+                long current = paidUntil.get();
+                long next = Math.max(current, now) + interval;
+                if (next - now > burst)
+                    return next - now - burst;
+                if (paidUntil.compareAndSet(current, next))
+                    return 0;
+            }
+        }
+
+        // Returns True if the bucket has refilled completely.
+        boolean isFull(long now) {
+            return paidUntil.get() - now <= 0;
+        }
+    }
+}
@@ -0,0 +1,733 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ *
+ * Description: Loopback benchmarks for the Server and Client. Starts a Server in this process on a free port,
+ *              runs the chosen benchmarks against it, and prints rates and latency percentiles to stdout.
+ *                  $ javac *.java
+ *                  $ java Benchmark [all|handshake|pairing|throughput|window|roundtrip|restore|compression|admission|tls] [seconds per run]
+ *              Every run is preceded by a warmup of the same length whose results are thrown away.
+ *              The handshake, pairing and throughput runs are also JMH benchmarks, with JMH's forking, warmup and
+ *              blackholes, in jmh/benchmarks/ChatBenchmarks.java:
+ *                  $ mvn -P jmh package && java -jar target/benchmarks.jar
+ */
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public class Benchmark {
+    /**
+     * Class:   Benchmark
+     * Purpose: Measure the hot paths of the chat program over loopback so regressions show up before a release:
+     *              handshake   HELLO/CONNECT/QUIT commands per second handled by the Server, and command latency
+     *              pairing     end-to-end time for two users to get a connected session with openSession()
+     *              throughput  messages and bytes per second over one session, and one-way latency, per message size
+     *              window      messages per second when the session's own window is the only flow control, per
+     *                          window size, and how long delivery receipts take to come back
+     *              roundtrip   sendMessage()/receiveMessage() round-trip latency with the blocking API
+     *              restore     time for a restarted Registry to answer lookups from a PresenceStore of RESTORE_USERS
+     *              compression bytes on the wire and CPU time per message in each Compression mode, for log lines and chat
+     *              admission   command latency for well-behaved users while another host floods the Server, with
+     *                          admission control off and on. The flood comes from 127.0.0.2 so it counts as its own host.
+     *              tls         control connections opened per second, each making one request, in plain TCP and over
+     *                          TLS with full and with resumed handshakes, and session throughput in plain TCP and over
+     *                          TLS. Runs against a second Server and ChatEngine using a self-signed certificate.
+     * Usage:   Run from the command line, see the description above.
+     */
+
+    private static final int[] MESSAGE_SIZES = { 16, 256, 4096, 65536 };
+    private static final int[] SESSION_WINDOWS = { 16 * 1024, 256 * 1024, Protocol.MESSAGE_WINDOW, 8 * 1024 * 1024 };
+    private static final int RECEIPT_EVERY = 1000;     // Messages between two sent with a receipt in the window benchmark.
+    private static final int HANDSHAKE_CHANNELS = 16;  // Control connections issuing commands at once.
+    private static final int HANDSHAKE_BATCH = 32;     // HELLO/CONNECT/QUIT rounds each connection keeps in flight.
+    private static final int PAIRING_THREADS = 8;      // Pairs of users pairing up at once.
+    private static final long WINDOW_BYTES = 1 << 20;  // Bytes a sender may have in flight before waiting for the receiver.
+    private static final int RESTORE_USERS = 1000000;  // Registrations kept on disk for the restore benchmark.
+    private static final int SAMPLE_MESSAGES = 4096;   // Distinct messages cycled through by the compression benchmark.
+    private static final int POLITE_USERS = 8;         // Well-behaved users in the admission benchmark, each on its own connection.
+    private static final long POLITE_INTERVAL = 50;    // ms between each polite user's HELLO/CONNECT/QUIT rounds.
+    private static final int FLOOD_CONNECTIONS = 4;    // Connections pipelining HELLOs as fast as the Server takes them.
+    private static final String FLOOD_HOST = "127.0.0.2";
+    private static final int[] TLS_MESSAGE_SIZES = { 256, 65536 };
+    private static final String TLS_PASSWORD = "benchmark";
+
+    private static Server server;
+    private static ChatEngine engine;
+    private static int userIds;
+
+    // Main method. Parses the arguments and runs the chosen benchmarks.
+    public static void main(String[] args) throws Exception {
+        String which = args.length > 0 ? args[0] : "all";
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        server = new Server(Runtime.getRuntime().availableProcessors());
+        server.getAdmission().setEnabled(false); // Every benchmark user is on this host; only the admission run limits it.
+        server.start(0);
+        Thread acceptThread = new Thread(() -> {
+            try {
+                server.acceptLoop();
+            } catch (IOException e) {
+            }
+        }, "benchmark-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        engine = new ChatEngine(Runtime.getRuntime().availableProcessors());
+        System.out.println("Server on port " + server.getPort() + ", " + seconds + " s per run");
+        if (which.equals("all") || which.equals("handshake"))
+            handshake(seconds);
+        if (which.equals("all") || which.equals("pairing"))
+            pairing(seconds);
+        if (which.equals("all") || which.equals("throughput")) {
+            for (int size : MESSAGE_SIZES)
+                throughput(size, seconds);
+        }
+        if (which.equals("all") || which.equals("window")) {
+            for (int window : SESSION_WINDOWS)
+                window(window, seconds);
+        }
+        if (which.equals("all") || which.equals("roundtrip"))
+            roundTrip(seconds);
+        if (which.equals("all") || which.equals("restore"))
+            restore();
+        if (which.equals("all") || which.equals("compression")) {
+            for (String kind : new String[] { "log", "chat" }) {
+                for (int mode : new int[] { Compression.NONE, Compression.STREAM, Compression.DICTIONARY })
+                    compression(kind, mode, seconds);
+            }
+        }
+        if (which.equals("all") || which.equals("admission")) {
+            admission("quiet", false, true, seconds);
+            admission("flood", true, false, seconds);
+            admission("flood", true, true, seconds);
+        }
+        if (which.equals("all") || which.equals("tls"))
+            tls(seconds);
+        engine.close();
+        server.stop();
+    }
+
+    /**
+     * Handshake benchmark. Each control connection sends rounds of HELLO, CONNECT and QUIT for the same pair,
+     * so the Server registers, holds and cancels a request per round. Counts every command the Server answers.
+     */
+    private static void handshake(long seconds) throws Exception {
+        List<ControlChannel> channels = new ArrayList<>();
+        for (int i = 0; i < HANDSHAKE_CHANNELS; i++)
+            channels.add(new ControlChannel("localhost", server.getPort(), engine.nextLoop()));
+        LatencyHistogram latency = new LatencyHistogram();
+        for (boolean warmup : new boolean[] { true, false }) {
+            latency.reset();
+            AtomicLong commands = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> drivers = new ArrayList<>();
+            for (int i = 0; i < channels.size(); i++) {
+                ControlChannel channel = channels.get(i);
+                String user = "handshake" + i;
+                Thread driver = new Thread(() -> {
+                    List<CompletableFuture<ServerReply>> replies = new ArrayList<>();
+                    while (System.nanoTime() < deadline) {
+                        replies.clear();
+                        for (int round = 0; round < HANDSHAKE_BATCH; round++) {
+                            String other = "nobody" + round;
+                            replies.add(timed(channel.request(new FrameWriter(Protocol.HELLO).string(user).string("127.0.0.1").varint(1)), latency));
+                            replies.add(timed(channel.request(new FrameWriter(Protocol.CONNECT).string(user).string(other).varint(60000)), latency));
+                            replies.add(timed(channel.request(new FrameWriter(Protocol.QUIT).string(user).string(other)), latency));
+                        }
+                        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).join();
+                        commands.addAndGet(replies.size());
+                    }
+                });
+                drivers.add(driver);
+                driver.start();
+            }
+            long start = System.nanoTime();
+            for (Thread driver : drivers)
+                driver.join();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            if (!warmup) {
+                System.out.printf("handshake   %,.0f commands/s over %d connections%n", commands.get() / elapsed, channels.size());
+                System.out.println("            command latency us: " + latency.summary(1000));
+            }
+        }
+        for (ControlChannel channel : channels)
+            channel.close();
+    }
+
+    /**
+     * Pairing benchmark. Pairs of users repeatedly ask for each other with openSession() and close the session
+     * once both sides have it. Latency runs from the first request to both sides holding a connected session.
+     */
+    private static void pairing(long seconds) throws Exception {
+        List<Client[]> pairs = new ArrayList<>();
+        for (int i = 0; i < PAIRING_THREADS; i++)
+            pairs.add(new Client[] { newClient(), newClient() });
+        LatencyHistogram latency = new LatencyHistogram();
+        for (boolean warmup : new boolean[] { true, false }) {
+            latency.reset();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> drivers = new ArrayList<>();
+            for (Client[] pair : pairs) {
+                Thread driver = new Thread(() -> {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        CompletableFuture<ChatSession> a = pair[0].openSession(pair[1].getFromUser());
+                        CompletableFuture<ChatSession> b = pair[1].openSession(pair[0].getFromUser());
+                        try {
+                            ChatSession sessionA = a.get(30, TimeUnit.SECONDS);
+                            ChatSession sessionB = b.get(30, TimeUnit.SECONDS);
+                            latency.record(System.nanoTime() - start);
+                            sessionA.close();
+                            sessionB.close();
+                        } catch (Exception e) {
+                            break;
+                        }
+                    }
+                });
+                drivers.add(driver);
+                driver.start();
+            }
+            long start = System.nanoTime();
+            for (Thread driver : drivers)
+                driver.join();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            if (!warmup) {
+                System.out.printf("pairing     %,.0f sessions/s with %d pairs%n", latency.getCount() / elapsed, pairs.size());
+                System.out.println("            pairing latency us: " + latency.summary(1000));
+            }
+        }
+        for (Client[] pair : pairs) {
+            pair[0].disconnect();
+            pair[1].disconnect();
+        }
+    }
+
+    /**
+     * Throughput benchmark for one message size. One sender streams messages over a single session with
+     * sendAsync(), keeping at most WINDOW_BYTES unread. Each message starts with its send time, so the receiver
+     * can record one-way latency.
+     */
+    private static void throughput(int size, long seconds) throws Exception {
+        ChatSession[] session = openPair();
+        int window = (int) Math.min(4096, Math.max(16, WINDOW_BYTES / size));
+        Semaphore credits = new Semaphore(window);
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong received = new AtomicLong();
+        session[1].setMessageListener(new MessageListener() {
+            public void onMessage(String fromUser, String message) {
+                latency.record(System.nanoTime() - Long.parseLong(message.substring(0, message.indexOf(' '))));
+                received.incrementAndGet();
+                credits.release();
+            }
+
+            public void onClose(String otherUser) {
+                credits.release(window);
+            }
+        });
+        String padding = "x".repeat(size);
+        for (boolean warmup : new boolean[] { true, false }) {
+            latency.reset();
+            received.set(0);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < deadline) {
+                credits.acquire();
+                String stamp = System.nanoTime() + " ";
+                session[0].sendAsync(stamp + padding.substring(Math.min(size, stamp.length())));
+            }
+            credits.acquire(window); // Wait for the receiver to catch up.
+            credits.release(window);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            if (!warmup) {
+                System.out.printf("throughput  %6d B  %,12.0f msg/s  %,8.1f MB/s%n", size, received.get() / elapsed,
+                                  received.get() * (double) size / elapsed / (1 << 20));
+                System.out.println("            one-way latency us: " + latency.summary(1000));
+            }
+        }
+        closePair(session);
+    }
+
+    /**
+     * Window benchmark for one window size. One sender streams 256 byte messages with sendAsync() as fast as the
+     * session takes them, so the receiver's window is the only thing holding it back. Every RECEIPT_EVERY-th
+     * message is sent with sendWithReceipt(), and the time until its receipt completes is recorded.
+     */
+    private static void window(int window, long seconds) throws Exception {
+        Client a = newClient();
+        Client b = newClient();
+        b.setWindow(window);
+        CompletableFuture<ChatSession> sessionA = a.openSession(b.getFromUser());
+        CompletableFuture<ChatSession> sessionB = b.openSession(a.getFromUser());
+        ChatSession[] session = { sessionA.get(30, TimeUnit.SECONDS), sessionB.get(30, TimeUnit.SECONDS) };
+        AtomicLong received = new AtomicLong();
+        session[1].setMessageListener(new MessageListener() {
+            public void onMessage(String fromUser, String message) {
+                received.incrementAndGet();
+            }
+
+            public void onClose(String otherUser) {
+            }
+        });
+        String message = "x".repeat(256);
+        LatencyHistogram latency = new LatencyHistogram();
+        for (boolean warmup : new boolean[] { true, false }) {
+            latency.reset();
+            received.set(0);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            CompletableFuture<Boolean> last = null;
+            for (long sent = 1; System.nanoTime() < deadline; sent++) {
+                if (sent % RECEIPT_EVERY != 0) {
+                    session[0].sendAsync(message);
+                    continue;
+                }
+                long sentAt = System.nanoTime();
+                last = session[0].sendWithReceipt(message).whenComplete((processed, error) -> latency.record(System.nanoTime() - sentAt));
+            }
+            if (last != null)
+                last.join(); // Wait for the receiver to catch up.
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            if (!warmup) {
+                System.out.printf("window      %6d KB  %,12.0f msg/s  %,8.1f MB/s%n", window / 1024, received.get() / elapsed,
+                                  received.get() * 256.0 / elapsed / (1 << 20));
+                System.out.println("            receipt latency us: " + latency.summary(1000));
+            }
+        }
+        closePair(session);
+    }
+
+    /**
+     * Round-trip benchmark. One thread sends a 64 byte message with the blocking sendMessage(), the other side
+     * echoes it back, and the time until receiveMessage() returns the echo is recorded.
+     */
+    private static void roundTrip(long seconds) throws Exception {
+        Client a = newClient();
+        Client b = newClient();
+        CompletableFuture<Boolean> accepted = CompletableFuture.supplyAsync(() -> b.establishSession(a.getFromUser()));
+        if (!a.establishSession(b.getFromUser()) || !accepted.get())
+            throw new IOException("Could not pair benchmark users");
+        Thread echo = new Thread(() -> {
+            String message;
+            while (!(message = b.receiveMessage()).isEmpty())
+                b.sendMessage(message);
+        });
+        echo.setDaemon(true);
+        echo.start();
+        String message = "x".repeat(64);
+        LatencyHistogram latency = new LatencyHistogram();
+        for (boolean warmup : new boolean[] { true, false }) {
+            latency.reset();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                a.sendMessage(message);
+                a.receiveMessage();
+                latency.record(System.nanoTime() - start);
+            }
+            if (!warmup) {
+                System.out.printf("roundtrip   %,.0f round trips/s%n", latency.getCount() / (double) seconds);
+                System.out.println("            round-trip latency us: " + latency.summary(1000));
+            }
+        }
+        a.endSession();
+        b.endSession();
+        a.disconnect();
+        b.disconnect();
+    }
+
+    /**
+     * Restore benchmark. Registers RESTORE_USERS users in a Registry kept in a temporary directory, compacts the
+     * log into a snapshot, and logs a few more changes. Then opens the directory again like a restarted Server,
+     * and times how long until the first lookup is answered, random lookups while the snapshot is still loading,
+     * and loading every registration.
+     */
+    private static void restore() throws Exception {
+        Path dir = Files.createTempDirectory("presence");
+        PresenceStore store = new PresenceStore(dir);
+        Registry registry = new Registry();
+        registry.restore(store);
+        long start = System.nanoTime();
+        for (int i = 0; i < RESTORE_USERS; i++)
+            registry.register("user" + i, "10." + (i >>> 16 & 255) + "." + (i >>> 8 & 255) + "." + (i & 255), 1024 + (i & 0x7FFF), null);
+        store.compact(registry);
+        for (int i = 0; i < 1000; i++)
+            registry.register("late" + i, "late-host.example", 2000, null); // Only in the log, not the snapshot.
+        store.close();
+        System.out.printf("restore     wrote %,d users in %.0f ms, snapshot %,d KB%n", RESTORE_USERS, (System.nanoTime() - start) / 1e6,
+                          Files.size(dir.resolve("presence.snapshot")) / 1024);
+
+        start = System.nanoTime();
+        store = new PresenceStore(dir);
+        registry = new Registry();
+        registry.restore(store);
+        boolean found = registry.lookup("user" + (RESTORE_USERS - 1)) != null && registry.lookup("late999") != null;
+        System.out.printf("            first lookup answered %s after %.2f ms%n", found, (System.nanoTime() - start) / 1e6);
+        LatencyHistogram latency = new LatencyHistogram();
+        Random random = new Random(1);
+        int misses = 0;
+        while (!registry.isRestored() && latency.getCount() < 1000000) {
+            long lookupStart = System.nanoTime();
+            if (registry.lookup("user" + random.nextInt(RESTORE_USERS)) == null)
+                misses++;
+            latency.record(System.nanoTime() - lookupStart);
+        }
+        while (!registry.isRestored())
+            Thread.sleep(1);
+        System.out.printf("            all %,d users loaded after %.0f ms, %d lookups missed%n", registry.registeredCount(),
+                          (System.nanoTime() - start) / 1e6, misses);
+        System.out.println("            lookup latency while loading us: " + latency.summary(1000));
+        store.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Compression benchmark for one kind of message and one mode. Streams sample messages over a session as fast
+     * as the receiver keeps up, like the throughput benchmark, and reports bytes written to the socket and CPU time
+     * used by the whole process per message, so the bandwidth saved can be weighed against the CPU it costs.
+     */
+    private static void compression(String kind, int mode, long seconds) throws Exception {
+        String[] samples = kind.equals("log") ? logLines() : chatLines();
+        ChatSession[] session = openPair(mode);
+        int window = 1024;
+        Semaphore credits = new Semaphore(window);
+        AtomicLong received = new AtomicLong();
+        session[1].setMessageListener(new MessageListener() {
+            public void onMessage(String fromUser, String message) {
+                received.incrementAndGet();
+                credits.release();
+            }
+
+            public void onClose(String otherUser) {
+                credits.release(window);
+            }
+        });
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long plainBytes = 0;
+        for (String sample : samples)
+            plainBytes += FrameWriter.utf8Length(sample);
+        for (boolean warmup : new boolean[] { true, false }) {
+            received.set(0);
+            long wireStart = engine.getMetrics().counter("client_bytes_sent").sum();
+            long cpuStart = os.getProcessCpuTime();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            long sent = 0;
+            while (System.nanoTime() < deadline) {
+                credits.acquire();
+                session[0].sendAsync(samples[(int) (sent++ % samples.length)]);
+            }
+            credits.acquire(window); // Wait for the receiver to catch up.
+            credits.release(window);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            double wire = (engine.getMetrics().counter("client_bytes_sent").sum() - wireStart) / (double) sent;
+            if (!warmup) {
+                System.out.printf("compression %-4s %-10s %,10.0f msg/s  %6.1f B/msg on the wire (%5.1f%% of %.1f B)  %6.2f us CPU/msg%n",
+                                  kind, mode == Compression.NONE ? "none" : mode == Compression.STREAM ? "stream" : "dictionary",
+                                  received.get() / elapsed, wire, 100 * wire * samples.length / plainBytes,
+                                  plainBytes / (double) samples.length, (os.getProcessCpuTime() - cpuStart) / 1e3 / sent);
+            }
+        }
+        closePair(session);
+    }
+
+    // Helper method to make log lines like a busy service writes: the same few shapes with changing numbers.
+    private static String[] logLines() {
+        String[] levels = { "INFO ", "INFO ", "INFO ", "DEBUG", "WARN ", "ERROR" };
+        String[] services = { "OrderService", "PaymentGateway", "InventorySync", "SessionCache" };
+        Random random = new Random(1);
+        String[] lines = new String[SAMPLE_MESSAGES];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = String.format("2022-04-%02dT%02d:%02d:%02d.%03dZ %s [worker-%d] %s - processed request id=%d user=%d status=%s duration=%dms",
+                                     1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+                                     levels[random.nextInt(levels.length)], random.nextInt(16), services[random.nextInt(services.length)],
+                                     random.nextInt(1000000), random.nextInt(50000), random.nextInt(10) == 0 ? "FAILED" : "OK", random.nextInt(500));
+        }
+        return lines;
+    }
+
+    // Helper method to make short chat lines from a small vocabulary.
+    private static String[] chatLines() {
+        String[] words = { "hi", "hey", "are", "you", "there", "what", "time", "is", "the", "meeting", "today", "tomorrow", "sure",
+                           "thanks", "see", "later", "lol", "that", "sounds", "good", "can", "we", "move", "it", "to", "I'm", "running",
+                           "late", "ok", "no", "problem", "did", "get", "my", "message", "about", "project", "deadline" };
+        Random random = new Random(1);
+        String[] lines = new String[SAMPLE_MESSAGES];
+        for (int i = 0; i < lines.length; i++) {
+            StringBuilder line = new StringBuilder();
+            int count = 12 + random.nextInt(12);
+            for (int word = 0; word < count; word++)
+                line.append(word == 0 ? "" : " ").append(words[random.nextInt(words.length)]);
+            lines[i] = line.toString();
+        }
+        return lines;
+    }
+
+    /**
+     * Admission benchmark. POLITE_USERS users each make a HELLO/CONNECT/QUIT round every POLITE_INTERVAL ms, well
+     * inside the default limits, while FLOOD_CONNECTIONS connections from another loopback address pipeline HELLOs
+     * for random users and another thread opens and drops connections as fast as it can. Reports the polite
+     * users' command latency and how much of the flood the Server handled and turned away.
+     */
+    private static void admission(String label, boolean flood, boolean limits, long seconds) throws Exception {
+        server.getAdmission().setEnabled(limits);
+        List<ControlChannel> channels = new ArrayList<>();
+        for (int i = 0; i < POLITE_USERS; i++)
+            channels.add(new ControlChannel("localhost", server.getPort(), engine.nextLoop()));
+        AtomicBoolean flooding = new AtomicBoolean(flood);
+        List<Thread> flooders = new ArrayList<>();
+        if (flood) {
+            for (int i = 0; i < FLOOD_CONNECTIONS; i++)
+                flooders.addAll(floodConnection(i, flooding));
+            flooders.add(floodConnects(flooding));
+        }
+        LatencyHistogram latency = new LatencyHistogram();
+        long busy = 0;
+        Map<String, Long> before = server.getMetrics().getCounters();
+        for (boolean warmup : new boolean[] { true, false }) {
+            latency.reset();
+            busy = 0;
+            before = server.getMetrics().getCounters();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < deadline) {
+                long roundStart = System.nanoTime();
+                List<CompletableFuture<ServerReply>> replies = new ArrayList<>();
+                for (int i = 0; i < channels.size(); i++) {
+                    ControlChannel channel = channels.get(i);
+                    String user = "polite" + i;
+                    replies.add(timed(channel.request(new FrameWriter(Protocol.HELLO).string(user).string("127.0.0.1").varint(1)), latency));
+                    replies.add(timed(channel.request(new FrameWriter(Protocol.CONNECT).string(user).string("nobody").varint(60000)), latency));
+                    replies.add(timed(channel.request(new FrameWriter(Protocol.QUIT).string(user).string("nobody")), latency));
+                }
+                for (CompletableFuture<ServerReply> reply : replies) {
+                    if (reply.get(30, TimeUnit.SECONDS).getOpcode() == Protocol.BUSY)
+                        busy++;
+                }
+                long sleep = TimeUnit.MILLISECONDS.toNanos(POLITE_INTERVAL) - (System.nanoTime() - roundStart);
+                if (sleep > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+        Map<String, Long> after = server.getMetrics().getCounters();
+        flooding.set(false);
+        for (Thread flooder : flooders)
+            flooder.join();
+        for (ControlChannel channel : channels)
+            channel.close();
+        long rejected = 0;
+        for (Map.Entry<String, Long> counter : after.entrySet()) {
+            if (counter.getKey().startsWith("server_rejected"))
+                rejected += counter.getValue() - before.getOrDefault(counter.getKey(), 0L);
+        }
+        System.out.printf("admission   %-5s limits %-3s  polite commands answered BUSY: %d%n", label, limits ? "on" : "off", busy);
+        System.out.println("            polite command latency us: " + latency.summary(1000));
+        System.out.printf("            server handled %,d frames/s, turned away %,d requests and connections/s%n",
+                          (after.get("server_frames_received") - before.get("server_frames_received")) / seconds, rejected / seconds);
+        server.getAdmission().setEnabled(false);
+    }
+
+    /**
+     * TLS benchmark. Makes a self-signed certificate for localhost with keytool, in a temporary key store, and starts
+     * a second Server and ChatEngine that speak only TLS with it. Opens control connections one after another, each
+     * making one HELLO request and closing, against the plain Server and against the TLS Server with resumption off
+     * and on. Then runs the throughput benchmark over sessions between users of each.
+     */
+    private static void tls(long seconds) throws Exception {
+        Path dir = Files.createTempDirectory("tls");
+        Path keyStore = dir.resolve("benchmark.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "benchmark", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", TLS_PASSWORD, "-keypass", TLS_PASSWORD)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (keytool.waitFor() != 0)
+            throw new IOException("keytool could not make a certificate");
+        TlsContext tls = TlsContext.load(keyStore, TLS_PASSWORD.toCharArray());
+        Server plainServer = server;
+        ChatEngine plainEngine = engine;
+        Server tlsServer = new Server(Runtime.getRuntime().availableProcessors());
+        tlsServer.getAdmission().setEnabled(false);
+        tlsServer.setTls(tls);
+        tlsServer.start(0);
+        Thread acceptThread = new Thread(() -> {
+            try {
+                tlsServer.acceptLoop();
+            } catch (IOException e) {
+            }
+        }, "benchmark-accept-tls");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        ChatEngine tlsEngine = new ChatEngine(Runtime.getRuntime().availableProcessors(), tls);
+        try {
+            connections("plain", plainServer.getPort(), plainEngine, null, seconds);
+            tls.setResumption(false);
+            connections("full", tlsServer.getPort(), tlsEngine, tls, seconds);
+            tls.setResumption(true);
+            connections("resumed", tlsServer.getPort(), tlsEngine, tls, seconds);
+            for (int size : TLS_MESSAGE_SIZES) {
+                System.out.println("tls         plain:");
+                throughput(size, seconds);
+                server = tlsServer; // The throughput benchmark opens its sessions on the current Server and engine.
+                engine = tlsEngine;
+                System.out.println("tls         over TLS:");
+                throughput(size, seconds);
+                server = plainServer;
+                engine = plainEngine;
+            }
+        } finally {
+            server = plainServer;
+            engine = plainEngine;
+            tlsEngine.close();
+            tlsServer.stop();
+            Files.delete(keyStore);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Helper method for the TLS benchmark. Opens control connections to the given port one at a time, each making
+     * one HELLO request before it closes, and reports how many were opened per second and the time each took.
+     */
+    private static void connections(String label, int port, ChatEngine engine, TlsContext tls, long seconds) throws Exception {
+        LatencyHistogram latency = new LatencyHistogram();
+        for (boolean warmup : new boolean[] { true, false }) {
+            latency.reset();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < deadline) {
+                long connectStart = System.nanoTime();
+                ControlChannel channel = new ControlChannel("localhost", port, engine.nextLoop(), tls);
+                channel.request(new FrameWriter(Protocol.HELLO).string("connections").string("127.0.0.1").varint(1)).get(30, TimeUnit.SECONDS);
+                channel.close();
+                latency.record(System.nanoTime() - connectStart);
+            }
+            if (!warmup) {
+                System.out.printf("tls         %-7s connections %,8.0f /s%n", label, latency.getCount() / ((System.nanoTime() - start) / 1e9));
+                System.out.println("            connect and first reply us: " + latency.summary(1000));
+            }
+        }
+    }
+
+    /**
+     * Helper method to start one flooding connection from FLOOD_HOST: a thread writing batches of pipelined HELLOs
+     * and a thread reading and throwing away the replies. Both stop once flooding is cleared.
+     */
+    private static List<Thread> floodConnection(int id, AtomicBoolean flooding) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.bind(new InetSocketAddress(FLOOD_HOST, 0));
+        channel.connect(new InetSocketAddress("localhost", server.getPort()));
+        ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+        Random random = new Random(id);
+        for (int requestId = 1; ; requestId++) {
+            ByteBuffer frame = new FrameWriter(Protocol.HELLO, requestId).string("flood" + random.nextInt(1000)).string(FLOOD_HOST).varint(1).toBuffer();
+            if (frame.remaining() > batch.remaining())
+                break;
+            batch.put(frame);
+        }
+        batch.flip();
+        Thread writer = new Thread(() -> {
+            try {
+                while (flooding.get()) {
+                    channel.write(batch.duplicate());
+                }
+            } catch (IOException e) {
+            }
+        }, "flood-writer-" + id);
+        Thread reader = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (flooding.get() || writer.isAlive()) {
+                    sink.clear();
+                    if (channel.read(sink) < 0)
+                        break;
+                }
+            } catch (IOException e) {
+            }
+        }, "flood-reader-" + id);
+        writer.start();
+        reader.start();
+        Thread closer = new Thread(() -> { // Closes the channel once flooding stops, which wakes the blocked writer and reader.
+            try {
+                while (flooding.get())
+                    Thread.sleep(10);
+                channel.close();
+                writer.join();
+                reader.join();
+            } catch (IOException | InterruptedException e) {
+            }
+        }, "flood-closer-" + id);
+        closer.start();
+        return List.of(closer);
+    }
+
+    // Helper method to start a thread that opens connections from FLOOD_HOST, says HELLO and hangs up, until flooding is cleared.
+    private static Thread floodConnects(AtomicBoolean flooding) {
+        ByteBuffer hello = new FrameWriter(Protocol.HELLO, 1).string("churn").string(FLOOD_HOST).varint(1).toBuffer();
+        Thread thread = new Thread(() -> {
+            while (flooding.get()) {
+                try (SocketChannel channel = SocketChannel.open()) {
+                    channel.bind(new InetSocketAddress(FLOOD_HOST, 0));
+                    channel.connect(new InetSocketAddress("localhost", server.getPort()));
+                    channel.write(hello.duplicate());
+                } catch (IOException e) {
+                }
+            }
+        }, "flood-connects");
+        thread.start();
+        return thread;
+    }
+
+    // Helper method to record the latency of a request once its reply arrives.
+    private static CompletableFuture<ServerReply> timed(CompletableFuture<ServerReply> reply, LatencyHistogram latency) {
+        long start = System.nanoTime();
+        return reply.whenComplete((result, error) -> latency.record(System.nanoTime() - start));
+    }
+
+    // Helper method to create a Client with a fresh username on the benchmark engine.
+    private static Client newClient() throws IOException {
+        Client client = new Client("bench" + (userIds++), "localhost", server.getPort(), engine);
+        if (!client.isConnected())
+            throw new IOException("Benchmark client could not reach the server");
+        return client;
+    }
+
+    // Helper method to open a session between two new users. Returns both ends.
+    private static ChatSession[] openPair() throws Exception {
+        return openPair(Compression.NONE);
+    }
+
+    // Helper method to open a session between two new users who compress in the given mode. Returns both ends.
+    private static ChatSession[] openPair(int compression) throws Exception {
+        Client a = newClient();
+        Client b = newClient();
+        a.setCompression(compression, Compression.DEFAULT_THRESHOLD, null);
+        b.setCompression(compression, Compression.DEFAULT_THRESHOLD, null);
+        CompletableFuture<ChatSession> sessionA = a.openSession(b.getFromUser());
+        CompletableFuture<ChatSession> sessionB = b.openSession(a.getFromUser());
+        return new ChatSession[] { sessionA.get(30, TimeUnit.SECONDS), sessionB.get(30, TimeUnit.SECONDS) };
+    }
+
+    // Helper method to close a pair opened by openPair() and disconnect both users.
+    private static void closePair(ChatSession[] session) {
+        for (ChatSession end : session) {
+            end.close();
+            end.getClient().disconnect();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.nio.ByteBuffer;
+
+public interface ByteSink {
+    /**
+     * Interface: ByteSink
+     * Purpose:   Receive raw bytes that follow a frame on a FramedConnection, such as the contents of a file.
+     * Usage:     Pass an implementation to FramedConnection.readRaw() from FrameHandler.onFrame(). Both methods are
+     *            called on the ClientEventLoop thread.
+     */
+
+    // Called with each run of bytes as it arrives. The buffer is only valid until the method returns.
+    void write(ByteBuffer bytes);
+
+    // Called once every byte has arrived. Not called if the connection closes first.
+    void end();
+}
@@ -10,8 +10,13 @@
  *                  $ java ChatApp 192.168.1.1:1600
  *              or if this entire package is combined into a .jar file:
  *                  $ java -jar ./Client.jar 192.169.1.1:1600
+ *              If the Server was started with --tls, add --tls here too, and name the certificates to trust
+ *              (and this user's own key, for sessions with other users) with the standard system properties:
+ *                  $ java -Djavax.net.ssl.trustStore=chat.p12 -Djavax.net.ssl.keyStore=chat.p12 \
+ *                         -Djavax.net.ssl.keyStorePassword=secret ChatApp 192.168.1.1:1600 --tls
  */
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.io.IOException;
 
 public class ChatApp {
@@ -27,10 +32,13 @@ public class ChatApp {
     private static String serverDomain = "localhost";
     private static int serverPort = 1600;
     private static Scanner kbIn;
+    private static TlsContext tls; // Set by --tls
 
     // Main method. Entry point into the application.
     public static void main(String[] args) throws IOException {
         /* Parse command line args (if any) */
+        if (args.length > 1 && args[1].equals("--tls"))
+            tls = TlsContext.getDefault();
         if (args.length > 0) {
             String[] arg1 = args[0].split(":");
             if (arg1.length > 0) {
@@ -50,6 +58,7 @@ public class ChatApp {
 
     // Chat application logic and flow. Returns true if everything goes well, false otherwise.
     private static boolean runChat() {
+        Client client = null;
         try {
             // Application Intro
             System.out.println(BANNER);
@@ -61,13 +70,24 @@ public class ChatApp {
             System.out.println(BANNER);
             System.out.println("Welcome " + username + "!");
 
-            Client client = new Client(username, serverDomain, serverPort); // Instantiate new Client object for this user
+            if (tls == null)
+                client = new Client(username, serverDomain, serverPort); // Instantiate new Client object for this user
+            else
+                client = new Client(username, serverDomain, serverPort, new ChatEngine(Runtime.getRuntime().availableProcessors(), tls));
             String otherUsername = "";
 
             if (!client.isConnected()) { // If the client could not contact server, return false.
                 System.out.println("There was an issue contacting the server. Please try again later.");
                 return false;
             }
+            client.setOfflineListener(new MessageListener() { // Print messages other users left while this user was away.
+                public void onMessage(String fromUser, String message) {
+                    System.out.println("\n\t[" + fromUser + ", while you were away] >>> " + message);
+                }
+
+                public void onClose(String otherUser) {
+                }
+            });
 
             // Main Chat Loop
             do {
@@ -85,11 +105,18 @@ public class ChatApp {
                 boolean sessionStatus = client.establishSession(otherUsername); // Use the Client object to establish a chat session.
                 
                 if (!sessionStatus) { // If unable to establish a session, go back to beginning of loop.
-                    System.out.println("Unable to establish session. " + otherUsername + " may not be online. Press enter to try again, or <q> to exit.");
+                    System.out.println("Unable to establish session. " + otherUsername + " may not be online.");
+                    System.out.println("Type a message to leave for " + otherUsername + ", press enter to try again, or <q> to exit.");
                     client.endSession();
                     String dummy = kbIn.nextLine();
                     if (isQuit(dummy))
                         break;
+                    if (!dummy.isEmpty()) { // Left with the server, which delivers it when the other user next signs in.
+                        if (client.leaveMessage(otherUsername, dummy).join())
+                            System.out.println("\tMessage left for " + otherUsername + ".");
+                        else
+                            System.out.println("\tThe server could not keep your message for " + otherUsername + ".");
+                    }
                     System.out.println(BANNER);
                     continue; 
                 }
@@ -97,27 +124,23 @@ public class ChatApp {
                 System.out.println(BANNER);
                 System.out.println("\tBeginning chat with " + otherUsername + "\n");
                 
-                /* Instantiate Send and Receive Threads for this Client object. */
-                SendThread sendThread = new SendThread(client, kbIn);
-                ReceiveThread receiveThread = new ReceiveThread(client);
-               
+                /* Print incoming messages as they arrive, and send keyboard input on a Send Thread. */
+                CompletableFuture<Void> sessionOver = new CompletableFuture<>(); // Completed by whichever side leaves first.
+                ReceiveListener receiver = new ReceiveListener(sessionOver);
+                client.setMessageListener(receiver);
+                client.setFileListener(receiver); // Files sent with "/file <path>" are saved under received/.
+                SendThread sendThread = new SendThread(client, kbIn, sessionOver);
                 sendThread.start();
-                receiveThread.start();
 
-                while (receiveThread.isAlive() && sendThread.isAlive()) {
-                    // Let the sender and reciever threads run. Don't do anything on main thread.
-                    Thread.sleep(200);
-                }
-                // Once finished, interrupt both Threads.
-                sendThread.interrupt();
-                receiveThread.interrupt();
+                sessionOver.join(); // Wait, without polling, until this user or the other user leaves.
+                sendThread.interrupt(); // If the other user left, SendThread exits on the next enter key.
                 try {
-                    Thread.sleep(200); // Allow threads to fully complete interrupt() call process.
+                    sendThread.join(); // Don't read the keyboard again until SendThread is done with it.
                 } catch (InterruptedException e) { // An error occured while attempting to exit the session.
                     System.out.println("There was an issue exiting the chatroom.");
                 }
-
-                System.in.skip(1); // Skip any leftover bytes from SendThread's Scanner.
+                client.setMessageListener(null);
+                client.setFileListener(null);
                 
                 System.out.println("\n\tExiting chatroom with " + otherUsername);
                 client.endSession(); // Client object will close involved sockets and streams.
@@ -130,6 +153,9 @@ public class ChatApp {
             // If something goes wrong, return false
             //System.out.println(e.getMessage());
             return false;
+        } finally {
+            if (client != null)
+                client.disconnect(); // Close the Client's connection to the server.
         }
     }
 
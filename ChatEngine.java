@@ -0,0 +1,178 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChatEngine implements FrameHandler {
+    /**
+     * Class:   ChatEngine
+     * Purpose: Shared I/O for any number of Clients in one process. Runs a small pool of ClientEventLoops that drive
+     *          every control and session connection, and one listening socket that all Clients give out as their
+     *          session address. Each incoming session connection starts with a PEER_HELLO frame naming both users,
+     *          which the engine uses to hand the connection to the right Client, or with a PEER_RESUME when it
+     *          replaces the lost connection of an existing session.
+     *          Given a TlsContext, every connection the engine's Clients make or accept, to the Server or to each
+     *          other, is TLS.
+     * Usage:   Create one ChatEngine and pass it to every Client, or use ChatEngine.shared(). Call close() once
+     *          none of its Clients are needed any more. Traffic and session counts for every Client on the engine
+     *          are kept in getMetrics(), which is also published over JMX as ChatApp:type=ChatEngine.
+     */
+
+    private static final long HANDSHAKE_TIMEOUT = TimeUnit.SECONDS.toNanos(20); // How long an accepted connection may take to say who it is.
+
+    private static final AtomicInteger engineIds = new AtomicInteger();
+    private static ChatEngine shared;
+
+    private final ClientEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ServerSocketChannel listener;
+    private final TlsContext tls; // Keys for TLS connections, or null for plain TCP
+    private final int port;
+    private final ConcurrentHashMap<String, Client> users = new ConcurrentHashMap<>(); // Clients in this process, by username
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Constructor accepts the number of event loop threads to run.
+     * Opens the listening socket for incoming sessions on any free port.
+     */
+    public ChatEngine(int numLoops) throws IOException {
+        this(numLoops, null);
+    }
+
+    /**
+     * Constructor accepts the number of event loop threads to run, and the TlsContext for every connection,
+     * or null for plain TCP. Opens the listening socket for incoming sessions on any free port.
+     */
+    public ChatEngine(int numLoops, TlsContext tls) throws IOException {
+        this.tls = tls;
+        loops = new ClientEventLoop[Math.max(1, numLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ClientEventLoop("client-event-loop-" + i, metrics);
+            loops[i].start();
+        }
+        LongAdder opened = metrics.counter("client_sessions_opened");
+        LongAdder closed = metrics.counter("client_sessions_closed");
+        metrics.gauge("client_sessions_open", () -> opened.sum() - closed.sum());
+        metrics.gauge("client_users", users::size);
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(0), 1024);
+        port = listener.socket().getLocalPort();
+        loops[0].listen(listener, this::accept);
+        metrics.registerMBean("ChatEngine", "engine-" + engineIds.incrementAndGet());
+    }
+
+    // Return the process-wide engine, starting it the first time it is needed. Uses one loop per processor.
+    public static synchronized ChatEngine shared() throws IOException {
+        if (shared == null || !shared.listener.isOpen())
+            shared = new ChatEngine(Runtime.getRuntime().availableProcessors());
+        return shared;
+    }
+
+    // Return the port other Clients connect to for a session with any user of this engine.
+    public int getPort() {
+        return port;
+    }
+
+    // Pick the loop for a new connection. Connections are spread across the loops in turn.
+    public ClientEventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Return the TlsContext connections are made and accepted with, or null for plain TCP.
+    public TlsContext getTls() {
+        return tls;
+    }
+
+    // Number of Clients currently using this engine.
+    public int userCount() {
+        return users.size();
+    }
+
+    // Stop listening and shut down the event loops, closing every connection they drive.
+    public void close() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+        }
+        for (ClientEventLoop loop : loops)
+            loop.shutdown();
+        metrics.unregisterMBean();
+    }
+
+    /**
+     * Wrap a channel that is connecting to another Client's engine at the given address in a FramedConnection on
+     * the given loop, over TLS if this engine uses it. The other Client is only known by an address the Server
+     * handed out, so its certificate is checked against the trusted ones but not matched to a host name.
+     */
+    FramedConnection connect(SocketChannel channel, InetSocketAddress address, ClientEventLoop loop, FrameHandler handler) throws IOException {
+        TlsChannel secure = tls == null ? null : tls.client(channel, address.getHostString(), address.getPort(), false, metrics);
+        return new FramedConnection(channel, loop, handler, secure);
+    }
+
+    // Called by a Client once it has a username, so incoming sessions for that user reach it.
+    void addUser(Client client) {
+        users.put(client.getFromUser(), client);
+    }
+
+    // Called by a Client once it is disconnected.
+    void removeUser(Client client) {
+        users.remove(client.getFromUser(), client);
+    }
+
+    /**
+     * Called on the event loop for the first frame of an accepted connection. Part of FrameHandler; not meant to be called directly.
+     * A PEER_HELLO hands the connection to the Client it names, and a PEER_RESUME to the session it resumes;
+     * anything else closes it.
+     */
+    public void onFrame(FramedConnection connection, FrameReader frame) throws IOException {
+        if (frame.opcode() == Protocol.PEER_RESUME) {
+            String fromUser = frame.string();
+            Client client = users.get(frame.string());
+            if (client == null || !client.resumeSession(fromUser, connection, frame)) // Tell the other end to stop trying.
+                connection.send(new FrameWriter(Protocol.SESSION_END).toBuffer()).thenRun(connection::close);
+            return;
+        }
+        if (frame.opcode() != Protocol.PEER_HELLO) {
+            connection.close();
+            return;
+        }
+        String fromUser = frame.string();
+        Client client = users.get(frame.string());
+        if (client == null || !client.acceptSession(fromUser, connection, frame))
+            connection.close(); // Nobody here is expecting this user.
+    }
+
+    // Called on the event loop if an accepted connection closes before it is handed to a Client. Part of FrameHandler.
+    public void onClose(FramedConnection connection) {
+    }
+
+    // Helper method run on the listening loop for each incoming session connection.
+    private void accept(SocketChannel channel) {
+        try {
+            FramedConnection connection = new FramedConnection(channel, nextLoop(), this, tls == null ? null : tls.server(channel, metrics));
+            connection.start();
+            connection.getLoop().schedule(() -> {
+                if (connection.getPeerName().isEmpty()) // Never said PEER_HELLO.
+                    connection.close();
+            }, HANDSHAKE_TIMEOUT);
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,809 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChatSession implements FrameHandler {
+    /**
+     * Class:   ChatSession
+     * Purpose: One chat session between a Client and another user. A Client can hold any number of these at once,
+     *          one per other user, each on its own connection driven by the ChatEngine's event loops.
+     *
+     *          Messages are numbered over the whole session, and the other end acknowledges them with ACK frames once
+     *          its application has taken them, either from a MessageListener returning or from receive(); until then
+     *          they are kept in an Outbox. Each end advertises a window, the most message bytes it will let the other
+     *          send ahead of its acknowledgements, so a fast sender keeps a window's worth in flight over a slow link
+     *          while a slow reader holds it back instead of filling socket buffers and memory.
+     *
+     *          A session outlives the connection it runs over. If nothing arrives for a while the
+     *          session sends a PING, and if the other end stays quiet past the dead-peer timeout the connection is
+     *          dropped. When a connection is lost without a SESSION_END, the session is suspended: the end that made
+     *          the connection reconnects to the same address with PEER_RESUME, both ends say how many messages
+     *          they have received, and each sends again whatever the other is missing. Messages sent meanwhile wait
+     *          in the Outbox. A session that cannot be resumed within the resume timeout is closed.
+     * Usage:   Returned by Client.openSession(). Send with send(), sendAsync() or offer(), or with sendWithReceipt() to learn
+     *          when the other user has taken the message, and receive either by setting a MessageListener or by
+     *          calling receive(). Send files with sendFile() and receive them by setting a
+     *          FileListener. Call close() to end the session. Safe to use from any thread.
+     */
+
+    public static final long DEFAULT_PING_INTERVAL = 5 * 1000;   // ms of quiet from the other end before a PING
+    public static final long DEFAULT_DEAD_TIMEOUT = 15 * 1000;   // ms of quiet from the other end before the connection is dropped
+    public static final long DEFAULT_RESUME_TIMEOUT = 30 * 1000; // ms a lost connection may take to be replaced before the session closes
+    private static final int ACK_EVERY = 64;                     // Messages processed before an ACK goes out after the current read
+    private static final long ACK_DELAY = TimeUnit.MILLISECONDS.toNanos(20); // Longest an ACK waits for more messages
+    private static final long RECONNECT_DELAY = 100;    // ms before the first reconnect attempt is repeated; doubles each time
+    private static final long MAX_RECONNECT_DELAY = 2000;
+    private static final long END_TIMEOUT = 1000;       // ms close() waits for the other end to process what is queued, and then for SESSION_END to be written
+    private static final long ROOM_TIMEOUT = 30 * 1000; // ms sendAsync() waits for the Outbox to have room before refusing a message
+    private static final String CLOSED = new String("Session closed"); // Marks the end of the inbox, compared by identity.
+
+    private static final int OPEN = 0;      // Connected
+    private static final int SUSPENDED = 1; // Connection lost, waiting for a new one
+    private static final int ENDED = 2;
+
+    private final Client client;
+    private final String otherUser;
+    private final ClientEventLoop loop;          // Runs the session's timers, and every connection this end makes
+    private final InetSocketAddress peerAddress; // Where to reconnect, or null if the other end made the connection
+    private final Outbox outbox = new Outbox();
+    private final Object sending = new Object(); // Held while writing what the Outbox hands out, so messages go out in order
+    private volatile long sessionId;             // Chosen by the connecting end, 0 until known
+    private volatile boolean resumable;          // Both ends can resume the session, so a lost connection can be replaced
+    private volatile FramedConnection connection;
+    private volatile FramedConnection resuming;  // Replacement connection this end is setting up, if any
+    private volatile FileTransfers files;
+    private volatile Compression compression;
+    private volatile int state = OPEN;           // Changed only while holding this
+    private volatile boolean draining;           // Closed while open: still sending what is queued before SESSION_END
+    private volatile boolean heard;              // Something arrived since the last keepalive tick. Cheaper than a clock read per frame.
+    // Settings, applied again to each new connection.
+    private volatile long flushDelay;
+    private volatile int compressionMode = Compression.NONE;
+    private volatile int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    private volatile byte[] compressionDictionary;
+    private volatile FileListener fileListener;
+    private volatile long pingInterval = DEFAULT_PING_INTERVAL;
+    private volatile long deadTimeout = DEFAULT_DEAD_TIMEOUT;
+    private volatile long resumeTimeout = DEFAULT_RESUME_TIMEOUT;
+    private volatile long window = Protocol.MESSAGE_WINDOW; // Message bytes the other end may send ahead of this end's ACKs
+    // Guarded by this.
+    private long received;            // Messages received over the whole session
+    private long processed;           // Messages the application has taken over the whole session
+    private int unackedProcessed;     // Messages processed since the last ACK
+    private long unackedBytes;        // Their bytes, counted as the Outbox counts them
+    private boolean ackScheduled;     // An ACK is due within ACK_DELAY
+    private boolean ackQueued;        // An ACK is due once the loop has handled what it has read
+    private int keepaliveRound;       // Bumped when the keepalive settings change, so the old schedule stops
+    private long quiet;               // ms the current connection has been quiet for, counted in keepalive ticks
+    private int suspensions;          // Bumped on every suspension and resumption, so stale timers do nothing
+    private long suspendedAt;
+    private long reconnectDelay;
+    private boolean ending;            // SESSION_END has been sent, or the session is finishing
+    private boolean finished;
+    // Incoming messages go to the listener if there is one, otherwise they wait in the inbox for receive().
+    // Delivery holds the inbox's lock, so messages reach the listener in order even across connections.
+    private volatile MessageListener listener;
+    private final BlockingQueue<String> inbox = new LinkedBlockingQueue<>();
+    private final LongAdder messagesSent;
+    private final LongAdder messagesReceived;
+    private final LongAdder messagesRefused;
+    private final LongAdder closedCount;
+    private final LongAdder suspendedCount;
+    private final LongAdder resumedCount;
+    private final LongAdder replayed;
+    private final LongAdder deadPeers;
+    private final LatencyHistogram recoveryTime;
+
+    /**
+     * Constructor accepts the owning Client, the other user, and the connection to them, and takes over the
+     * connection's frames. peerAddress is the other end's address if this end made the connection, or null.
+     */
+    ChatSession(Client client, String otherUser, FramedConnection connection, InetSocketAddress peerAddress) {
+        this.client = client;
+        this.otherUser = otherUser;
+        this.connection = connection;
+        this.loop = connection.getLoop();
+        this.peerAddress = peerAddress;
+        if (peerAddress != null) { // Assume the other end can resume until its answer to our PEER_HELLO says otherwise.
+            sessionId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+            resumable = true;
+        }
+        this.files = new FileTransfers(this, connection);
+        this.compression = new Compression(connection);
+        connection.setPeerName(otherUser);
+        connection.setHandler(this);
+        Metrics metrics = loop.getMetrics();
+        messagesSent = metrics.counter("client_messages_sent");
+        messagesReceived = metrics.counter("client_messages_received");
+        messagesRefused = metrics.counter("client_messages_refused");
+        closedCount = metrics.counter("client_sessions_closed");
+        suspendedCount = metrics.counter("client_sessions_suspended");
+        resumedCount = metrics.counter("client_sessions_resumed");
+        replayed = metrics.counter("client_messages_replayed");
+        deadPeers = metrics.counter("client_dead_peers");
+        recoveryTime = metrics.histogram("client_session_recovery_ns");
+        metrics.counter("client_sessions_opened").increment();
+        scheduleKeepalive(0);
+    }
+
+    // Return the name of the other user.
+    public String getOtherUser() {
+        return otherUser;
+    }
+
+    // Return the Client this session belongs to.
+    public Client getClient() {
+        return client;
+    }
+
+    // Returns True until the session has been closed by either side, or given up on. Stays true while reconnecting.
+    public boolean isOpen() {
+        return state != ENDED;
+    }
+
+    // Returns True while the session has a working connection, false while it is reconnecting or once it has ended.
+    public boolean isConnected() {
+        return state == OPEN;
+    }
+
+    FramedConnection getConnection() {
+        return connection;
+    }
+
+    // Send a message to the other user. Returns once the message has been written, which may be after a reconnect.
+    public boolean send(String message) {
+        return sendAsync(message).join();
+    }
+
+    /**
+     * Queue a message for the other user without waiting for it to be written. Messages sent in quick succession
+     * are coalesced into larger writes. The future completes with true once the message has been written, or false
+     * if the session ends first or the message is over Protocol.MAX_MESSAGE bytes as UTF-8. Messages sent while the session is reconnecting, or while the other end's window
+     * is full, are written once it allows. If the Outbox is full this waits for room, except on an event loop thread.
+     */
+    public CompletableFuture<Boolean> sendAsync(String message) {
+        Outbox.Entry entry = queue(message, false, true);
+        return entry == null ? CompletableFuture.completedFuture(false) : entry.written;
+    }
+
+    /**
+     * Queue a message like sendAsync(), but never wait: if the Outbox is full the message is refused at once, and
+     * the future is already complete with false when this returns.
+     */
+    public CompletableFuture<Boolean> offer(String message) {
+        Outbox.Entry entry = queue(message, false, false);
+        return entry == null ? CompletableFuture.completedFuture(false) : entry.written;
+    }
+
+    /**
+     * Queue a message for the other user like sendAsync(), and return its delivery receipt: a future that completes
+     * with true once the other user's application has taken the message, from its MessageListener or receive(),
+     * or with false if the session ends first.
+     */
+    public CompletableFuture<Boolean> sendWithReceipt(String message) {
+        Outbox.Entry entry = queue(message, true, true);
+        return entry == null ? CompletableFuture.completedFuture(false) : entry.receipt;
+    }
+
+    /**
+     * Retrieve the next message from the other user, waiting until one arrives.
+     * Returns "" once the session has ended. Only used when no MessageListener is set.
+     */
+    public String receive() {
+        try {
+            String message = inbox.take();
+            if (message == CLOSED) {
+                inbox.add(CLOSED); // Leave the marker for any later call.
+                return "";
+            }
+            consumed(message);
+            return message;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        }
+    }
+
+    /**
+     * Set the listener that is told about each message from the other user as soon as it arrives, and about
+     * the end of the session. Messages that arrived before a listener was set are handed to it first.
+     */
+    public void setMessageListener(MessageListener listener) {
+        synchronized (inbox) { // No message can slip in between draining the inbox and switching over.
+            this.listener = listener;
+            String message;
+            while (listener != null && (message = inbox.peek()) != null && message != CLOSED) {
+                inbox.poll();
+                listener.onMessage(otherUser, message);
+                consumed(message);
+            }
+        }
+    }
+
+    /**
+     * Send a file to the other user, straight from disk, without holding up messages sent meanwhile.
+     * The future completes with true once the other user has all of it, checked, or false if they decline it or
+     * the connection is lost first. Sending the same file again carries on where the last attempt stopped.
+     */
+    public CompletableFuture<Boolean> sendFile(Path file) {
+        if (state != OPEN)
+            return CompletableFuture.completedFuture(false);
+        return files.send(file);
+    }
+
+    // Set the listener that decides where files from the other user are saved. Without one, every file is declined.
+    public synchronized void setFileListener(FileListener listener) {
+        fileListener = listener;
+        files.setListener(listener);
+    }
+
+    /**
+     * Compress outgoing messages of at least threshold characters: Compression.STREAM, Compression.DICTIONARY or
+     * Compression.NONE. The dictionary is only used in DICTIONARY mode, and must be the same at both ends; null
+     * picks the built-in one. Messages go out uncompressed if the other end cannot decode the chosen mode.
+     */
+    public synchronized void setCompression(int mode, int threshold, byte[] dictionary) {
+        compressionMode = mode;
+        compressionThreshold = threshold;
+        compressionDictionary = dictionary;
+        compression.setMode(mode, threshold, dictionary);
+    }
+
+    /**
+     * Set how long, in milliseconds, the other end may be quiet before it is sent a PING, how long before its
+     * connection is given up as dead, and how long a lost connection may take to be replaced before the session
+     * closes.
+     */
+    public void setKeepalive(long pingInterval, long deadTimeout, long resumeTimeout) {
+        this.pingInterval = pingInterval;
+        this.deadTimeout = deadTimeout;
+        this.resumeTimeout = resumeTimeout;
+        int round;
+        synchronized (this) {
+            round = ++keepaliveRound;
+        }
+        scheduleKeepalive(round);
+    }
+
+    /**
+     * Set the most message bytes the other user may send ahead of this end's acknowledgements. A larger window
+     * keeps throughput up over a slow link; a smaller one bounds how much can pile up unread. Takes effect at once.
+     */
+    public void setWindow(int window) {
+        this.window = window;
+        long count;
+        FramedConnection current;
+        synchronized (this) {
+            if (state != OPEN)
+                return; // Sent with the PEER_RESUME instead.
+            unackedProcessed = 0;
+            unackedBytes = 0;
+            count = processed;
+            current = connection;
+        }
+        current.send(ackFrame(count));
+    }
+
+    // Set the window without telling the other end, for a new session whose PEER_HELLO has not gone out yet.
+    void initWindow(int window) {
+        this.window = window;
+    }
+
+    // Build the PEER_HELLO this end sends, which also says which compressed messages it can decode, and its window.
+    ByteBuffer peerHello(String thisUser) {
+        return new FrameWriter(Protocol.PEER_HELLO).string(thisUser).string(otherUser).varint(compression.getDecoders())
+                   .varint(compression.getDictionaryId()).varint(sessionId).varint(window).toBuffer();
+    }
+
+    // Record what the other end can decode, the session id and its window, from the optional fields after the two names of its PEER_HELLO.
+    void peerHelloReceived(FrameReader frame) throws IOException {
+        if (frame.hasField())
+            compression.setPeer((int) frame.varint(), frame.hasField() ? frame.varint() : 0);
+        long id = frame.hasField() ? frame.varint() : 0; // 0 if the other end cannot resume sessions.
+        if (peerAddress == null)
+            sessionId = id; // Chosen by the end that connected.
+        resumable = id == sessionId && id != 0; // The connecting end hears this in the answer to its own PEER_HELLO.
+        if (frame.hasField())
+            acked(0, frame.varint());
+    }
+
+    // Set the longest time, in milliseconds, an outgoing message may wait for more messages to be batched with it.
+    public synchronized void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+        connection.getPipeline().setFlushDelay(flushDelay);
+    }
+
+    /**
+     * End the session, telling the other end not to wait for it to come back. Messages already queued are still
+     * sent, and the session waits up to END_TIMEOUT for the other end to process them. Safe to call more than once.
+     */
+    public void close() {
+        int was;
+        synchronized (this) {
+            synchronized (sending) { // No message is queued once the state says ENDED.
+                if (state == ENDED)
+                    return;
+                was = state;
+                state = ENDED;
+                draining = was == OPEN;
+            }
+        }
+        if (was == OPEN) {
+            if (outbox.isEmpty())
+                end();
+            else
+                loop.schedule(this::end, TimeUnit.MILLISECONDS.toNanos(END_TIMEOUT)); // In case the other end never catches up.
+            return;
+        }
+        FramedConnection pending = resuming;
+        if (pending != null)
+            pending.close();
+        loop.execute(this::finish);
+    }
+
+    /**
+     * Called by the Client, on the new connection's loop, when the other end reconnects with a PEER_RESUME for
+     * this session. The frame is positioned after the two names. Returns false if it is not for this session.
+     */
+    boolean resumeAccepted(FramedConnection next, FrameReader frame) throws IOException {
+        long id = frame.varint();
+        if (peerAddress != null || id != sessionId || state == ENDED)
+            return false;
+        next.setPeerName(otherUser);
+        next.setHandler(this);
+        attach(next, frame, true);
+        return true;
+    }
+
+    /**
+     * Called on the event loop for each frame from the other user. Part of FrameHandler; not meant to be called directly.
+     */
+    public void onFrame(FramedConnection from, FrameReader frame) throws IOException {
+        FileTransfers files = this.files;             // Read before the connection, which attach() replaces first,
+        Compression compression = this.compression;   // so these belong to from if from is still the connection.
+        if (from != connection) { // A replacement connection this end is setting up, or a replaced one.
+            if (from == resuming && frame.opcode() == Protocol.PEER_RESUME) {
+                frame.skip();
+                frame.skip();
+                if (frame.varint() != sessionId) {
+                    from.close();
+                    return;
+                }
+                resuming = null;
+                attach(from, frame, false);
+            }
+            else if (from == resuming && frame.opcode() == Protocol.SESSION_END) { // Other end no longer has the session.
+                synchronized (this) {
+                    state = ENDED;
+                }
+                from.close();
+            }
+            return;
+        }
+        if (!heard)
+            heard = true;
+        if (frame.opcode() >= Protocol.FILE_OFFER && frame.opcode() <= Protocol.FILE_CANCEL) {
+            files.onFrame(frame);
+            return;
+        }
+        switch (frame.opcode()) {
+            case Protocol.MESSAGE:
+                deliver(from, frame.string());
+                break;
+            case Protocol.MESSAGE_DEFLATE:
+            case Protocol.MESSAGE_DICT:
+                deliver(from, compression.decode(frame));
+                break;
+            case Protocol.PING:
+                acked(frame.varint(), 0);
+                from.send(new FrameWriter(Protocol.PONG, Protocol.NO_REPLY, 12).varint(processedCount()).toBuffer());
+                break;
+            case Protocol.PONG:
+                acked(frame.varint(), 0);
+                break;
+            case Protocol.ACK:
+                acked(frame.varint(), frame.hasField() ? frame.varint() : 0);
+                break;
+            case Protocol.PEER_HELLO: // The accepting end's answer to ours.
+                frame.skip();
+                frame.skip();
+                peerHelloReceived(frame);
+                break;
+            case Protocol.SESSION_END: // Closed on purpose at the other end, so don't try to resume.
+                synchronized (this) {
+                    state = ENDED;
+                }
+                from.close();
+                break;
+            default: // Skip frames this version does not understand.
+                break;
+        }
+    }
+
+    /**
+     * Called on the event loop once a connection to the other user has closed. Part of FrameHandler.
+     * Ends the session if it was closed on purpose or because the other end sent something invalid, otherwise
+     * suspends it until a new connection replaces this one.
+     */
+    public void onClose(FramedConnection closed) {
+        if (closed == resuming) {
+            resuming = null;
+            resumeFailed(closed);
+            return;
+        }
+        boolean end;
+        int round;
+        synchronized (this) {
+            if (closed != connection)
+                return; // Replaced by a newer connection.
+            end = state == ENDED || !resumable || closed.getFailure() instanceof ProtocolException; // Sending it all again would only fail again.
+            if (end)
+                state = ENDED;
+            else {
+                state = SUSPENDED;
+                suspendedAt = System.nanoTime();
+                reconnectDelay = RECONNECT_DELAY;
+            }
+            round = ++suspensions;
+        }
+        files.close();
+        compression.close();
+        if (end) {
+            finish();
+            return;
+        }
+        suspendedCount.increment();
+        loop.schedule(() -> giveUp(round), TimeUnit.MILLISECONDS.toNanos(resumeTimeout));
+        if (peerAddress != null)
+            loop.execute(this::reconnect);
+    }
+
+    /**
+     * Helper method to number and keep a message, and write it if the window allows. Waits for room in the Outbox
+     * if it is full and wait is set, unless called on an event loop, which would then never empty it. Returns null
+     * if refused.
+     */
+    private Outbox.Entry queue(String message, boolean receipt, boolean wait) {
+        if (!Protocol.fitsMessage(message)) { // The other end would refuse its frame, and the session with it.
+            messagesRefused.increment();
+            return null;
+        }
+        while (true) {
+            synchronized (sending) { // Queued and written in one step, so messages go out in the order they are numbered.
+                if (state == ENDED)
+                    return null;
+                Outbox.Entry entry = outbox.add(message, receipt);
+                if (entry != null) {
+                    messagesSent.increment();
+                    if (state == OPEN)
+                        pump();
+                    return entry;
+                }
+            }
+            try {
+                if (!wait || Thread.currentThread() instanceof ClientEventLoop || !outbox.awaitRoom(ROOM_TIMEOUT)) {
+                    messagesRefused.increment();
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    // Helper method to write on the current connection every queued message the window allows. Called holding sending.
+    private void pump() {
+        Outbox.Entry entry;
+        while ((entry = outbox.next()) != null)
+            compression.send(entry.message).thenAccept(entry); // Lost with the connection: sent again once the session resumes.
+    }
+
+    /**
+     * Helper method to take an acknowledgement from the other end: count messages it has processed so far, and
+     * the window it advertised, or 0 if it did not say. Writes whatever that makes room for, and finishes a
+     * close() once nothing is left. Only takes the sending lock if messages are waiting for the window, so
+     * the loop does not wait on a sending thread while the window is open.
+     */
+    private void acked(long count, long window) {
+        boolean room = outbox.ack(count);
+        if (window > 0 && outbox.setWindow(window))
+            room = true;
+        if (room && !outbox.isDrained()) {
+            synchronized (sending) {
+                if (state == OPEN || draining)
+                    pump();
+            }
+        }
+        if (draining && outbox.isEmpty())
+            end();
+    }
+
+    // Helper method to count a message from the other user, and hand it to the listener or the inbox.
+    private void deliver(FramedConnection from, String message) {
+        synchronized (inbox) {
+            synchronized (this) {
+                if (from != connection)
+                    return; // Replaced while this frame was being read; the other end sends it again.
+                received++;
+            }
+            messagesReceived.increment();
+            MessageListener current = listener;
+            if (current == null) {
+                inbox.add(message);
+                return;
+            }
+            try {
+                current.onMessage(otherUser, message);
+            } catch (RuntimeException e) {
+                // A failing listener must not take down the session.
+            }
+            consumed(message);
+        }
+    }
+
+    /**
+     * Helper method to count a message the application has taken, and see that an ACK goes out. One is due after
+     * ACK_EVERY messages or a quarter of the window, once the loop has handled what it has read, else within ACK_DELAY.
+     */
+    private synchronized void consumed(String message) {
+        processed++;
+        unackedBytes += message.length() + 8; // As Outbox.Entry counts it.
+        if ((++unackedProcessed >= ACK_EVERY || unackedBytes >= window / 4) && !ackQueued) {
+            ackQueued = true;
+            connection.getLoop().execute(() -> sendAck(true));
+        }
+        else if (!ackScheduled) {
+            ackScheduled = true;
+            loop.schedule(() -> sendAck(false), ACK_DELAY);
+        }
+    }
+
+    // Helper method to tell the other end how many messages have been processed, if that has changed since the last ACK.
+    private void sendAck(boolean queued) {
+        long count;
+        FramedConnection current;
+        synchronized (this) {
+            if (queued)
+                ackQueued = false;
+            else
+                ackScheduled = false;
+            if (unackedProcessed == 0 || (state != OPEN && !draining))
+                return;
+            unackedProcessed = 0;
+            unackedBytes = 0;
+            count = processed;
+            current = connection;
+        }
+        current.send(ackFrame(count));
+    }
+
+    // Helper method to build an ACK for count messages, with this end's window.
+    private ByteBuffer ackFrame(long count) {
+        return new FrameWriter(Protocol.ACK, Protocol.NO_REPLY, 16).varint(count).varint(window).toBuffer();
+    }
+
+    private synchronized long receivedCount() {
+        return received;
+    }
+
+    private synchronized long processedCount() {
+        return processed;
+    }
+
+    /**
+     * Helper method to run the keepalive every ping interval. A connection that was quiet for a whole interval is
+     * sent a PING, and one that has been quiet for the dead-peer timeout is dropped, so a peer that vanished
+     * without closing its socket is noticed within deadTimeout + pingInterval.
+     */
+    private void scheduleKeepalive(int round) {
+        loop.schedule(() -> {
+            FramedConnection current = null;
+            long count = 0;
+            boolean dead = false;
+            synchronized (this) {
+                if (round != keepaliveRound || state == ENDED)
+                    return;
+                if (heard || state != OPEN)
+                    quiet = 0;
+                else {
+                    quiet += pingInterval;
+                    dead = quiet >= deadTimeout;
+                    current = connection;
+                    count = processed;
+                }
+                heard = false;
+            }
+            if (dead) {
+                deadPeers.increment();
+                current.close(); // onClose() suspends the session and starts resuming it.
+            }
+            else if (current != null) {
+                current.send(new FrameWriter(Protocol.PING, Protocol.NO_REPLY, 12).varint(count).toBuffer());
+            }
+            scheduleKeepalive(round);
+        }, TimeUnit.MILLISECONDS.toNanos(pingInterval));
+    }
+
+    // Helper method to open a replacement connection to the other end and ask to resume. Run on the loop by the connecting end.
+    private void reconnect() {
+        if (state != SUSPENDED || resuming != null)
+            return;
+        try {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.connect(peerAddress);
+            } catch (IOException | UnresolvedAddressException e) {
+                channel.close();
+                throw new IOException("Cannot reach " + otherUser, e);
+            }
+            FramedConnection next = client.getEngine().connect(channel, peerAddress, loop, this);
+            next.setPeerName(otherUser);
+            resuming = next;
+            next.start();
+            next.send(resumeFrame());
+        } catch (IOException e) {
+            retryReconnect();
+        }
+    }
+
+    // Helper method called when a replacement connection closes before it took over. Tries again unless it is pointless.
+    private void resumeFailed(FramedConnection failed) {
+        if (failed.getFailure() instanceof ConnectException) { // Nothing listens at the address any more: the other user's app has gone.
+            synchronized (this) {
+                if (state == SUSPENDED)
+                    state = ENDED;
+            }
+        }
+        if (state == ENDED)
+            finish();
+        else
+            retryReconnect();
+    }
+
+    // Helper method to try to reconnect again after a delay that doubles each time.
+    private void retryReconnect() {
+        long delay;
+        synchronized (this) {
+            if (state != SUSPENDED)
+                return;
+            delay = reconnectDelay;
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+        }
+        loop.schedule(this::reconnect, TimeUnit.MILLISECONDS.toNanos(delay));
+    }
+
+    // Helper method to build the PEER_RESUME this end sends, or answers with.
+    private ByteBuffer resumeFrame() {
+        return new FrameWriter(Protocol.PEER_RESUME).string(client.getFromUser()).string(otherUser).varint(sessionId)
+                   .varint(receivedCount()).varint(compression.getDecoders()).varint(compression.getDictionaryId())
+                   .varint(processedCount()).varint(window).toBuffer();
+    }
+
+    /**
+     * Helper method to make a replacement connection the session's connection. The frame is the other end's
+     * PEER_RESUME, positioned after the session id. Answers it first if answer is set, then sends again every
+     * message the other end has not received, as far as its window allows.
+     */
+    private void attach(FramedConnection next, FrameReader frame, boolean answer) throws IOException {
+        long peerReceived = frame.varint();
+        int decoders = (int) frame.varint();
+        long dictionaryId = frame.varint();
+        long peerProcessed = frame.hasField() ? frame.varint() : peerReceived; // Older ends acknowledge on arrival.
+        long peerWindow = frame.hasField() ? frame.varint() : 0;
+        FramedConnection old;
+        FileTransfers oldFiles;
+        Compression oldCompression;
+        boolean wasOpen;
+        synchronized (this) {
+            if (state == ENDED) {
+                next.close();
+                return;
+            }
+            synchronized (sending) { // Nothing may be written on the new connection before the answer and the replay.
+                wasOpen = state == OPEN; // The other end noticed the old connection was gone before this end did.
+                old = connection;
+                oldFiles = files;
+                oldCompression = compression;
+                connection = next;
+                next.getPipeline().setFlushDelay(flushDelay);
+                files = new FileTransfers(this, next);
+                files.setListener(fileListener);
+                compression = new Compression(next);
+                compression.setMode(compressionMode, compressionThreshold, compressionDictionary);
+                compression.setPeer(decoders, dictionaryId);
+                if (answer)
+                    next.send(resumeFrame());
+                outbox.ack(peerProcessed);
+                if (peerWindow > 0)
+                    outbox.setWindow(peerWindow);
+                replayed.add(outbox.rewind(peerReceived));
+                pump();
+                state = OPEN;
+            }
+            unackedProcessed = 0; // The PEER_RESUME carried the count.
+            unackedBytes = 0;
+            suspensions++;
+            heard = true;
+            if (!wasOpen)
+                recoveryTime.record(System.nanoTime() - suspendedAt);
+        }
+        resumedCount.increment();
+        if (wasOpen) {
+            old.close();
+            old.getLoop().execute(() -> { // After the old connection's onClose(), on its loop, which ignores it now.
+                oldFiles.close();
+                oldCompression.close();
+            });
+        }
+    }
+
+    // Helper method to send SESSION_END once close() has drained the Outbox, or given up waiting. Runs once.
+    private void end() {
+        FramedConnection current;
+        synchronized (this) {
+            if (ending || state != ENDED)
+                return;
+            ending = true;
+            draining = false;
+            current = connection;
+        }
+        // Closing the connection once SESSION_END is out runs onClose(), which finishes.
+        current.send(new FrameWriter(Protocol.SESSION_END).toBuffer()).thenRun(current::close);
+        loop.schedule(current::close, TimeUnit.MILLISECONDS.toNanos(END_TIMEOUT)); // In case it never gets out.
+    }
+
+    // Helper method run on the loop once a suspended session has not resumed in time.
+    private void giveUp(int round) {
+        synchronized (this) {
+            if (state != SUSPENDED || suspensions != round)
+                return;
+            state = ENDED;
+        }
+        FramedConnection pending = resuming;
+        if (pending != null)
+            pending.close();
+        finish();
+    }
+
+    // Helper method to release the session once it has ended for good, and tell the listener. Runs once.
+    private void finish() {
+        synchronized (this) {
+            if (finished)
+                return;
+            finished = true;
+            ending = true;
+            draining = false;
+        }
+        closedCount.increment();
+        outbox.fail();
+        client.sessionClosed(this);
+        synchronized (inbox) {
+            inbox.add(CLOSED);
+            MessageListener current = listener;
+            if (current != null) {
+                try {
+                    current.onClose(otherUser);
+                } catch (RuntimeException e) {
+                }
+            }
+        }
+    }
+}
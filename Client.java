@@ -4,63 +4,107 @@
  * Socket Programming Project
  */
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.io.IOException;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Client {
     /**
      * Class:   Client
      * Purpose: Provide an object that handles all client-side functionality in the chat program.
-     * Usage:   Create a Client object with a username, a target server hostname, and the server port number. 
-     *          Use this Client object to establish/end chat sessions, and send/receive messages while inside a session.
+     *          A Client can hold chat sessions with many other users at once. Clients share the I/O threads and
+     *          listening socket of a ChatEngine, so one process can run thousands of them.
+     * Usage:   Create a Client object with a username, a target server hostname, the server port number, and
+     *          optionally the ChatEngine to run on. Use openSession() to start sessions; the establishSession(),
+     *          sendMessage() and receiveMessage() methods work on a single current session for simple programs.
+     *          Use leaveMessage() to reach a user who is not online; they get it from the server when they return.
      */
 
+    private static final ExecutorService RESOLVER = Executors.newCachedThreadPool(runnable -> { // Looks up the host names of other Clients
+        Thread thread = new Thread(runnable, "resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     // Server Information.
     private String serverDomain;
     private int serverPort;
-    // If this client intitializes session, it makes use of a ServerSocket object. 
-    private ServerSocket thisSocket;
-    private int thisPort;
-    private String thisAddress;
-    // If this client does not initialize the session, it makes use of a client Socket object.
-    private Socket otherSocket;
-    private int otherPort;
-    private String otherAddress;
-    private DataInputStream otherIn; 
-    private DataOutputStream otherOut;
+    private volatile ControlChannel control; // Long-lived connection that carries every command sent to the server.
+    private volatile RoomListener roomListener;
+    // Messages left for this user while offline go to the listener. Without one the server keeps them, and the few
+    // already on their way when the listener was taken away wait in the inbox for the next. Changed holding offlineInbox.
+    private volatile MessageListener offlineListener;
+    private final ArrayDeque<String[]> offlineInbox = new ArrayDeque<>();
+    // Address other Clients connect to for a session. Shared by every Client on the engine.
+    private final ChatEngine engine;
+    private final String thisAddress;
+    private volatile long flushDelay = 0;
+    private volatile int compression = Compression.NONE;
+    private volatile int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    private volatile byte[] compressionDictionary;
+    private volatile long pingInterval = ChatSession.DEFAULT_PING_INTERVAL;
+    private volatile long deadTimeout = ChatSession.DEFAULT_DEAD_TIMEOUT;
+    private volatile long resumeTimeout = ChatSession.DEFAULT_RESUME_TIMEOUT;
+    private volatile int window = Protocol.MESSAGE_WINDOW;
+    // Open sessions, and requests still waiting for the other user, by the other user's name.
+    private final ConcurrentHashMap<String, ChatSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<ChatSession>> pendingSessions = new ConcurrentHashMap<>();
 
     // Participating usernames.
     private String thisUser;
-    private String otherUser;
+    private volatile String otherUser;
+    private volatile ChatSession current; // Session used by establishSession(), sendMessage() and friends.
 
     // Other helper variables.
     private final int MAX_ATTEMPTS = 1;
     private final int TIMEOUT = 20*1000;
+    private volatile long waitTime = TIMEOUT; // How long to wait for the other user to join a session.
+    private volatile long heartbeatInterval = Registry.DEFAULT_LEASE / 3; // How often to renew this user's registration.
+    private final ClientEventLoop heartbeatLoop;
+    private int heartbeatRound; // Bumped on heartbeatLoop when the interval changes, so the old schedule stops.
+    private volatile boolean disconnected;
     private boolean connected;
-    private boolean session;
 
     /**
      * Constructor for Client Object.
-     * Accepts a username, a server hostname, and a server port number as arguments.
+     * Accepts a username, a server hostname, and a server port number as arguments. Runs on the shared ChatEngine.
      */
     public Client(String thisUser, String serverDomain, int serverPort) throws IOException {
+        this(thisUser, serverDomain, serverPort, ChatEngine.shared());
+    }
+
+    /**
+     * Constructor for Client Object.
+     * Accepts a username, a server hostname, a server port number, and the ChatEngine to run on.
+     */
+    public Client(String thisUser, String serverDomain, int serverPort, ChatEngine engine) throws IOException {
         this.serverDomain = serverDomain;
         this.serverPort = serverPort; 
         this.thisUser = thisUser;
+        this.engine = engine;
         this.connected = false;
-        this.session = false;
-        this.thisSocket = new ServerSocket(0);
-        this.thisPort = thisSocket.getLocalPort();
         this.thisAddress = InetAddress.getLocalHost().getHostAddress();
+        this.heartbeatLoop = engine.nextLoop();
+        engine.addUser(this);
         int numAttempts = 0;
         do {
             this.connected = initialServerContact();
             numAttempts++;
         } while (!this.connected && numAttempts < MAX_ATTEMPTS);
-
+        if (connected)
+            heartbeatLoop.execute(this::scheduleHeartbeat);
     }
 
     // Returns True if this Client object is able to contact the server.
@@ -68,9 +112,10 @@ public class Client {
         return connected;
     }  
 
-    // Returns True if this Client object is currently in a session with another Client object.
+    // Returns True if this Client object is currently in a session started with establishSession().
     public boolean inSession() {
-        return session;
+        ChatSession session = current;
+        return session != null && session.isOpen();
     }
 
     // Return the name of the other user.
@@ -83,31 +128,107 @@ public class Client {
         return thisUser;
     }
 
+    // Return the session with the given user, or null if there is none.
+    public ChatSession getSession(String otherUser) {
+        return sessions.get(otherUser);
+    }
+
+    // Return every open session.
+    public Collection<ChatSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
     // Helper method to establish initial contact with server. Provides this Client's IP Address and Port Number for use on Server-side.
     private boolean initialServerContact() {
         try {
-            Socket serverSocket = new Socket(serverDomain, serverPort); // Open TCP connection to server.
-            DataOutputStream serverOut = new DataOutputStream(serverSocket.getOutputStream());
-            serverSocket.setSoTimeout(TIMEOUT);
-            serverOut.writeUTF("$HELLO:" + thisUser + ":" + thisAddress + ":" + thisPort); // Let server know to associate this username with this IP Address and Port Number
-            serverOut.close();
-            serverSocket.close(); // Close connection to server.
-            return true;
+            return hello().get(TIMEOUT, TimeUnit.MILLISECONDS);
         }
         catch (Exception e) {
+            engine.getMetrics().counter("client_errors{type=\"hello\"}").increment();
             return false;
         }
     }
 
+    // Helper method to say HELLO without blocking, first reconnecting to the server if the connection was lost.
+    private CompletableFuture<Boolean> hello() {
+        try {
+            return controlChannel().request(new FrameWriter(Protocol.HELLO).string(thisUser).string(thisAddress).varint(engine.getPort()) // Let server know to associate this username with this IP Address and Port Number
+                                                                   .varint(offlineFlag()))
+                                   .thenApply(ServerReply::isOk);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Helper method to return the offline field of HELLO and RENEW: 1 if messages left for this user should be pushed now.
+    private int offlineFlag() {
+        return offlineListener != null ? 1 : 0;
+    }
+
+    // Helper method to return the connection to the server, opening a new one if the last one was lost.
+    private ControlChannel controlChannel() throws IOException {
+        ControlChannel channel = control;
+        if (channel == null || !channel.isOpen()) {
+            channel = new ControlChannel(serverDomain, serverPort, engine.nextLoop(), engine.getTls()); // Open the TCP connection every later command will share.
+            channel.setPushListener(this::onPush);
+            control = channel;
+        }
+        return channel;
+    }
+
+    /**
+     * Set how often this Client renews its registration with the server, in milliseconds. Must be well under the
+     * server's lease time (Registry.DEFAULT_LEASE unless the server was set up differently).
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+        if (connected) {
+            heartbeatLoop.execute(() -> {
+                heartbeatRound++;
+                scheduleHeartbeat();
+            });
+        }
+    }
+
+    // Helper method to schedule the next heartbeat.
+    private void scheduleHeartbeat() {
+        int round = heartbeatRound;
+        heartbeatLoop.schedule(() -> {
+            if (round == heartbeatRound)
+                heartbeat();
+        }, TimeUnit.MILLISECONDS.toNanos(heartbeatInterval));
+    }
+
+    /**
+     * Helper method run on the loop every heartbeat interval. Renews this user's lease, over a new connection if
+     * the last one was lost; a Server that kept its registrations across a restart still knows the user. If the
+     * server no longer knows the user, says HELLO again.
+     */
+    private void heartbeat() {
+        if (disconnected)
+            return;
+        CompletableFuture<Boolean> renewed;
+        try {
+            renewed = controlChannel().request(new FrameWriter(Protocol.RENEW).string(thisUser).varint(offlineFlag()))
+                                      .thenApply(reply -> reply.isOk() || reply.getOpcode() == Protocol.BUSY); // Turned away for now, but the lease is still good.
+        } catch (IOException e) {
+            renewed = CompletableFuture.completedFuture(false);
+        }
+        renewed.exceptionally(error -> false).thenAccept(ok -> {
+            if (!ok && !disconnected) {
+                engine.getMetrics().counter("client_rejoins").increment();
+                hello();
+            }
+        });
+        scheduleHeartbeat();
+    }
+
     // Helper method to signal to server when this Client is not able to connect with another Client.
-    private boolean setAvailableStatus() {
+    private boolean setAvailableStatus(String otherUser) {
         try {
-            if (!otherUser.isEmpty()) {
-                Socket serverSocket = new Socket(serverDomain, serverPort); // Open TCP Connection to server.
-                DataOutputStream serverOut = new DataOutputStream(serverSocket.getOutputStream());
-                serverOut.writeUTF("$QUIT" + ":" + thisUser); // Tell server that this Client is now free to connect with other Clients.
-                serverOut.close();
-                serverSocket.close(); // Close TCP connection to server.
+            if (otherUser != null && !otherUser.isEmpty()) {
+                control.request(new FrameWriter(Protocol.QUIT).string(thisUser).string(otherUser)) // Tell server that this Client is now free to connect with the other Client.
+                       .get(TIMEOUT, TimeUnit.MILLISECONDS);
             }
             return true;
         } catch (Exception e) {
@@ -115,88 +236,397 @@ public class Client {
         }
     }
 
-    // Method to establish a chat session with the given otherUser.
+    /**
+     * Start a chat session with another user, waiting up to the wait time for them to ask for this user too.
+     * The future completes with the session once it is connected, or exceptionally if no session was made.
+     */
+    public CompletableFuture<ChatSession> openSession(String otherUser) {
+        return openSession(otherUser, waitTime);
+    }
+
+    // Start a chat session with another user, waiting up to waitTime milliseconds for them. See openSession(String).
+    public CompletableFuture<ChatSession> openSession(String otherUser, long waitTime) {
+        long start = System.nanoTime();
+        CompletableFuture<ChatSession> result = new CompletableFuture<>();
+        if (control == null) {
+            result.completeExceptionally(new IOException("Not connected to the server"));
+            return result;
+        }
+        CompletableFuture<ChatSession> earlier = pendingSessions.put(otherUser, result); // Registered before asking, the other side may connect before the reply arrives.
+        if (earlier != null)
+            earlier.completeExceptionally(new IOException("Replaced by a newer request for " + otherUser));
+        /*
+            The server holds this request until the other user asks for us too, then pushes the outcome:
+            ADDRESS means the other user is listening and we connect to them, ACCEPT means they are about
+            to connect to us. TIMEOUT and CANCELLED mean no session was made.
+        */
+        control.request(new FrameWriter(Protocol.CONNECT).string(thisUser).string(otherUser).varint(waitTime)) // Let server know that this Client is attempting to connect to the other Client.
+               .whenComplete((reply, error) -> {
+                   if (error != null)
+                       failSession(otherUser, result, error, "server");
+                   else if (reply.getOpcode() == Protocol.ADDRESS) // If server provides an address of the other Client, it means they are ready to connect.
+                       connectSession(otherUser, reply, result);
+                   else if (reply.getOpcode() == Protocol.ACCEPT) // Other Client has been given our address and is connecting now.
+                       control.getLoop().schedule(() -> failSession(otherUser, result, new IOException(otherUser + " never connected"), "unreachable"),
+                                                  TimeUnit.MILLISECONDS.toNanos(TIMEOUT));
+                   else
+                       failSession(otherUser, result, new IOException("No session with " + otherUser + " (reply " + reply.getOpcode() + ")"),
+                                   reply.getOpcode() == Protocol.TIMEOUT ? "timeout" : reply.getOpcode() == Protocol.CANCELLED ? "cancelled" :
+                                   reply.getOpcode() == Protocol.BUSY ? "busy" : "rejected");
+               });
+        result.thenRun(() -> engine.getMetrics().histogram("client_pairing_ns").record(System.nanoTime() - start));
+        return result;
+    }
+
+    // Method to establish a chat session with the given otherUser. The session becomes this Client's current session.
     public boolean establishSession(String otherUser) {
         try {
-            Socket serverSocket = new Socket(serverDomain, serverPort); // Open connection to server.
-            DataOutputStream serverOut = new DataOutputStream(serverSocket.getOutputStream());
-            DataInputStream serverIn = new DataInputStream(serverSocket.getInputStream());
-            serverOut.writeUTF("$CONNECT:" + thisUser + ":" + otherUser); // Let server know that this Client is attempting to connect to the other Client.
-            serverSocket.setSoTimeout(TIMEOUT);
-            String rcvMessage = serverIn.readUTF();
-            if (rcvMessage.equals("$WAIT")) { // If server tells this Client to wait, it means other Client is not yet ready to connect.
-                this.otherUser = otherUser;
-                thisSocket.setSoTimeout(TIMEOUT);
-                otherSocket = thisSocket.accept(); // Open a TCP ServerSocket that will accept other Client's connection.
-                session = true;
-                otherOut = new DataOutputStream(otherSocket.getOutputStream());
-                otherIn = new DataInputStream(otherSocket.getInputStream());
-            }
-            else if (rcvMessage.contains("$ADDRESS:")) { // If server provides an address of the other Client, it means they are ready to connect.
-                String[] rcvList = rcvMessage.split(":");
-                otherAddress = rcvList[1];
-                otherPort = Integer.parseInt(rcvList[2]);
-                otherSocket = new Socket(otherAddress, otherPort); // Create a client-side TCP Socket to connect to the other Client.
-                this.otherUser = otherUser;
-                session = true;
-                otherOut = new DataOutputStream(otherSocket.getOutputStream());
-                otherIn = new DataInputStream(otherSocket.getInputStream());
-            }
-            serverOut.close();
-            serverIn.close();
-            serverSocket.close(); // Close TCP connection to server (not other Client).
+            this.otherUser = otherUser;
+            current = openSession(otherUser).get(waitTime + TIMEOUT, TimeUnit.MILLISECONDS);
             return inSession();
         } catch (Exception e) {
             return false;
         }
     }
 
-    // Send a message to the other Client in the chat session.
-    public boolean sendMessage(String message) {
-        if (inSession() && !otherSocket.isClosed()) {
+    /**
+     * Helper method to connect to the other Client at the address the server gave. Called on the loop thread, so
+     * never blocks: an IP address is used as it is, and a host name is looked up on a resolver thread first.
+     */
+    private void connectSession(String otherUser, ServerReply reply, CompletableFuture<ChatSession> result) {
+        String host = reply.getHost();
+        int port = reply.getPort();
+        if (Presence.parseIPv4(host) >= 0 || host.indexOf(':') >= 0) { // Literals need no lookup.
+            connectSession(otherUser, new InetSocketAddress(host, port), result);
+            return;
+        }
+        ClientEventLoop loop = control.getLoop();
+        RESOLVER.execute(() -> {
+            InetSocketAddress address = new InetSocketAddress(host, port); // Unresolved if the lookup fails, so the connect fails.
+            loop.execute(() -> connectSession(otherUser, address, result));
+        });
+    }
+
+    // Helper method to connect to the other Client at a looked-up address. Called on the loop thread.
+    private void connectSession(String otherUser, InetSocketAddress address, CompletableFuture<ChatSession> result) {
+        try {
+            SocketChannel channel = SocketChannel.open(); // Create a client-side TCP Socket to connect to the other Client.
             try {
-                otherOut.writeUTF(message); // Write message to DataOutputStream object associated with the TCP connection.               
-                return true;
-            }
-            catch (Exception e) {
-                return false;
+                channel.configureBlocking(false);
+                channel.connect(address);
+            } catch (IOException | UnresolvedAddressException e) {
+                channel.close();
+                throw new IOException("Cannot reach " + otherUser, e);
             }
-        }   
-        return false;
+            ChatSession session = new ChatSession(this, otherUser, engine.connect(channel, address, engine.nextLoop(), null), address);
+            configure(session);
+            session.getConnection().start();
+            session.getConnection().send(session.peerHello(thisUser))
+                   .thenAccept(sent -> { // Written means connected, so the session is ready.
+                       if (sent)
+                           completeSession(otherUser, result, session);
+                       else
+                           failSession(otherUser, result, new IOException("Cannot reach " + otherUser), "unreachable");
+                   });
+        } catch (IOException e) {
+            failSession(otherUser, result, e, "unreachable");
+        }
+    }
+
+    /**
+     * Called by the ChatEngine on the loop thread when another Client connects with a PEER_HELLO for this user.
+     * The frame is positioned after the two names. Returns false if this Client is not waiting for a session with that user.
+     */
+    boolean acceptSession(String otherUser, FramedConnection connection, FrameReader hello) throws IOException {
+        CompletableFuture<ChatSession> result = pendingSessions.get(otherUser);
+        if (result == null)
+            return false;
+        ChatSession session = new ChatSession(this, otherUser, connection, null);
+        configure(session);
+        session.peerHelloReceived(hello);
+        connection.send(session.peerHello(thisUser)); // Answer, so the connecting end learns what this end can decode.
+        completeSession(otherUser, result, session);
+        return true;
+    }
+
+    /**
+     * Called by the ChatEngine on the loop thread when another Client reconnects with a PEER_RESUME to replace the
+     * lost connection of a session. The frame is positioned after the two names. Returns false if there is no
+     * such session any more.
+     */
+    boolean resumeSession(String otherUser, FramedConnection connection, FrameReader frame) throws IOException {
+        ChatSession session = sessions.get(otherUser);
+        return session != null && session.resumeAccepted(connection, frame);
+    }
+
+    // Helper method to apply this Client's settings to a new session.
+    private void configure(ChatSession session) {
+        session.setFlushDelay(flushDelay);
+        session.setCompression(compression, compressionThreshold, compressionDictionary);
+        session.setKeepalive(pingInterval, deadTimeout, resumeTimeout);
+        session.initWindow(window); // Before the PEER_HELLO, which carries it.
+    }
+
+    // Helper method to hand over a connected session, unless its request was cancelled or replaced in the meantime.
+    private void completeSession(String otherUser, CompletableFuture<ChatSession> result, ChatSession session) {
+        if (!pendingSessions.remove(otherUser, result) || !result.complete(session)) {
+            session.close();
+            return;
+        }
+        ChatSession earlier = sessions.put(otherUser, session);
+        if (earlier != null)
+            earlier.close(); // One session per pair of users; the newer one wins.
+    }
+
+    // Helper method to fail a session request that is still waiting, counting the failure under the given reason.
+    private void failSession(String otherUser, CompletableFuture<ChatSession> result, Throwable error, String reason) {
+        if (pendingSessions.remove(otherUser, result)) {
+            engine.getMetrics().counter("client_session_failures{reason=\"" + reason + "\"}").increment();
+            result.completeExceptionally(error);
+        }
+    }
+
+    ChatEngine getEngine() {
+        return engine;
+    }
+
+    // Called by a ChatSession once it has closed.
+    void sessionClosed(ChatSession session) {
+        sessions.remove(session.getOtherUser(), session);
+    }
+
+    /**
+     * Set the listener that is told about each message in the current session as soon as it arrives, and about
+     * the end of the session. Messages that arrived before a listener was set are handed to it first.
+     */
+    public void setMessageListener(MessageListener listener) {
+        ChatSession session = current;
+        if (session != null)
+            session.setMessageListener(listener);
+    }
+
+    // Set the listener that decides where files sent in the current session are saved. Without one, files are declined.
+    public void setFileListener(FileListener listener) {
+        ChatSession session = current;
+        if (session != null)
+            session.setFileListener(listener);
+    }
+
+    /**
+     * Send a file to the other Client in the current session, without holding up messages sent meanwhile.
+     * The future completes with true once the other Client has all of it, or false if it could not be sent.
+     */
+    public CompletableFuture<Boolean> sendFile(Path file) {
+        ChatSession session = current;
+        if (session == null)
+            return CompletableFuture.completedFuture(false);
+        return session.sendFile(file);
+    }
+
+    // Give up on every session request that is still waiting for another user. Safe to call from any thread.
+    public void cancelSession() {
+        if (control != null)
+            control.request(new FrameWriter(Protocol.QUIT).string(thisUser)); // Server will answer each waiting request with CANCELLED.
+    }
+
+    // Give up on a session request that is still waiting for the given user. Safe to call from any thread.
+    public void cancelSession(String otherUser) {
+        if (control != null)
+            control.request(new FrameWriter(Protocol.QUIT).string(thisUser).string(otherUser));
+    }
+
+    // Set how long establishSession() and openSession() wait for the other user to show up, in milliseconds.
+    public void setWaitTime(long waitTime) {
+        this.waitTime = waitTime;
+    }
+
+    // Send a message to the other Client in the current session. Returns once the message has been written.
+    public boolean sendMessage(String message) {
+        return sendMessageAsync(message).join();
+    }
+
+    /**
+     * Queue a message for the other Client in the current session without waiting for it to be written.
+     * Messages sent in quick succession are coalesced into larger writes. The future completes with true
+     * once the message has been written, or false if it could not be sent.
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(String message) {
+        ChatSession session = current;
+        if (session == null)
+            return CompletableFuture.completedFuture(false);
+        return session.sendAsync(message);
     }
 
-    // Retrieve any message sent by other Client in the chat session.
+    /**
+     * Queue a message for the other Client in the current session, and return its delivery receipt: a future that
+     * completes with true once the other Client's application has taken the message, or false if it never will.
+     */
+    public CompletableFuture<Boolean> sendMessageWithReceipt(String message) {
+        ChatSession session = current;
+        if (session == null)
+            return CompletableFuture.completedFuture(false);
+        return session.sendWithReceipt(message);
+    }
+
+    /**
+     * Set the longest time, in milliseconds, an outgoing message may wait for more messages to be batched with it.
+     * 0 (the default) writes each batch as soon as possible. Takes effect from the next session.
+     */
+    public void setFlushDelay(long flushDelay) {
+        this.flushDelay = flushDelay;
+    }
+
+    /**
+     * Compress outgoing session messages: Compression.STREAM suits a steady flow of similar messages,
+     * Compression.DICTIONARY short unrelated ones, and Compression.NONE (the default) turns it off.
+     * Messages shorter than threshold characters are never compressed. The dictionary is only used in DICTIONARY
+     * mode and must be the same for both users; null picks the built-in one. Takes effect from the next session.
+     */
+    public void setCompression(int mode, int threshold, byte[] dictionary) {
+        this.compressionThreshold = threshold;
+        this.compressionDictionary = dictionary;
+        this.compression = mode;
+    }
+
+    /**
+     * Set how long, in milliseconds, the other user may be quiet before their end is sent a PING, how long before
+     * the connection to them is given up as dead and replaced, and how long a session may take to get a new
+     * connection before it closes. Takes effect from the next session.
+     */
+    public void setKeepalive(long pingInterval, long deadTimeout, long resumeTimeout) {
+        this.pingInterval = pingInterval;
+        this.deadTimeout = deadTimeout;
+        this.resumeTimeout = resumeTimeout;
+    }
+
+    /**
+     * Set the most message bytes another user may send in a session ahead of this Client's acknowledgements.
+     * Larger windows keep throughput up over slow links; smaller ones bound what can pile up unread.
+     * Takes effect from the next session.
+     */
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    /**
+     * Retrieve the next message sent by other Client in the current session, waiting until one arrives.
+     * Returns "" once the session has ended. Only used when no MessageListener is set.
+     */
     public String receiveMessage() {
-        if (inSession() && !otherSocket.isClosed()) {
-            try {
-                String message = "";
-                message = otherIn.readUTF(); // Read in message from DataInputStream object associated with the TCP connection.
-                return message;
-            }
-            catch (Exception e) {
-                return "";
-            }
-        }  
-        return "";
+        ChatSession session = current;
+        return session == null ? "" : session.receive();
     }
 
-    // End the chat session. Takes care of closing all associated streams and connections.
+    // End the current session. The Client stays usable for further sessions.
     public boolean endSession() {
+        setAvailableStatus(otherUser); // Signal to the server that this Client is free to accept other connections.
+        /* Reset all chat-associated variables and close the connection as needed. */
+        ChatSession session = current;
+        current = null;
+        otherUser = "";
+        if (session != null)
+            session.close();
+        return true;
+    }
+
+    // Join a chat room relayed by the server. Messages from the room are delivered to the RoomListener.
+    public boolean joinRoom(String room) {
         try {
-            setAvailableStatus(); // Signal to the server that this Client is free to accept other connections.
-            /* Reset all chat-associated variables and close streams/sockets as needed. */
-            otherUser = ""; 
-            otherAddress = "";
-            otherPort = 0;
-            otherIn.close();
-            otherOut.close();
-            otherSocket.setSoTimeout(0);
-            otherSocket.close();
-            thisSocket.close();
-            return otherSocket.isClosed() && thisSocket.isClosed();
+            return control.request(new FrameWriter(Protocol.JOIN).string(room).string(thisUser)).get(TIMEOUT, TimeUnit.MILLISECONDS).isOk();
         } catch (Exception e) {
             return false;
         }
     }
 
+    // Leave a chat room.
+    public boolean leaveRoom(String room) {
+        try {
+            return control.request(new FrameWriter(Protocol.LEAVE).string(room).string(thisUser)).get(TIMEOUT, TimeUnit.MILLISECONDS).isOk();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Send a message to every other member of a chat room. Does not wait for the server to reply.
+    public boolean sendRoomMessage(String room, String message) {
+        if (control == null)
+            return false;
+        return control.send(new FrameWriter(Protocol.SAY, Protocol.NO_REPLY, message.length() + 32).string(room).string(thisUser).string(message));
+    }
+
+    // Set the listener that receives messages from the rooms this Client has joined.
+    public void setRoomListener(RoomListener listener) {
+        roomListener = listener;
+    }
+
+    /**
+     * Leave a message for another user through the server. If the user is online it is delivered at once, otherwise
+     * the server keeps it until they next connect. The future completes with true once the server has it, or false
+     * if the server cannot keep it.
+     */
+    public CompletableFuture<Boolean> leaveMessage(String toUser, String message) {
+        try {
+            return controlChannel().request(new FrameWriter(Protocol.STORE, Protocol.NO_REPLY, message.length() + 32).string(thisUser).string(toUser).string(message))
+                                   .thenApply(ServerReply::isOk).exceptionally(error -> false);
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Set the listener that receives messages left for this user with leaveMessage(). Until one is set the server
+     * keeps them, and it sends them once it is. Setting null asks the server to keep them again.
+     */
+    public void setOfflineListener(MessageListener listener) {
+        boolean changed;
+        synchronized (offlineInbox) {
+            changed = (offlineListener == null) != (listener == null);
+            offlineListener = listener;
+            String[] message;
+            while (listener != null && (message = offlineInbox.poll()) != null)
+                listener.onMessage(message[0], message[1]);
+        }
+        if (changed && control != null) // Tell the server, which sends whatever it kept in answer.
+            control.request(new FrameWriter(Protocol.RENEW).string(thisUser).varint(offlineFlag()));
+    }
+
+    // Helper method run on the loop for frames the server pushes without being asked: room messages and left messages.
+    private void onPush(FrameReader pushed) {
+        try {
+            if (pushed.opcode() == Protocol.ROOM) {
+                RoomListener listener = roomListener;
+                if (listener != null)
+                    listener.onRoomMessage(pushed.string(), pushed.string(), pushed.string());
+            }
+            else if (pushed.opcode() == Protocol.OFFLINE) {
+                String fromUser = pushed.string();
+                String message = pushed.string();
+                synchronized (offlineInbox) { // Held while delivering, so messages reach the listener in order.
+                    if (offlineListener != null)
+                        offlineListener.onMessage(fromUser, message);
+                    else
+                        offlineInbox.add(new String[] { fromUser, message }); // Sent before the server heard the listener was gone.
+                }
+            }
+        } catch (ProtocolException e) {
+            // Ignore malformed pushes.
+        } catch (RuntimeException e) {
+            // A failing listener must not take down the connection to the server.
+        }
+    }
+
+    // Close the connection to the server and every session. Call once this Client is no longer needed.
+    public void disconnect() {
+        disconnected = true;
+        engine.removeUser(this);
+        if (control != null)
+            control.close();
+        IOException reason = new IOException("Client disconnected");
+        for (CompletableFuture<ChatSession> result : new ArrayList<>(pendingSessions.values()))
+            result.completeExceptionally(reason);
+        pendingSessions.clear();
+        for (ChatSession session : sessions.values())
+            session.close();
+    }
+
 }
\ No newline at end of file
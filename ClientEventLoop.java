@@ -0,0 +1,203 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+public class ClientEventLoop extends Thread {
+    /**
+     * Class:   ClientEventLoop
+     * Purpose: Event loop that drives the connections of any number of Clients from one thread.
+     *          Accepts and completes connections, reads incoming frames as soon as they arrive, writes queued
+     *          output when sockets have room, and runs short tasks and timers, so a session needs no threads of its own.
+     * Usage:   ChatEngine runs a pool of these. Create one and start() it to drive connections by hand.
+     *          Work that touches a session's channel must run on the loop; hand it over with execute() or schedule().
+     */
+
+    private static final int MAX_TASKS_PER_PASS = 1024; // Tasks run between two looks at the sockets.
+
+    private final Selector selector;
+    private final Metrics metrics;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<ScheduledTask> timers = new PriorityQueue<>(); // Only touched on the loop thread.
+    private long timerSequence;
+    private volatile boolean running = true;
+
+    // Constructor opens the Selector. Call start() to run the loop.
+    public ClientEventLoop(String name) throws IOException {
+        this(name, new Metrics());
+    }
+
+    // Constructor opens the Selector, and counts the traffic of every connection on the loop in the given Metrics.
+    public ClientEventLoop(String name, Metrics metrics) throws IOException {
+        super(name);
+        this.metrics = metrics;
+        selector = Selector.open();
+        setDaemon(true);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Returns True if the calling thread is this loop's thread.
+    public boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    // Run a task on the loop thread. Safe to call from any thread.
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop())
+            selector.wakeup();
+    }
+
+    // Run a task on the loop thread after the given delay in nanoseconds. Safe to call from any thread.
+    public void schedule(Runnable task, long delayNanos) {
+        long due = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new ScheduledTask(due, timerSequence++, task)));
+    }
+
+    /**
+     * Start watching a channel that is connected, or has a non-blocking connect in progress. The channel is
+     * switched to non-blocking mode and the connection's handle methods are called on the loop thread from then on.
+     */
+    public void register(SocketChannel channel, FramedConnection connection) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                int ops = channel.isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ;
+                connection.setKey(channel.register(selector, ops, connection));
+            } catch (IOException e) {
+                connection.close();
+            }
+        });
+    }
+
+    // Start accepting connections on a listening channel. Each accepted channel is passed to onAccept on the loop thread.
+    public void listen(ServerSocketChannel channel, Consumer<SocketChannel> onAccept) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_ACCEPT, onAccept);
+            } catch (IOException e) {
+            }
+        });
+    }
+
+    // Stop the loop and close every connection it is watching.
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // Implementation of Thread.run()
+    public void run() {
+        while (running) {
+            try {
+                long timeout = 0; // Block until woken, unless a timer is due sooner.
+                ScheduledTask next = timers.peek();
+                if (next != null)
+                    timeout = Math.max(1, (next.due - System.nanoTime()) / 1_000_000);
+                if (tasks.isEmpty())
+                    selector.select(timeout);
+                else
+                    selector.selectNow();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!(key.attachment() instanceof FramedConnection)) {
+                        if (key.isValid() && key.isAcceptable())
+                            accept(key);
+                        continue;
+                    }
+                    FramedConnection connection = (FramedConnection) key.attachment();
+                    if (key.isValid() && key.isConnectable())
+                        connection.handleConnectable();
+                    if (key.isValid() && key.isReadable())
+                        connection.handleReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.handleWritable();
+                }
+                runTasks();
+                runTimers();
+            } catch (ClosedChannelException e) {
+                // The connection has already been cleaned up.
+            } catch (Exception e) {
+                // Keep the loop alive for every other session.
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof FramedConnection)
+                ((FramedConnection) key.attachment()).close();
+            else
+                key.cancel();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    // Helper method to accept every pending connection on a listening channel.
+    @SuppressWarnings("unchecked")
+    private void accept(SelectionKey key) throws IOException {
+        Consumer<SocketChannel> onAccept = (Consumer<SocketChannel>) key.attachment();
+        SocketChannel channel;
+        while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null)
+            onAccept.accept(channel);
+    }
+
+    // Helper method to run the tasks handed over by other threads. Stops after a batch so busy senders can't starve reads.
+    private void runTasks() {
+        Runnable task;
+        for (int run = 0; run < MAX_TASKS_PER_PASS && (task = tasks.poll()) != null; run++) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // One failing task must not stop the others.
+            }
+        }
+    }
+
+    // Helper method to run every timer that is due.
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().due - now <= 0) {
+            try {
+                timers.poll().task.run();
+            } catch (RuntimeException e) {
+            }
+        }
+    }
+
+    // A task waiting for its time to run. The sequence number keeps tasks due at the same time in order.
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        final long due;
+        final long sequence;
+        final Runnable task;
+
+        ScheduledTask(long due, long sequence, Runnable task) {
+            this.due = due;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        public int compareTo(ScheduledTask other) {
+            int order = Long.compare(due - other.due, 0);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class Cluster {
+    /**
+     * Class:   Cluster
+     * Purpose: The set of Servers that split one waiting list. Registrations stay on the Server each Client talks
+     *          to, since it holds the Client's connection. Every pair of users is owned by exactly one node,
+     *          chosen by consistent hashing of the two usernames, and that node alone holds the pair's waiting
+     *          CONNECT requests. Other nodes forward CONNECTs for the pair to it over a ControlChannel, so two users
+     *          whose Clients talk to different Servers still meet. Each node sits at many points on the hash ring,
+     *          so pairs are spread evenly and adding a node only moves the pairs that land on it.
+     *          A node that cannot be reached is skipped for a while, and its pairs go to the next node on the ring.
+     * Usage:   Every Server in the cluster is given the same list of node addresses, e.g. with
+     *          "--cluster host1:1600,host2:1600". Pass the Cluster to Server.setCluster() before start().
+     */
+
+    private static final int VIRTUAL_NODES = 160;    // Points on the ring per node.
+    private static final long RETRY_DELAY = 5 * 1000; // How long an unreachable node is skipped, in ms.
+
+    private final Node[] nodes;
+    private final int self;
+    private final long[] ring;  // Sorted hash points
+    private final int[] owners; // Node index at each point of the ring
+    private final ClientEventLoop loop;
+    private volatile TlsContext tls; // For connections to the other nodes, or null for plain TCP
+
+    /**
+     * Constructor accepts the address of every node, as "host:port", and the index of this Server in that list.
+     * Every node must be given the list in the same order.
+     */
+    public Cluster(List<String> addresses, int self) throws IOException {
+        if (self < 0 || self >= addresses.size())
+            throw new IllegalArgumentException("This server is not in the cluster list");
+        this.self = self;
+        nodes = new Node[addresses.size()];
+        long[][] points = new long[nodes.length * VIRTUAL_NODES][];
+        for (int i = 0; i < nodes.length; i++) {
+            String[] address = addresses.get(i).trim().split(":");
+            nodes[i] = new Node(address[0], Integer.parseInt(address[1]));
+            for (int v = 0; v < VIRTUAL_NODES; v++)
+                points[i * VIRTUAL_NODES + v] = new long[] { hash(address[0] + ":" + address[1] + "#" + v), i };
+        }
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        ring = new long[points.length];
+        owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ring[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+        loop = new ClientEventLoop("cluster-loop");
+        loop.start();
+    }
+
+    /**
+     * Build a Cluster from a comma separated list of "host:port" addresses. This Server is the entry with the given
+     * port whose host is one of this machine's addresses.
+     */
+    public static Cluster parse(String list, int port) throws IOException {
+        List<String> addresses = Arrays.asList(list.split(","));
+        for (int i = 0; i < addresses.size(); i++) {
+            String[] address = addresses.get(i).trim().split(":");
+            if (Integer.parseInt(address[1]) == port && isLocal(address[0]))
+                return new Cluster(addresses, i);
+        }
+        throw new IllegalArgumentException("No entry in " + list + " is this server on port " + port);
+    }
+
+    // Connect to the other nodes with TLS. Called by the Server when it uses TLS itself.
+    void setTls(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    // Number of nodes in the cluster.
+    public int size() {
+        return nodes.length;
+    }
+
+    // Return the host name of every other node.
+    public List<String> getPeerHosts() {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < nodes.length; i++) {
+            if (i != self)
+                hosts.add(nodes[i].host);
+        }
+        return hosts;
+    }
+
+    // Index of this Server in the node list.
+    public int getSelf() {
+        return self;
+    }
+
+    // Return the key a pair of users is hashed by. The same for both orders of the two names.
+    public static String pairKey(String user, String otherUser) {
+        return user.compareTo(otherUser) <= 0 ? user + '\n' + otherUser : otherUser + '\n' + user;
+    }
+
+    /**
+     * Return the index of the node that owns a key: the first node at or after the key's hash on the ring,
+     * skipping nodes that recently could not be reached.
+     */
+    public int owner(String key) {
+        int i = Arrays.binarySearch(ring, hash(key));
+        if (i < 0)
+            i = -i - 1;
+        long now = System.currentTimeMillis();
+        for (int step = 0; step < ring.length; step++) {
+            int node = owners[(i + step) % ring.length];
+            if (node == self || nodes[node].downUntil <= now)
+                return node;
+        }
+        return self;
+    }
+
+    /**
+     * Send a request to another node. The future completes with that node's reply, or exceptionally if it cannot
+     * be reached, in which case the node is skipped by owner() for a while.
+     */
+    public CompletableFuture<ServerReply> request(int node, FrameWriter frame) {
+        Node target = nodes[node];
+        try {
+            return target.channel().request(frame).whenComplete((reply, error) -> {
+                if (error != null)
+                    target.downUntil = System.currentTimeMillis() + RETRY_DELAY;
+            });
+        } catch (IOException e) {
+            target.downUntil = System.currentTimeMillis() + RETRY_DELAY;
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Send a request to another node without waiting for a reply. Returns false if the node cannot be reached.
+    public boolean send(int node, FrameWriter frame) {
+        try {
+            return nodes[node].channel().send(frame);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Close the connections to the other nodes.
+    public void close() {
+        for (Node node : nodes) {
+            ControlChannel channel = node.channel;
+            if (channel != null)
+                channel.close();
+        }
+        loop.shutdown();
+    }
+
+    /**
+     * Helper method to hash a string onto the ring. 64-bit FNV-1a over the UTF-8 bytes, followed by a final mix
+     * so that keys differing only in their last characters still land far apart.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    // Helper method to tell whether a host name refers to this machine.
+    private static boolean isLocal(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Class:   Node
+     * Purpose: One other Server in the cluster, and the connection used to forward requests to it.
+     *          The connection is opened on first use and opened again after it is lost.
+     */
+    private class Node {
+        private final String host;
+        private final int port;
+        private volatile ControlChannel channel;
+        private volatile long downUntil; // Time in ms until which owner() skips this node.
+
+        Node(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // Return an open connection to the node, opening a new one if needed.
+        ControlChannel channel() throws IOException {
+            ControlChannel current = channel;
+            if (current != null && current.isOpen())
+                return current;
+            synchronized (this) {
+                if (channel == null || !channel.isOpen())
+                    channel = new ControlChannel(host, port, loop, tls);
+                return channel;
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class Compression {
+    /**
+     * Class:   Compression
+     * Purpose: Compresses the messages of one chat session, in whichever mode this end asked for and the other
+     *          end can decode:
+     *              STREAM      every message is the next part of one deflate stream that lasts the whole session,
+     *                          flushed at the end of each message. Each message is coded against the last 32 KB of
+     *                          earlier ones, so repetitive traffic such as bot output or log lines shrinks the most.
+     *              DICTIONARY  every message is a zlib stream of its own, primed with a dictionary both ends share.
+     *                          Short, unrelated messages still find matches in the dictionary, and nothing is kept
+     *                          between messages, so a session holds no compressor of its own.
+     *          Messages shorter than the threshold, in characters, are sent as plain MESSAGE frames, since the
+     *          frame overhead would eat what little they save. Both ends list the modes they can decode in
+     *          PEER_HELLO; until the other end's has arrived, every message goes out plain.
+     *
+     *          Deflaters and Inflaters cost a few hundred KB of native memory each, so they come from pools
+     *          shared by every session in the process. A DICTIONARY message borrows one for the length of a call;
+     *          a STREAM session takes its pair on its first large message and gives them back when it closes.
+     * Usage:   Created by a ChatSession. Choose a mode with setMode(). send() is safe from any thread; decode()
+     *          and close() are called on the session's loop thread.
+     */
+
+    public static final int NONE = 0;
+    public static final int STREAM = 1;
+    public static final int DICTIONARY = 2;
+    public static final int DEFAULT_THRESHOLD = 64;   // Shortest message, in characters, that is compressed
+    private static final int MAX_POOLED = 64;         // Idle compressors kept of each kind
+    private static final int MAX_MESSAGE = Protocol.MAX_MESSAGE; // Largest message a compressed frame may expand to
+    private static final int FIRST_OUTPUT = 1024;     // Bytes first set aside to inflate a message into, doubled as it grows
+
+    // Fragments common in chat and machine-generated messages. Deflate reaches back further for the earlier bytes,
+    // so the most common ones come last.
+    private static final byte[] BUILT_IN_DICTIONARY = ("{\"type\":\"event\",\"id\":\"\",\"user\":\"\",\"name\":\"\",\"value\":"
+        + "\"status\":\"ok\",\"error\":null,\"message\":\"\",\"data\":{},\"items\":[],\"count\":0,\"timestamp\":\"20"
+        + "http://https://www.com/api/v1/ .json .html .png .jpg GET POST PUT DELETE 200 OK 404 Not Found 500 "
+        + "Exception: java.lang.NullPointerException at java. Caused by: ms seconds minutes bytes KB MB requests "
+        + "TRACE DEBUG INFO  WARN  ERROR FATAL [main] [worker- started stopped finished failed retrying connected "
+        + "disconnected timeout completed processed received sent queue user= id= status= duration= latency= "
+        + "thank you thanks please sorry yes no okay ok sure great good morning good night see you later "
+        + "what when where why how who is are was were will would could should can can't don't I'm it's that's "
+        + "hello hi hey lol haha :) :( :D the and for you with this that have from they not but all "
+        + "2022-01-01T00:00:00.000Z 2022-01-01 00:00:00,000 ").getBytes(StandardCharsets.UTF_8);
+
+    private static final Pool<Deflater> STREAM_DEFLATERS = new Pool<>(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true), Deflater::end);
+    private static final Pool<Inflater> STREAM_INFLATERS = new Pool<>(() -> new Inflater(true), Inflater::end);
+    private static final Pool<Deflater> DICTIONARY_DEFLATERS = new Pool<>(Deflater::new, Deflater::end);
+    private static final Pool<Inflater> DICTIONARY_INFLATERS = new Pool<>(Inflater::new, Inflater::end);
+
+    private final FramedConnection connection;
+    private volatile int mode = NONE;                // Mode this end sends in, if the other end can decode it
+    private volatile int threshold = DEFAULT_THRESHOLD;
+    private volatile byte[] dictionary = BUILT_IN_DICTIONARY;
+    private volatile long dictionaryId = dictionaryId(BUILT_IN_DICTIONARY);
+    private volatile int peerDecoders;               // Modes the other end can decode, from its PEER_HELLO
+    private volatile long peerDictionaryId;
+    private Deflater streamDeflater;                 // Taken on the first STREAM message. Guarded by this.
+    private byte[] streamOutput = new byte[1024];    // Guarded by this.
+    private boolean closed;                          // Guarded by this.
+    private Inflater streamInflater;                 // Loop thread only.
+    private final LongAdder compressed;
+    private final LongAdder plainBytes;
+    private final LongAdder compressedBytes;
+
+    // Constructor accepts the connection the session's messages go over.
+    Compression(FramedConnection connection) {
+        this.connection = connection;
+        Metrics metrics = connection.getLoop().getMetrics();
+        compressed = metrics.counter("client_messages_compressed");
+        plainBytes = metrics.counter("client_compressed_bytes_before");
+        compressedBytes = metrics.counter("client_compressed_bytes_after");
+    }
+
+    /**
+     * Choose how this end compresses: NONE, STREAM or DICTIONARY, the shortest message in characters worth
+     * compressing, and the dictionary for DICTIONARY mode, or null for the built-in one. DICTIONARY mode is only
+     * used if the other end has the same dictionary, otherwise STREAM is used instead.
+     */
+    void setMode(int mode, int threshold, byte[] dictionary) {
+        this.dictionary = dictionary == null ? BUILT_IN_DICTIONARY : dictionary;
+        this.dictionaryId = dictionaryId(this.dictionary);
+        this.threshold = threshold;
+        this.mode = mode;
+    }
+
+    // Modes this end can decode, sent in PEER_HELLO.
+    int getDecoders() {
+        return STREAM | DICTIONARY;
+    }
+
+    // Identifies this end's dictionary, sent in PEER_HELLO.
+    long getDictionaryId() {
+        return dictionaryId;
+    }
+
+    // Record what the other end said it can decode in its PEER_HELLO.
+    void setPeer(int decoders, long dictionaryId) {
+        this.peerDictionaryId = dictionaryId;
+        this.peerDecoders = decoders;
+    }
+
+    // Queue a message on the connection, compressed if it is long enough and the other end can decode it.
+    CompletableFuture<Boolean> send(String message) {
+        int use = message.length() < threshold ? NONE : usableMode();
+        if (use == NONE)
+            return connection.send(plain(message));
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (use == DICTIONARY) {
+            ByteBuffer frame = packed(bytes);
+            return connection.send(frame != null ? frame : plain(message));
+        }
+        synchronized (this) { // Frames must reach the pipeline in the order the stream was written.
+            if (closed)
+                return CompletableFuture.completedFuture(false);
+            return connection.send(deflated(bytes));
+        }
+    }
+
+    // Decode a MESSAGE_DEFLATE or MESSAGE_DICT frame. Called on the loop thread, in the order frames arrive.
+    String decode(FrameReader frame) throws ProtocolException {
+        long length = frame.varint();
+        ByteBuffer input = frame.bytes();
+        if (length < 0 || length > MAX_MESSAGE)
+            throw new ProtocolException("Bad compressed message length: " + length);
+        try {
+            if (frame.opcode() == Protocol.MESSAGE_DEFLATE) {
+                if (streamInflater == null)
+                    streamInflater = STREAM_INFLATERS.take();
+                streamInflater.setInput(input);
+                return inflate(streamInflater, (int) length);
+            }
+            Inflater inflater = DICTIONARY_INFLATERS.take();
+            try {
+                inflater.setInput(input);
+                String message = inflate(inflater, (int) length);
+                if (!inflater.finished())
+                    throw new ProtocolException("Corrupt compressed message");
+                return message;
+            } finally {
+                inflater.reset();
+                DICTIONARY_INFLATERS.give(inflater);
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed message");
+        }
+    }
+
+    /**
+     * Helper method to inflate a message the frame says is length bytes. The output starts small and grows as the
+     * message comes out, so a short frame that claims a long message costs no more memory than it really inflates to.
+     */
+    private String inflate(Inflater inflater, int length) throws DataFormatException, ProtocolException {
+        byte[] output = new byte[Math.min(length + 1, FIRST_OUTPUT)]; // One spare byte, so a message longer than it claims shows up.
+        int count = 0;
+        while (true) {
+            if (count == output.length) {
+                if (count > length)
+                    break;
+                output = Arrays.copyOf(output, (int) Math.min(length + 1L, output.length * 2L));
+            }
+            int inflated = inflater.inflate(output, count, output.length - count);
+            count += inflated;
+            if (inflated > 0)
+                continue;
+            if (inflater.needsInput() || inflater.finished())
+                break;
+            if (!inflater.needsDictionary())
+                throw new ProtocolException("Corrupt compressed message");
+            if ((inflater.getAdler() & 0xFFFFFFFFL) != dictionaryId)
+                throw new ProtocolException("Compressed with a different dictionary");
+            inflater.setDictionary(dictionary);
+        }
+        if (count != length)
+            throw new ProtocolException("Compressed message has the wrong length");
+        return new String(output, 0, count, StandardCharsets.UTF_8);
+    }
+
+    // Give the session's compressors back to the pools. Called once the connection has closed.
+    void close() {
+        synchronized (this) {
+            closed = true;
+            if (streamDeflater != null) {
+                streamDeflater.reset();
+                STREAM_DEFLATERS.give(streamDeflater);
+                streamDeflater = null;
+            }
+        }
+        if (streamInflater != null) {
+            streamInflater.reset();
+            STREAM_INFLATERS.give(streamInflater);
+            streamInflater = null;
+        }
+    }
+
+    // Helper method to pick the mode to send in, given what the other end can decode.
+    private int usableMode() {
+        int wanted = mode;
+        int decoders = peerDecoders;
+        if (wanted == DICTIONARY && (decoders & DICTIONARY) != 0 && peerDictionaryId == dictionaryId)
+            return DICTIONARY;
+        if (wanted != NONE && (decoders & STREAM) != 0)
+            return STREAM;
+        return NONE;
+    }
+
+    // Helper method to build a plain MESSAGE frame.
+    private static ByteBuffer plain(String message) {
+        return new FrameWriter(Protocol.MESSAGE, Protocol.NO_REPLY, message.length()).string(message).toBuffer();
+    }
+
+    // Helper method to add a message to the session's deflate stream and build its frame. Called holding the lock.
+    private ByteBuffer deflated(byte[] bytes) {
+        if (streamDeflater == null)
+            streamDeflater = STREAM_DEFLATERS.take();
+        streamDeflater.setInput(bytes);
+        int count = 0;
+        while (true) {
+            count += streamDeflater.deflate(streamOutput, count, streamOutput.length - count, Deflater.SYNC_FLUSH);
+            if (count < streamOutput.length)
+                break;
+            streamOutput = Arrays.copyOf(streamOutput, streamOutput.length * 2); // Filled the buffer, so there may be more.
+        }
+        count(bytes.length, count);
+        return new FrameWriter(Protocol.MESSAGE_DEFLATE, Protocol.NO_REPLY, count + 10).varint(bytes.length)
+                   .bytes(ByteBuffer.wrap(streamOutput, 0, count)).toBuffer();
+    }
+
+    // Helper method to compress a message on its own with the dictionary. Returns null if that does not make it smaller.
+    private ByteBuffer packed(byte[] bytes) {
+        Deflater deflater = DICTIONARY_DEFLATERS.take();
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] output = new byte[bytes.length];
+            int count = deflater.deflate(output);
+            if (!deflater.finished() || count >= bytes.length)
+                return null;
+            count(bytes.length, count);
+            return new FrameWriter(Protocol.MESSAGE_DICT, Protocol.NO_REPLY, count + 10).varint(bytes.length)
+                       .bytes(ByteBuffer.wrap(output, 0, count)).toBuffer();
+        } finally {
+            deflater.reset();
+            DICTIONARY_DEFLATERS.give(deflater);
+        }
+    }
+
+    // Helper method to count a compressed message.
+    private void count(int before, int after) {
+        compressed.increment();
+        plainBytes.add(before);
+        compressedBytes.add(after);
+    }
+
+    // Helper method to identify a dictionary the way zlib does, so a receiver can check it has the right one.
+    private static long dictionaryId(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return adler.getValue();
+    }
+
+    /**
+     * Class:   Pool
+     * Purpose: Idle compressors of one kind, shared by every session. Ones beyond MAX_POOLED are ended instead.
+     */
+    private static class Pool<T> {
+        private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final Supplier<T> factory;
+        private final Consumer<T> end;
+
+        Pool(Supplier<T> factory, Consumer<T> end) {
+            this.factory = factory;
+            this.end = end;
+        }
+
+        T take() {
+            T item = idle.poll();
+            if (item == null)
+                return factory.get();
+            size.decrementAndGet();
+            return item;
+        }
+
+        void give(T item) {
+            if (size.incrementAndGet() > MAX_POOLED) {
+                size.decrementAndGet();
+                end.accept(item);
+                return;
+            }
+            idle.add(item);
+        }
+    }
+}
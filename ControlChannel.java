@@ -0,0 +1,156 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class ControlChannel implements FrameHandler {
+    /**
+     * Class:   ControlChannel
+     * Purpose: Long-lived TCP connection from a Client to the Server that carries every control command.
+     *          Each request frame carries a request id so many requests can be in flight at once and replies can
+     *          arrive in any order. Frames the server pushes on its own, such as room messages, use request id 0.
+     *          The connection is driven by a ClientEventLoop, so thousands of channels need no threads of their own.
+     * Usage:   Create a ControlChannel with the server hostname and port, the loop to run on, and the TlsContext if
+     *          the server uses TLS, then call request() for each request. Call close() once the Client no longer
+     *          needs the server.
+     */
+
+    private final FramedConnection connection;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, CompletableFuture<ServerReply>> pending = new ConcurrentHashMap<>();
+    private volatile Consumer<FrameReader> pushListener; // Receives frames the server sends without being asked.
+    private volatile boolean closed;
+    private volatile boolean busy; // Server said BUSY before closing the connection.
+
+    /**
+     * Constructor starts connecting to the server on the given loop. Requests made before the connection is up
+     * are queued; if it cannot be made they fail.
+     */
+    public ControlChannel(String serverDomain, int serverPort, ClientEventLoop loop) throws IOException {
+        this(serverDomain, serverPort, loop, null);
+    }
+
+    /**
+     * Constructor starts connecting to the server on the given loop, over TLS if given a TlsContext. The server's
+     * certificate must name serverDomain. A later channel to the same server resumes the TLS session.
+     */
+    public ControlChannel(String serverDomain, int serverPort, ClientEventLoop loop, TlsContext tls) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(serverDomain, serverPort)); // Open TCP connection to server, finished by the loop.
+        } catch (UnresolvedAddressException e) {
+            channel.close();
+            throw new UnknownHostException(serverDomain);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        connection = new FramedConnection(channel, loop, this, tls == null ? null : tls.client(channel, serverDomain, serverPort, true, loop.getMetrics()));
+        connection.setPeerName("server");
+        connection.start();
+    }
+
+    // Returns True while the connection to the server is open.
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // Return the loop the connection runs on. Replies and pushed frames are handled on its thread.
+    public ClientEventLoop getLoop() {
+        return connection.getLoop();
+    }
+
+    /**
+     * Send a request to the server. The returned future completes with the server's reply,
+     * or completes exceptionally if the connection is lost first.
+     */
+    public CompletableFuture<ServerReply> request(FrameWriter frame) {
+        CompletableFuture<ServerReply> reply = new CompletableFuture<>();
+        int id = nextId.getAndUpdate(current -> current == Integer.MAX_VALUE ? 1 : current + 1); // Never hand out NO_REPLY.
+        pending.put(id, reply);
+        if (closed) { // Checked after adding, so either this or onClose() fails the request.
+            if (pending.remove(id) != null)
+                reply.completeExceptionally(new IOException("Control channel is closed"));
+            return reply;
+        }
+        connection.send(frame.setRequestId(id).toBuffer()); // A failed write closes the connection, which fails the request.
+        return reply;
+    }
+
+    // Send a request that does not need a reply. Returns false if the connection is already lost.
+    public boolean send(FrameWriter frame) {
+        if (closed)
+            return false;
+        connection.send(frame.setRequestId(Protocol.NO_REPLY).toBuffer()); // Request id 0 tells the server not to reply.
+        return true;
+    }
+
+    /**
+     * Set the listener for frames pushed by the server, such as chat room messages.
+     * Called on the loop thread. The FrameReader is only valid until the listener returns.
+     */
+    public void setPushListener(Consumer<FrameReader> pushListener) {
+        this.pushListener = pushListener;
+    }
+
+    // Close the connection to the server. Any command still waiting for a reply fails.
+    public void close() {
+        connection.close();
+        failPending();
+    }
+
+    /**
+     * Called on the event loop for each frame from the server. Matches each reply to the request that caused it.
+     * Part of FrameHandler; not meant to be called directly.
+     */
+    public void onFrame(FramedConnection connection, FrameReader reader) throws IOException {
+        if (reader.requestId() == Protocol.NO_REPLY) { // Pushed by the server, not a reply.
+            if (reader.opcode() == Protocol.BUSY) { // Connection was not admitted and is about to close.
+                busy = true;
+                return;
+            }
+            Consumer<FrameReader> listener = pushListener;
+            try {
+                if (listener != null)
+                    listener.accept(reader);
+            } catch (RuntimeException e) {
+                // A failing listener must not take down the connection.
+            }
+            return;
+        }
+        CompletableFuture<ServerReply> reply = pending.remove(reader.requestId());
+        if (reply == null)
+            return;
+        if (reader.opcode() == Protocol.ADDRESS || reader.opcode() == Protocol.ACCEPT)
+            reply.complete(new ServerReply(reader.opcode(), reader.string(), (int) reader.varint()));
+        else
+            reply.complete(new ServerReply(reader.opcode(), null, 0));
+    }
+
+    // Called on the event loop once the connection to the server has closed. Part of FrameHandler.
+    public void onClose(FramedConnection connection) {
+        failPending();
+    }
+
+    // Helper method to fail every request still waiting for a reply.
+    private void failPending() {
+        closed = true;
+        IOException reason = new IOException(busy ? "Server is busy" : "Control channel is closed");
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<ServerReply> reply = pending.remove(id);
+            if (reply != null)
+                reply.completeExceptionally(reason);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.nio.file.Path;
+
+public interface FileListener {
+    /**
+     * Interface: FileListener
+     * Purpose:   Decide where files offered by the other Client in a chat session are saved, and find out once
+     *            each one has arrived.
+     * Usage:     Implement both methods and pass the listener to Client.setFileListener() or
+     *            ChatSession.setFileListener(). Called on the ClientEventLoop thread, so implementations should
+     *            return quickly.
+     */
+
+    /**
+     * Called when the other user offers a file. The name is whatever the sender chose, so it must not be used
+     * as a path without checking it, and neither is the size, which the sender also chose. Return where to save
+     * the file, or null to decline it. A path where a file already exists is declined rather than overwritten.
+     * If a partial copy from an earlier, interrupted transfer of the same file is next to that path, the transfer
+     * carries on from it. The partial copy is the path with ".part" added, and ".part.id" names the file it holds.
+     */
+    Path onOffer(String fromUser, String name, long size);
+
+    // Called once the file has arrived whole, and it and every chunk have passed their checksums.
+    void onReceived(String fromUser, Path file);
+}
@@ -0,0 +1,491 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+public class FileTransfers {
+    /**
+     * Class:   FileTransfers
+     * Purpose: Sends and receives files over one chat session, on the same connection as its messages.
+     *
+     *          The sender offers a file with FILE_OFFER and the receiver answers FILE_ACCEPT with the offset to
+     *          start from, which is past whatever a partial copy from an earlier attempt already holds. The file
+     *          then goes out in chunks of Protocol.FILE_CHUNK bytes, each a FILE_DATA frame carrying the chunk's
+     *          CRC32C followed by the raw bytes, copied from disk to the socket with FileChannel.transferTo().
+     *          The next chunk is only queued once the last one has been written, so messages sent meanwhile go
+     *          out between chunks. The receiver answers each good chunk with FILE_ACK, and the sender stops once
+     *          Protocol.FILE_WINDOW bytes are unacknowledged, so a message never queues behind more than that in
+     *          the socket buffers either.
+     *
+     *          The receiver reads each chunk into a direct buffer and writes it straight to a ".part" file next to
+     *          where the file is to be saved, checking the CRC as it goes. A chunk that fails its check is cut off
+     *          again and asked for once more with another FILE_ACCEPT; chunks already on their way are skipped.
+     *          Once every byte has arrived the whole ".part" file is checked against the CRC32C in the offer, then
+     *          renamed, and the receiver sends FILE_DONE. A file that fails the check is deleted and declined.
+     *          Neither side holds more than one chunk's worth of anything in memory, whatever the file's size.
+     *
+     *          The offer names the file by its size, when it was last changed and its whole CRC32C, and the receiver
+     *          keeps that in a ".part.id" file beside the ".part". A later offer only carries on from the ".part"
+     *          if it names the same file; otherwise the receiver starts again from nothing. A ".part" file that an
+     *          earlier offer is still writing is never shared, so that offer is declined.
+     *          Checksumming whole files runs on task threads of its own rather than on the event loop.
+     * Usage:   Created by a ChatSession, which hands it the FILE_ frames. All state is only touched on the
+     *          session's loop thread.
+     */
+
+    private static final long MAP_WINDOW = 64L << 20; // Bytes of a file mapped at a time to checksum it
+    private static final Set<Path> RECEIVING = ConcurrentHashMap.newKeySet(); // ".part" files being written, by every session in the process
+    private static final ExecutorService CHECKS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "file-checks");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ByteSink DISCARD = new ByteSink() { // Takes the bytes of chunks nobody is waiting for.
+        public void write(ByteBuffer bytes) {
+        }
+
+        public void end() {
+        }
+    };
+
+    private final ChatSession session;
+    private final FramedConnection connection;
+    private final Map<Long, Outgoing> outgoing = new HashMap<>();
+    private final Map<Long, Incoming> incoming = new HashMap<>();
+    private long nextId = 1;
+    private volatile FileListener listener;
+    private final LongAdder filesSent;
+    private final LongAdder filesReceived;
+    private final LongAdder fileBytesSent;
+    private final LongAdder fileBytesReceived;
+    private final LongAdder checksumErrors;
+
+    // Constructor accepts the session the files belong to.
+    FileTransfers(ChatSession session, FramedConnection connection) {
+        this.session = session;
+        this.connection = connection;
+        Metrics metrics = connection.getLoop().getMetrics();
+        filesSent = metrics.counter("client_files_sent");
+        filesReceived = metrics.counter("client_files_received");
+        fileBytesSent = metrics.counter("client_file_bytes_sent");
+        fileBytesReceived = metrics.counter("client_file_bytes_received");
+        checksumErrors = metrics.counter("client_errors{type=\"checksum\"}");
+    }
+
+    void setListener(FileListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Offer a file to the other user and send it once they accept. Safe to call from any thread.
+     * The future completes with true once the other user has the whole file, or false if they decline it, the
+     * file cannot be read, or the session ends first. The file is read once to checksum it before it is offered.
+     * Sending the same file again after a failure carries on where the last attempt stopped, if it is unchanged.
+     */
+    CompletableFuture<Boolean> send(Path file) {
+        Outgoing out;
+        long modified;
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            out = new Outgoing(channel, channel.size());
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return CompletableFuture.completedFuture(false);
+        }
+        String name = file.getFileName().toString();
+        CHECKS.execute(() -> {
+            long crc;
+            try {
+                crc = checksum(out.channel, out.size);
+            } catch (IOException e) {
+                out.finish(false);
+                return;
+            }
+            connection.getLoop().execute(() -> {
+                if (connection.isClosed()) { // onClose() has been or is about to be run, and would miss this one.
+                    out.finish(false);
+                    return;
+                }
+                out.id = nextId++;
+                outgoing.put(out.id, out);
+                connection.send(new FrameWriter(Protocol.FILE_OFFER).varint(out.id).string(name).varint(out.size)
+                                    .varint(Math.max(modified, 0)).varint(crc).toBuffer());
+            });
+        });
+        return out.done;
+    }
+
+    // Handle one FILE_ frame from the other user. Called on the loop thread by the ChatSession.
+    void onFrame(FrameReader frame) throws IOException {
+        long id = frame.varint();
+        switch (frame.opcode()) {
+            case Protocol.FILE_OFFER: {
+                String name = frame.string();
+                long size = frame.varint();
+                long modified = frame.hasField() ? frame.varint() : -1; // -1 if the sender does not say, so nothing is resumed.
+                long crc = frame.hasField() ? frame.varint() : -1;
+                offered(id, name, size, modified, crc);
+                break;
+            }
+            case Protocol.FILE_ACCEPT: {
+                Outgoing out = outgoing.get(id);
+                if (out == null)
+                    break;
+                out.next = Math.min(frame.varint(), out.size);
+                out.acked = out.next;
+                if (!out.sending)
+                    sendChunk(out);
+                break;
+            }
+            case Protocol.FILE_ACK: {
+                Outgoing out = outgoing.get(id);
+                if (out == null)
+                    break;
+                out.acked = Math.max(out.acked, Math.min(frame.varint(), out.next));
+                if (!out.sending)
+                    sendChunk(out);
+                break;
+            }
+            case Protocol.FILE_DATA: {
+                long offset = frame.varint();
+                long length = frame.varint();
+                long crc = frame.varint();
+                Incoming in = incoming.get(id);
+                if (in == null || offset != in.expected || length > in.size - offset) { // Cancelled, stale after a bad chunk, or nonsense.
+                    connection.readRaw(length, DISCARD);
+                    break;
+                }
+                in.startChunk(crc);
+                connection.readRaw(length, in);
+                break;
+            }
+            case Protocol.FILE_DONE: {
+                Outgoing out = outgoing.remove(id);
+                if (out != null) {
+                    filesSent.increment();
+                    out.finish(true);
+                }
+                break;
+            }
+            case Protocol.FILE_DECLINE: {
+                Outgoing out = outgoing.remove(id);
+                if (out != null)
+                    out.finish(false);
+                break;
+            }
+            case Protocol.FILE_CANCEL: {
+                Incoming in = incoming.remove(id);
+                if (in != null)
+                    in.close();
+                break;
+            }
+        }
+    }
+
+    // Fail every transfer still under way. Partial files are kept so a later transfer can carry on from them.
+    void close() {
+        for (Outgoing out : new ArrayList<>(outgoing.values()))
+            out.finish(false);
+        outgoing.clear();
+        for (Incoming in : incoming.values())
+            in.close();
+        incoming.clear();
+    }
+
+    /**
+     * Helper method to ask the FileListener about an offered file, and accept it from where any partial copy of
+     * the same file ends. modified and crc are -1 if the sender did not send them.
+     */
+    private void offered(long id, String name, long size, long modified, long crc) {
+        FileListener current = listener;
+        Path target = null;
+        try {
+            if (current != null)
+                target = current.onOffer(session.getOtherUser(), name, size);
+        } catch (RuntimeException e) {
+            // A failing listener declines the file.
+        }
+        if (target == null || Files.exists(target)) { // A file that is already there is never overwritten.
+            reply(Protocol.FILE_DECLINE, id);
+            return;
+        }
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        if (!RECEIVING.add(part)) { // Another offer is still writing it.
+            reply(Protocol.FILE_DECLINE, id);
+            return;
+        }
+        Incoming in;
+        try {
+            Path idFile = target.resolveSibling(target.getFileName() + ".part.id");
+            String identity = modified < 0 || crc < 0 ? null : size + " " + modified + " " + crc;
+            boolean same = identity != null && Files.exists(idFile) && Files.readString(idFile, StandardCharsets.UTF_8).equals(identity);
+            FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // The last chunk on disk may have been cut short by a crash, so it is always asked for again.
+            long offset = same && channel.size() > 0 ? (Math.min(channel.size(), size) - 1) / Protocol.FILE_CHUNK * Protocol.FILE_CHUNK : 0;
+            channel.truncate(offset);
+            if (identity == null)
+                Files.deleteIfExists(idFile);
+            else if (!same)
+                Files.writeString(idFile, identity, StandardCharsets.UTF_8);
+            in = new Incoming(id, channel, part, idFile, target, size, crc, offset);
+        } catch (IOException e) {
+            RECEIVING.remove(part);
+            reply(Protocol.FILE_DECLINE, id);
+            return;
+        }
+        incoming.put(id, in);
+        if (in.expected == size) // Nothing to send, such as an empty file.
+            in.complete();
+        else
+            connection.send(new FrameWriter(Protocol.FILE_ACCEPT).varint(id).varint(in.expected).toBuffer());
+    }
+
+    // Helper method to queue the next chunk of an outgoing file, or to wait for FILE_ACK or FILE_DONE if it can't go yet.
+    private void sendChunk(Outgoing out) {
+        if (out.next >= out.size || out.next - out.acked >= Protocol.FILE_WINDOW) {
+            out.sending = false;
+            return;
+        }
+        long position = out.next;
+        int length = (int) Math.min(Protocol.FILE_CHUNK, out.size - position);
+        long crc;
+        try {
+            crc = out.checksum(position, length);
+        } catch (IOException e) {
+            outgoing.remove(out.id);
+            reply(Protocol.FILE_CANCEL, out.id);
+            out.finish(false);
+            return;
+        }
+        out.sending = true;
+        out.next = position + length;
+        ByteBuffer header = new FrameWriter(Protocol.FILE_DATA).varint(out.id).varint(position).varint(length).varint(crc).toBuffer();
+        connection.getPipeline().submitFile(header, out.channel, position, length).thenAccept(sent -> {
+            out.sending = false;
+            if (!sent || out.finished) { // The session closed, or the transfer ended while the chunk was being written.
+                out.closeChannel();
+                return;
+            }
+            fileBytesSent.add(length);
+            sendChunk(out); // On the loop thread, straight after the chunk was written.
+        });
+    }
+
+    // Helper method to return the CRC32C of a whole file, read through mappings so the bytes never enter the heap.
+    private static long checksum(FileChannel channel, long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        for (long position = 0; position < size; position += MAP_WINDOW)
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+        return crc.getValue();
+    }
+
+    // Helper method to send a frame that only names a transfer.
+    private void reply(byte opcode, long id) {
+        connection.send(new FrameWriter(opcode).varint(id).toBuffer());
+    }
+
+    /**
+     * Class:   Outgoing
+     * Purpose: A file being sent, and how far it has got.
+     */
+    private static class Outgoing {
+        final FileChannel channel;
+        final long size;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        final CRC32C crc = new CRC32C();
+        long id;
+        long next;              // Offset of the next chunk to send
+        long acked;             // Bytes the receiver has confirmed
+        boolean sending;        // A chunk is queued, and the next one will follow once it is written
+        boolean finished;
+        MappedByteBuffer window; // Part of the file mapped for checksums
+        long windowStart;
+
+        Outgoing(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        // Return the CRC32C of part of the file, read through a mapping so the bytes never enter the heap.
+        long checksum(long position, int length) throws IOException {
+            if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+            }
+            crc.reset();
+            crc.update(window.slice((int) (position - windowStart), length));
+            return crc.getValue();
+        }
+
+        // End the transfer. The file stays open until a chunk being written has gone, since the pipeline reads from it.
+        void finish(boolean sent) {
+            finished = true;
+            window = null;
+            if (!sending)
+                closeChannel();
+            done.complete(sent);
+        }
+
+        void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Class:   Incoming
+     * Purpose: A file being received into its ".part" file. Takes each chunk's raw bytes from the connection.
+     */
+    private class Incoming implements ByteSink {
+        final long id;
+        final FileChannel channel;
+        final Path part;
+        final Path idFile;      // Names the file the ".part" belongs to
+        final Path target;
+        final long size;
+        final long fileCrc;     // CRC32C of the whole file, or -1 if the sender did not send one
+        final CRC32C crc = new CRC32C();
+        long expected;          // Bytes received and checked; the offset of the next chunk
+        long written;           // Bytes of the current chunk written so far
+        long chunkCrc;
+        boolean failed;         // Writing the current chunk to disk failed
+
+        Incoming(long id, FileChannel channel, Path part, Path idFile, Path target, long size, long fileCrc, long expected) {
+            this.id = id;
+            this.channel = channel;
+            this.part = part;
+            this.idFile = idFile;
+            this.target = target;
+            this.size = size;
+            this.fileCrc = fileCrc;
+            this.expected = expected;
+        }
+
+        void startChunk(long chunkCrc) {
+            this.chunkCrc = chunkCrc;
+            written = 0;
+            crc.reset();
+        }
+
+        // Part of ByteSink: check and write each run of the chunk as it arrives.
+        public void write(ByteBuffer bytes) {
+            if (failed)
+                return;
+            int start = bytes.position();
+            crc.update(bytes);
+            bytes.position(start);
+            try {
+                while (bytes.hasRemaining())
+                    written += channel.write(bytes, expected + written);
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+
+        // Part of ByteSink: the whole chunk has arrived.
+        public void end() {
+            if (failed) { // Most likely the disk is full; let the sender know rather than have it wait.
+                incoming.remove(id);
+                close();
+                reply(Protocol.FILE_DECLINE, id);
+                return;
+            }
+            if (crc.getValue() != chunkCrc) {
+                checksumErrors.increment();
+                try {
+                    channel.truncate(expected);
+                } catch (IOException e) {
+                }
+                connection.send(new FrameWriter(Protocol.FILE_ACCEPT).varint(id).varint(expected).toBuffer());
+                return;
+            }
+            expected += written;
+            fileBytesReceived.add(written);
+            if (expected == size)
+                complete();
+            else
+                connection.send(new FrameWriter(Protocol.FILE_ACK).varint(id).varint(expected).toBuffer());
+        }
+
+        // Check the whole file off the loop, then move it into place and tell both ends.
+        void complete() {
+            incoming.remove(id);
+            CHECKS.execute(() -> {
+                boolean good;
+                try {
+                    good = fileCrc < 0 || checksum(channel, size) == fileCrc;
+                } catch (IOException e) {
+                    good = false;
+                }
+                boolean checked = good;
+                connection.getLoop().execute(() -> checked(checked));
+            });
+        }
+
+        // Helper method run on the loop once the whole file has been checked.
+        private void checked(boolean good) {
+            try {
+                channel.close();
+                if (!good) {
+                    checksumErrors.increment();
+                    Files.deleteIfExists(part); // Not worth carrying on from: some of it is not the offered file.
+                }
+                else
+                    Files.move(part, target); // Fails rather than replace a file put there since the offer.
+            } catch (IOException e) {
+                good = false;
+            }
+            try {
+                if (good || !Files.exists(part))
+                    Files.deleteIfExists(idFile);
+            } catch (IOException e) {
+            }
+            RECEIVING.remove(part);
+            if (!good) {
+                reply(Protocol.FILE_DECLINE, id);
+                return;
+            }
+            filesReceived.increment();
+            reply(Protocol.FILE_DONE, id);
+            FileListener current = listener;
+            if (current != null) {
+                try {
+                    current.onReceived(session.getOtherUser(), target);
+                } catch (RuntimeException e) {
+                }
+            }
+        }
+
+        // Stop receiving, keeping only the bytes that have been checked.
+        void close() {
+            try {
+                channel.truncate(expected);
+                channel.close();
+            } catch (IOException e) {
+            }
+            RECEIVING.remove(part);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+
+public interface FrameHandler {
+    /**
+     * Interface: FrameHandler
+     * Purpose:   Receive the frames and the end of a FramedConnection.
+     * Usage:     Pass an implementation to the FramedConnection constructor. Both methods are called on the
+     *            ClientEventLoop thread, so implementations should return quickly.
+     */
+
+    // Called for each complete frame. The FrameReader is only valid until the method returns.
+    void onFrame(FramedConnection connection, FrameReader frame) throws IOException;
+
+    // Called once when the connection has closed, for any reason.
+    void onClose(FramedConnection connection);
+}
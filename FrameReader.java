@@ -0,0 +1,151 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class FrameReader {
+    /**
+     * Class:   FrameReader
+     * Purpose: Decode frames of the binary wire protocol described in Protocol directly from a ByteBuffer.
+     *          The reader only keeps offsets into the buffer, so finding frames and reading numeric fields
+     *          allocates nothing. Strings are only created for the fields a caller asks for.
+     * Usage:   while (reader.next(buffer)) { switch (reader.opcode()) { ... } reader.finish(); }
+     *          One FrameReader can be reused for every frame read on a connection.
+     */
+
+    private static final int HEADER = 6; // version, opcode and request id
+
+    private ByteBuffer buffer;
+    private int end;
+    private byte opcode;
+    private int requestId;
+    private int needed;
+
+    /**
+     * Look for a complete frame at the buffer's position. If there is one, move the buffer to the frame's
+     * first field and return true. Otherwise leave the buffer untouched and return false; needed() then says
+     * how many bytes the incomplete frame takes up.
+     */
+    public boolean next(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int index = start;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do { // Decode the varint length prefix.
+            if (index >= limit) {
+                needed = index - start + 1;
+                return false;
+            }
+            if (shift > 28)
+                throw new ProtocolException("Malformed frame length");
+            b = buffer.get(index++);
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (length < HEADER || length > Protocol.MAX_FRAME)
+            throw new ProtocolException("Bad frame length: " + length);
+        if (limit - index < length) {
+            needed = index - start + length;
+            return false;
+        }
+        if (buffer.get(index) != Protocol.VERSION)
+            throw new ProtocolException("Unsupported protocol version: " + buffer.get(index));
+        this.buffer = buffer;
+        opcode = buffer.get(index + 1);
+        requestId = buffer.getInt(index + 2);
+        end = index + length;
+        buffer.position(index + HEADER);
+        return true;
+    }
+
+    // Number of bytes the incomplete frame at the buffer's position needs, as of the last call to next().
+    public int needed() {
+        return needed;
+    }
+
+    public byte opcode() {
+        return opcode;
+    }
+
+    public int requestId() {
+        return requestId;
+    }
+
+    // Returns True if the current frame has fields left to read.
+    public boolean hasField() {
+        return buffer.position() < end;
+    }
+
+    // Read a varint field.
+    public long varint() throws ProtocolException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (buffer.position() >= end || shift > 63)
+                throw new ProtocolException("Malformed varint field");
+            b = buffer.get();
+            if (shift == 63 && (b & 0xFF) > 1)
+                throw new ProtocolException("Malformed varint field"); // A tenth byte only holds the top bit.
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    // Read a string field.
+    public String string() throws ProtocolException {
+        int length = fieldLength();
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            buffer.get(buffer.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // Read a length-prefixed field as a buffer sharing the frame's storage. Only valid until the frame is finished.
+    public ByteBuffer bytes() throws ProtocolException {
+        int length = fieldLength();
+        ByteBuffer value = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // Skip over a length-prefixed field without decoding it.
+    public void skip() throws ProtocolException {
+        int length = fieldLength();
+        buffer.position(buffer.position() + length);
+    }
+
+    // Copy a length-prefixed field into a frame being written, without decoding it.
+    public void copyField(FrameWriter out) throws ProtocolException {
+        int length = fieldLength();
+        out.bytes(buffer, buffer.position(), length);
+        buffer.position(buffer.position() + length);
+    }
+
+    // Move the buffer past the current frame, skipping any fields that were not read.
+    public void finish() {
+        buffer.position(end);
+    }
+
+    // Helper method to read a field's length and check it fits inside the frame.
+    private int fieldLength() throws ProtocolException {
+        long length = varint();
+        if (length < 0 || length > end - buffer.position())
+            throw new ProtocolException("Field runs past end of frame");
+        return (int) length;
+    }
+}
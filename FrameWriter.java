@@ -0,0 +1,173 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.nio.ByteBuffer;
+
+public class FrameWriter {
+    /**
+     * Class:   FrameWriter
+     * Purpose: Build a single frame of the binary wire protocol described in Protocol.
+     *          Strings are encoded straight into the frame as UTF-8, and the length prefix is filled in
+     *          in front of the body once it is known, so the frame is never copied while it is built.
+     * Usage:   new FrameWriter(Protocol.HELLO).string(user).string(host).varint(port).toBuffer()
+     */
+
+    private static final int PREFIX_ROOM = 5; // Space reserved for the largest varint length prefix.
+    private static final int HEADER = 6;      // version, opcode and request id
+
+    private ByteBuffer buffer;
+    private int start = -1; // First byte of the finished frame, set by toBuffer()
+
+    // Constructor for a frame that is not answered, such as a push or a session message.
+    public FrameWriter(byte opcode) {
+        this(opcode, Protocol.NO_REPLY, 64);
+    }
+
+    // Constructor for a frame tagged with a request id.
+    public FrameWriter(byte opcode, int requestId) {
+        this(opcode, requestId, 64);
+    }
+
+    // Constructor accepts the opcode, the request id, and a guess at the size of the fields in bytes.
+    public FrameWriter(byte opcode, int requestId, int sizeHint) {
+        buffer = ByteBuffer.allocate(PREFIX_ROOM + HEADER + Math.max(sizeHint, 16));
+        buffer.position(PREFIX_ROOM);
+        buffer.put(Protocol.VERSION).put(opcode).putInt(requestId);
+    }
+
+    public byte getOpcode() {
+        return buffer.get(PREFIX_ROOM + 1);
+    }
+
+    // Set the request id. Used by the ControlChannel, which numbers requests as it sends them.
+    public FrameWriter setRequestId(int requestId) {
+        buffer.putInt(PREFIX_ROOM + 2, requestId);
+        return this;
+    }
+
+    // Append a non-negative number as a varint field.
+    public FrameWriter varint(long value) {
+        ensure(10);
+        Protocol.putVarint(buffer, value);
+        return this;
+    }
+
+    // Append a string field as a varint length followed by its UTF-8 bytes.
+    public FrameWriter string(CharSequence value) {
+        int length = utf8Length(value);
+        ensure(5 + length);
+        Protocol.putVarint(buffer, length);
+        putUtf8(value);
+        return this;
+    }
+
+    // Append the remaining bytes of a buffer as a field, without decoding them.
+    public FrameWriter bytes(ByteBuffer value) {
+        return bytes(value, value.position(), value.remaining());
+    }
+
+    // Append length bytes of a buffer, starting at offset, as a field. Does not move the source buffer's position.
+    public FrameWriter bytes(ByteBuffer value, int offset, int length) {
+        ensure(5 + length);
+        Protocol.putVarint(buffer, length);
+        ByteBuffer source = value.duplicate();
+        source.limit(offset + length).position(offset);
+        buffer.put(source);
+        return this;
+    }
+
+    /**
+     * Finish the frame and return it as a heap buffer ready to be written.
+     * The buffer shares this writer's storage, so nothing is copied.
+     */
+    public ByteBuffer toBuffer() {
+        finish();
+        ByteBuffer frame = buffer.duplicate();
+        frame.position(start);
+        return frame;
+    }
+
+    // Finish the frame and return a copy of it in a direct buffer, for frames written to many sockets.
+    public ByteBuffer toDirectBuffer() {
+        ByteBuffer frame = toBuffer();
+        ByteBuffer direct = ByteBuffer.allocateDirect(frame.remaining());
+        direct.put(frame);
+        direct.flip();
+        return direct;
+    }
+
+    // Helper method to write the length prefix in front of the body. Safe to call more than once.
+    private void finish() {
+        if (start >= 0)
+            return;
+        int length = buffer.position() - PREFIX_ROOM;
+        start = PREFIX_ROOM - Protocol.varintSize(length);
+        int end = buffer.position();
+        buffer.position(start);
+        Protocol.putVarint(buffer, length);
+        buffer.position(end);
+        buffer.flip();
+    }
+
+    // Helper method to grow the buffer so that at least the given number of bytes fit.
+    private void ensure(int bytes) {
+        if (start >= 0)
+            throw new IllegalStateException("Frame already finished");
+        if (buffer.remaining() >= bytes)
+            return;
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    // Number of bytes a string takes up as UTF-8.
+    static int utf8Length(CharSequence value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80)
+                length += 1;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    // Helper method to encode a string as UTF-8 directly into the buffer. Unpaired surrogates become U+FFFD.
+    private void putUtf8(CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            }
+            else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            }
+            else if (Character.isSurrogate(c)) { // Keep the byte count that utf8Length() worked out: 3 bytes.
+                buffer.put((byte) 0xEF).put((byte) 0xBF).put((byte) 0xBD); // U+FFFD replacement character
+            }
+            else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
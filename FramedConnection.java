@@ -0,0 +1,368 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class FramedConnection {
+    /**
+     * Class:   FramedConnection
+     * Purpose: Non-blocking TCP connection that carries protocol frames, either between two Clients in a chat session
+     *          or from a Client to the Server. Driven by a ClientEventLoop. Decodes incoming frames as they arrive
+     *          and hands them to a FrameHandler, and writes outgoing frames through a SendPipeline.
+     *          If given a TlsChannel, every byte goes through it, and frames sent before its handshake has
+     *          finished wait for it.
+     * Usage:   Create a FramedConnection with a SocketChannel that is connected or connecting, and a TlsChannel
+     *          for it if the ChatEngine uses TLS, and call start().
+     *          Send frames with send() from any thread, and call close() to end the connection.
+     *          A FrameHandler can call readRaw() to take the bytes after a frame as they are, for bulk data.
+     */
+
+    private static final int RAW_BUFFER = 256 * 1024;
+
+    private final SocketChannel channel;
+    private final TlsChannel tls;       // Encrypts the connection, or null for plain TCP
+    private final ClientEventLoop loop;
+    private volatile FrameHandler handler;
+    private final SendPipeline pipeline;
+    private final FrameReader reader = new FrameReader();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private volatile SelectionKey key;
+    private boolean writeWanted;        // The pipeline is waiting for room in the socket
+    private boolean readQueued;         // A read of plaintext the TlsChannel has buffered is on its way
+    private ByteSink rawSink;           // Takes the raw bytes after the current frame, if any
+    private long rawRemaining;          // Raw bytes still to come before the next frame
+    private ByteBuffer rawBuffer;       // Direct buffer raw bytes are read into, allocated on first use
+    private volatile String peerName = ""; // Username of the Client at the other end, if known.
+    private final LongAdder bytesReceived;
+    private final LongAdder bytesSent;
+    private final LongAdder framesReceived;
+    private final LongAdder framesSent;
+    private final LongAdder protocolErrors;
+    private final LongAdder ioErrors;
+    private final LongAdder internalErrors;
+    private volatile IOException failure; // Why a connect failed, if it did
+
+    // Constructor accepts the channel, the loop that will drive it, and the handler for incoming frames.
+    public FramedConnection(SocketChannel channel, ClientEventLoop loop, FrameHandler handler) throws IOException {
+        this(channel, loop, handler, null);
+    }
+
+    // Constructor accepts the channel, the loop that will drive it, the handler for incoming frames, and the TlsChannel for the channel, or null for plain TCP.
+    public FramedConnection(SocketChannel channel, ClientEventLoop loop, FrameHandler handler, TlsChannel tls) throws IOException {
+        this.channel = channel;
+        this.tls = tls;
+        this.loop = loop;
+        this.handler = handler;
+        this.pipeline = new SendPipeline(this);
+        if (tls != null)
+            tls.setTaskCallback(() -> loop.execute(this::resumeHandshake));
+        Metrics metrics = loop.getMetrics();
+        bytesReceived = metrics.counter("client_bytes_received");
+        bytesSent = metrics.counter("client_bytes_sent");
+        framesReceived = metrics.counter("client_frames_received");
+        framesSent = metrics.counter("client_frames_sent");
+        protocolErrors = metrics.counter("client_errors{type=\"protocol\"}");
+        ioErrors = metrics.counter("client_errors{type=\"io\"}");
+        internalErrors = metrics.counter("client_errors{type=\"internal\"}");
+        channel.socket().setTcpNoDelay(true); // The pipeline does its own batching, so don't let TCP delay small writes too.
+    }
+
+    // Start reading and writing on the event loop.
+    public void start() {
+        loop.register(channel, this);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public ClientEventLoop getLoop() {
+        return loop;
+    }
+
+    public SendPipeline getPipeline() {
+        return pipeline;
+    }
+
+    // Hand incoming frames to a different handler from the next frame on. Used once a connection's purpose is known.
+    public void setHandler(FrameHandler handler) {
+        this.handler = handler;
+    }
+
+    public String getPeerName() {
+        return peerName;
+    }
+
+    public void setPeerName(String peerName) {
+        this.peerName = peerName;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    // Return why the connection failed, or null if it did not: a ConnectException when nothing listens at the address, or a ProtocolException when the other end sent something invalid.
+    public IOException getFailure() {
+        return failure;
+    }
+
+    // Queue a frame for the other Client. See SendPipeline.submit().
+    public CompletableFuture<Boolean> send(ByteBuffer frame) {
+        return pipeline.submit(frame);
+    }
+
+    /**
+     * Treat the next count bytes after the current frame as raw data and pass them to the sink, instead of
+     * decoding them as frames. Only call from FrameHandler.onFrame().
+     */
+    public void readRaw(long count, ByteSink sink) {
+        if (count <= 0) {
+            sink.end();
+            return;
+        }
+        rawSink = sink;
+        rawRemaining = count;
+    }
+
+    // Close the connection. Safe to call from any thread and more than once; the handler is told exactly once.
+    public void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        SelectionKey key = this.key;
+        if (key != null)
+            key.cancel(); // First, so the loop stops selecting the channel while another thread is closing it.
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        pipeline.close();
+        loop.execute(() -> {
+            if (tls != null)
+                tls.close(); // On the loop, which is the only thread that touches its buffers.
+            handler.onClose(this); // Always tell the handler from the loop thread.
+        });
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+        if (closed.get())
+            key.cancel();
+        else if (pipeline.hasPending() && channel.isConnected())
+            pipeline.flush(); // Frames may have been queued before the channel was registered.
+    }
+
+    // Turn interest in writability on or off. Called on the loop thread by the SendPipeline.
+    void setWriteInterest(boolean interested) {
+        writeWanted = interested;
+        updateInterest();
+    }
+
+    // Write from the buffers like a gathering SocketChannel.write(), through the TlsChannel if there is one. Called by the SendPipeline on the loop thread.
+    long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        if (tls == null)
+            return channel.write(buffers, offset, length);
+        long written = tls.write(buffers, offset, length);
+        updateInterest();
+        return written;
+    }
+
+    // Copy part of a file to the socket like FileChannel.transferTo(), or through the TlsChannel if there is one. Called by the SendPipeline on the loop thread.
+    long transferFile(FileChannel file, long position, long count) throws IOException {
+        if (tls == null)
+            return file.transferTo(position, count, channel);
+        long written = tls.transferFrom(file, position, count);
+        updateInterest();
+        return written;
+    }
+
+    // Helper method to watch for writability while the pipeline waits for room, or the TlsChannel has encrypted bytes to write.
+    private void updateInterest() {
+        if (key == null || !key.isValid())
+            return;
+        boolean write = tls == null ? writeWanted : tls.hasPendingOutput() || (writeWanted && !tls.isHandshaking());
+        int ops = write ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    // Returns True once the channel is registered with the loop and connected, so it can be written.
+    boolean isRegistered() {
+        return key != null && channel.isConnected();
+    }
+
+    // Called on the loop thread when a non-blocking connect has finished.
+    void handleConnectable() {
+        try {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            if (tls != null) { // This end speaks first.
+                tls.handshake();
+                updateInterest();
+            }
+            pipeline.flush(); // Send anything queued while the connection was being made.
+        } catch (IOException e) {
+            failure = e;
+            ioErrors.increment();
+            close();
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+            internalErrors.increment();
+            close();
+        }
+    }
+
+    // Called on the loop thread when the channel has data to read.
+    void handleReadable() {
+        try {
+            boolean handshaking = tls != null && tls.isHandshaking();
+            do {
+                if (!readFrames())
+                    return;
+            } while (tls != null && tls.hasBufferedInput() && !closed.get()); // Take everything the socket read gave, so none of it waits for another.
+            if (tls != null) {
+                if (handshaking && !tls.isHandshaking())
+                    pipeline.flush(); // Frames held back by the handshake can go now.
+                updateInterest();
+            }
+        } catch (Exception e) { // Including a handler that threw: the read buffer is left mid-frame, so the stream cannot go on.
+            if (e instanceof ProtocolException && failure == null)
+                failure = (ProtocolException) e;
+            countError(e);
+            close();
+        }
+    }
+
+    // Helper method to read once and hand over every whole frame read. Returns false if the connection has closed.
+    private boolean readFrames() throws IOException {
+        if (rawRemaining > 0) {
+            readRaw();
+            return !closed.get();
+        }
+        int count = read(readBuffer);
+        if (count < 0) { // Other Client closed the connection.
+            close();
+            return false;
+        }
+        bytesReceived.add(count);
+        readBuffer.flip();
+        int frames = 0;
+        while (rawRemaining == 0 && reader.next(readBuffer)) {
+            handler.onFrame(this, reader);
+            reader.finish();
+            frames++;
+            if (rawRemaining > 0)
+                passRaw(readBuffer); // Some of the raw bytes may have come in with the frame.
+        }
+        framesReceived.add(frames);
+        if (rawRemaining == 0 && reader.needed() > readBuffer.capacity()) { // Grow the buffer for a large frame.
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(reader.needed(), readBuffer.capacity() * 2));
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        else {
+            readBuffer.compact();
+        }
+        return true;
+    }
+
+    // Helper method to read raw bytes straight into a direct buffer and pass them on, so bulk data never lands on the heap.
+    private void readRaw() throws IOException {
+        if (rawBuffer == null)
+            rawBuffer = ByteBuffer.allocateDirect(RAW_BUFFER);
+        rawBuffer.clear();
+        rawBuffer.limit((int) Math.min(RAW_BUFFER, rawRemaining));
+        int count = read(rawBuffer);
+        if (count < 0) {
+            close();
+            return;
+        }
+        bytesReceived.add(count);
+        rawBuffer.flip();
+        passRaw(rawBuffer);
+    }
+
+    // Helper method to read from the channel, through the TlsChannel if there is one.
+    private int read(ByteBuffer buffer) throws IOException {
+        return tls == null ? channel.read(buffer) : tls.read(buffer);
+    }
+
+    // Helper method to hand the sink as many of the raw bytes still expected as the buffer holds.
+    private void passRaw(ByteBuffer source) {
+        int count = (int) Math.min(source.remaining(), rawRemaining);
+        if (count == 0)
+            return;
+        ByteBuffer bytes = source.slice(source.position(), count);
+        source.position(source.position() + count);
+        rawRemaining -= count;
+        ByteSink sink = rawSink;
+        if (rawRemaining == 0)
+            rawSink = null;
+        sink.write(bytes);
+        if (rawRemaining == 0)
+            sink.end();
+    }
+
+    // Called by the SendPipeline on the loop thread after each write.
+    void countSent(long bytes, int frames) {
+        bytesSent.add(bytes);
+        framesSent.add(frames);
+    }
+
+    // Called on the loop thread once the TLS handshake's slow steps have run on the task threads, to carry it on.
+    private void resumeHandshake() {
+        if (!closed.get())
+            handleWritable();
+    }
+
+    // Called on the loop thread when the channel has room for more output.
+    void handleWritable() {
+        if (tls != null) {
+            try {
+                boolean handshaking = tls.isHandshaking();
+                tls.flush();
+                if (handshaking && !tls.isHandshaking() && tls.hasBufferedInput() && !readQueued) { // Whatever came after the handshake was not read yet.
+                    readQueued = true;
+                    loop.execute(() -> {
+                        readQueued = false;
+                        if (!closed.get())
+                            handleReadable();
+                    });
+                }
+                updateInterest();
+            } catch (Exception e) {
+                countError(e);
+                close();
+                return;
+            }
+        }
+        try {
+            pipeline.flush();
+        } catch (RuntimeException e) {
+            countError(e);
+            close();
+        }
+    }
+
+    // Helper method to count the failure that is about to close the connection, by kind.
+    private void countError(Exception e) {
+        if (closed.get())
+            return; // Closed by another thread while the loop was using it, such as a cancelled key; not a new failure.
+        if (e instanceof ProtocolException)
+            protocolErrors.increment(); // The other end sent something that is not a valid frame.
+        else if (e instanceof IOException)
+            ioErrors.increment();
+        else
+            internalErrors.increment(); // A bug on our side, or a listener that threw.
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    /**
+     * Class:   LatencyHistogram
+     * Purpose: Lock-free histogram of non-negative values, usually latencies in nanoseconds. Values are counted in
+     *          log-linear buckets: every power of two is split into 32 sub-buckets, so any recorded value is
+     *          reported to within about 3%, with a fixed 15 KB footprint whatever the range or number of values.
+     * Usage:   Call record() from any number of threads. Read percentiles with valueAt(), or print summary().
+     */
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS; // Enough for every value up to Long.MAX_VALUE.
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Count one value. Negative values are counted as 0.
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value))
+            ; // Another thread raised the max first, check again.
+    }
+
+    // Number of values recorded.
+    public long getCount() {
+        return total.sum();
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Return the value below which the given percentage of recorded values fall, e.g. valueAt(99.0) for p99.
+     * The result is the upper end of the bucket the percentile lands in, capped at the largest recorded value.
+     */
+    public long valueAt(double percentile) {
+        long count = total.sum();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    // Forget every recorded value. Values recorded while resetting may be partly kept.
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    // One-line summary of the count and main percentiles, with values divided by the given scale (1000 for ns to us).
+    public String summary(double scale) {
+        return String.format("n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                             getCount(), getMean() / scale, valueAt(50) / scale, valueAt(90) / scale,
+                             valueAt(99) / scale, valueAt(99.9) / scale, getMax() / scale);
+    }
+
+    // Helper method to find the bucket a value is counted in.
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Helper method to return the largest value counted in a bucket.
+    private static long highestValue(int index) {
+        int bucket = index >>> SUB_BITS;
+        long sub = index & (SUB_BUCKETS - 1);
+        if (bucket == 0)
+            return sub;
+        long low = (SUB_BUCKETS + sub) << (bucket - 1);
+        return low + (1L << (bucket - 1)) - 1;
+    }
+}
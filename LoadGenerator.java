@@ -0,0 +1,242 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ *
+ * Description: Load generator that plays many ChatApp users at once against a Server, to find where it saturates.
+ *              Give the server's <IP>:<Port> like ChatApp, or "local" to start a Server in this process:
+ *                  $ java LoadGenerator 192.168.1.1:1600 --users 2000 --rate 10 --size 128 --duration 60
+ *              Options:
+ *                  --users N      simulated users, paired up two by two (default 1000)
+ *                  --rate R       messages per second each user sends (default 10)
+ *                  --size B       message size in bytes (default 128)
+ *                  --duration S   seconds to send messages for (default 30)
+ *                  --wait MS      how long each CONNECT may wait for the other user (default 20000)
+ *                  --loops L      event loop threads driving the users (default: one per processor)
+ *              Every simulated user comes from this machine, so a remote Server needs its admission limits raised
+ *              or turned off, e.g. "java Server 1600 --limits off".
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadGenerator {
+    /**
+     * Class:   LoadGenerator
+     * Purpose: Simulate N concurrent chat users. Every user says HELLO, pairs with one other user through CONNECT,
+     *          exchanges messages at a fixed rate and size, then ends the session with QUIT, using the same Client
+     *          calls as ChatApp. Reports pairing success, pairing latency, message throughput and delivery latency.
+     *          Messages are sent on a fixed schedule whether or not earlier ones have arrived, so an overloaded
+     *          Server shows up as growing latency rather than a lower send rate. Latency is measured from when
+     *          each message was due to be sent, not when a sender thread got round to it, and a message whose
+     *          session has no room left for it is refused and counted rather than waited for.
+     * Usage:   Run from the command line, see the description above.
+     */
+
+    private static String serverDomain = "localhost";
+    private static int serverPort = 1600;
+    private static int users = 1000;
+    private static double rate = 10;
+    private static int size = 128;
+    private static long duration = 30;
+    private static long waitTime = 20 * 1000;
+    private static int loops = Runtime.getRuntime().availableProcessors();
+
+    private static final LatencyHistogram helloLatency = new LatencyHistogram();
+    private static final LatencyHistogram pairingLatency = new LatencyHistogram();
+    private static final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private static final LatencyHistogram intervalLatency = new LatencyHistogram(); // Reset after each progress line.
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+    private static final LongAdder refused = new LongAdder(); // The session's Outbox was full when the message was due
+    private static final LongAdder late = new LongAdder();    // Sent more than a period after it was due
+
+    // Main method. Parses the arguments, runs the load and prints the report.
+    public static void main(String[] args) throws Exception {
+        Server server = parseArgs(args);
+        ChatEngine engine = new ChatEngine(loops);
+        String runId = Long.toString(System.currentTimeMillis() % 100000, 36); // Keeps usernames unique across runs on one server.
+
+        /* Say HELLO for every user. */
+        List<Client> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            long helloStart = System.nanoTime();
+            Client client = new Client("load-" + runId + "-" + i, serverDomain, serverPort, engine);
+            if (!client.isConnected())
+                throw new IOException("User " + i + " could not contact the server");
+            helloLatency.record(System.nanoTime() - helloStart);
+            client.setWaitTime(waitTime);
+            clients.add(client);
+        }
+        System.out.printf("hello      %d users in %.0f ms%n", users, (System.nanoTime() - start) / 1e6);
+        System.out.println("           latency us: " + helloLatency.summary(1000));
+
+        /* Pair user 2k with user 2k+1; both ask for each other, like two people starting ChatApp. */
+        start = System.nanoTime();
+        List<CompletableFuture<ChatSession>> requests = new ArrayList<>();
+        for (int i = 0; i + 1 < users; i += 2) {
+            Client a = clients.get(i);
+            Client b = clients.get(i + 1);
+            long pairStart = System.nanoTime();
+            CompletableFuture<ChatSession> sessionA = a.openSession(b.getFromUser());
+            CompletableFuture<ChatSession> sessionB = b.openSession(a.getFromUser());
+            CompletableFuture.allOf(sessionA, sessionB).thenRun(() -> pairingLatency.record(System.nanoTime() - pairStart));
+            requests.add(sessionA);
+            requests.add(sessionB);
+        }
+        List<ChatSession> sessions = new ArrayList<>();
+        for (CompletableFuture<ChatSession> request : requests) {
+            try {
+                sessions.add(request.get(waitTime + 20 * 1000, TimeUnit.MILLISECONDS));
+            } catch (Exception e) {
+                // Counted as a pairing failure below.
+            }
+        }
+        System.out.printf("pairing    %d of %d sessions (%.2f%%) in %.0f ms%n", sessions.size(), requests.size(),
+                          requests.isEmpty() ? 0 : 100.0 * sessions.size() / requests.size(), (System.nanoTime() - start) / 1e6);
+        System.out.println("           latency us: " + pairingLatency.summary(1000));
+
+        /* Exchange messages at the configured rate, printing progress each second. */
+        for (ChatSession session : sessions)
+            session.setMessageListener(new MessageListener() {
+                public void onMessage(String fromUser, String message) {
+                    long latency = System.nanoTime() - Long.parseLong(message.substring(0, message.indexOf(' ')));
+                    deliveryLatency.record(latency);
+                    intervalLatency.record(latency);
+                    received.increment();
+                }
+
+                public void onClose(String otherUser) {
+                }
+            });
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(Math.max(1, loops / 2), runnable -> {
+            Thread thread = new Thread(runnable, "load-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        String padding = "x".repeat(size);
+        long period = (long) (1e9 / rate);
+        List<ScheduledFuture<?>> schedules = new ArrayList<>();
+        List<long[]> dues = new ArrayList<>();
+        for (ChatSession session : sessions) {
+            long offset = (long) (Math.random() * period); // Spread users out over the period instead of sending in bursts.
+            long[] due = { System.nanoTime() + offset }; // When the next message is due. Each run follows the last one.
+            dues.add(due);
+            schedules.add(senders.scheduleAtFixedRate(() -> {
+                send(session, padding, due[0], period);
+                due[0] += period;
+            }, offset, period, TimeUnit.NANOSECONDS));
+        }
+        start = System.nanoTime();
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastRefused = 0;
+        for (long second = 1; second <= duration; second++) {
+            Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1_000_000);
+            long nowSent = sent.sum();
+            long nowReceived = received.sum();
+            long nowRefused = refused.sum();
+            System.out.printf("%4ds      sent %,9d/s  received %,9d/s  refused %,7d/s  p99 %,9.1f us%n", second, nowSent - lastSent,
+                              nowReceived - lastReceived, nowRefused - lastRefused, intervalLatency.valueAt(99) / 1000.0);
+            intervalLatency.reset();
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+            lastRefused = nowRefused;
+        }
+        long stop = System.nanoTime();
+        for (ScheduledFuture<?> schedule : schedules)
+            schedule.cancel(false);
+        senders.shutdown();
+        senders.awaitTermination(5, TimeUnit.SECONDS);
+        long unsent = 0; // Due before the end, but the sender threads never got to them.
+        for (long[] due : dues)
+            unsent += Math.max(0, (stop - due[0] + period - 1) / period);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(1000); // Let messages still in flight arrive.
+
+        /* End every session with QUIT, like ChatApp does, and report. */
+        for (Client client : clients) {
+            for (ChatSession session : client.getSessions())
+                session.close();
+            client.cancelSession();
+            client.disconnect();
+        }
+        long due = sent.sum() + refused.sum() + failed.sum() + unsent;
+        System.out.printf("messages   due %,d  sent %,d  refused %,d  unsent %,d  late %,d  received %,d  failed %,d  (%.2f%% of due delivered)%n",
+                          due, sent.sum(), refused.sum(), unsent, late.sum(), received.sum(), failed.sum(), due == 0 ? 0 : 100.0 * received.sum() / due);
+        System.out.printf("throughput %,.0f msg/s  %,.2f MB/s%n", received.sum() / elapsed, received.sum() * (double) size / elapsed / (1 << 20));
+        System.out.println("delivery   latency us: " + deliveryLatency.summary(1000));
+        engine.close();
+        if (server != null)
+            server.stop();
+    }
+
+    /**
+     * Helper method run on a sender thread. Sends one message stamped with the time it was due, so time spent
+     * waiting for a sender thread counts as latency. Never waits for room in the session's Outbox.
+     */
+    private static void send(ChatSession session, String padding, long due, long period) {
+        if (System.nanoTime() - due > period)
+            late.increment(); // The sender threads are behind schedule.
+        String stamp = due + " ";
+        CompletableFuture<Boolean> written = session.offer(stamp + padding.substring(Math.min(padding.length(), stamp.length())));
+        if (written.isDone() && !written.join()) {
+            if (session.isOpen())
+                refused.increment();
+            else
+                failed.increment();
+            return;
+        }
+        sent.increment();
+        written.thenAccept(ok -> {
+            if (!ok)
+                failed.increment();
+        });
+    }
+
+    // Helper method to read the command line. Returns the Server started in this process for "local", or null.
+    private static Server parseArgs(String[] args) throws IOException {
+        Server server = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--users": users = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--size": size = Integer.parseInt(args[++i]); break;
+                case "--duration": duration = Long.parseLong(args[++i]); break;
+                case "--wait": waitTime = Long.parseLong(args[++i]); break;
+                case "--loops": loops = Integer.parseInt(args[++i]); break;
+                case "local": {
+                    server = new Server(Runtime.getRuntime().availableProcessors());
+                    server.getAdmission().setEnabled(false); // Every simulated user comes from this one host.
+                    server.start(0);
+                    Server running = server;
+                    Thread acceptThread = new Thread(() -> {
+                        try {
+                            running.acceptLoop();
+                        } catch (IOException e) {
+                        }
+                    }, "load-accept");
+                    acceptThread.setDaemon(true);
+                    acceptThread.start();
+                    serverPort = server.getPort();
+                    break;
+                }
+                default: {
+                    String[] address = args[i].split(":");
+                    serverDomain = address[0];
+                    if (address.length > 1)
+                        serverPort = Integer.parseInt(address[1]);
+                }
+            }
+        }
+        return server;
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+public interface MessageListener {
+    /**
+     * Interface: MessageListener
+     * Purpose:   Receive messages from the other Client in a chat session as soon as they arrive,
+     *            and find out straight away when the session ends.
+     * Usage:     Implement both methods and pass the listener to Client.setMessageListener().
+     *            Called on the ClientEventLoop thread, so implementations should return quickly.
+     */
+
+    // Called for each message sent by the other user.
+    void onMessage(String fromUser, String message);
+
+    // Called once when the session with the other user has closed, whichever side closed it.
+    void onClose(String otherUser);
+}
@@ -0,0 +1,130 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMXBean {
+    /**
+     * Class:   Metrics
+     * Purpose: Named counters, gauges and latency histograms for one Server or ChatEngine. Counters are LongAdders
+     *          and histograms are lock-free, so recording costs a few uncontended atomic adds on the hot path.
+     *          Names follow the Prometheus text format and may carry labels, e.g. server_command_ns{command="hello"}.
+     * Usage:   Look up each counter or histogram once with counter()/histogram() and keep the reference; lookups
+     *          go through a map. Read the values over JMX after registerMBean(), or over HTTP with a MetricsEndpoint.
+     */
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.9", "0.99", "0.999" };
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private ObjectName mbeanName;
+
+    // Return the counter with the given name, creating it on first use.
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    // Return the latency histogram with the given name, creating it on first use. Record values in nanoseconds.
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    // Register a value that is read each time the metrics are, such as the size of a map.
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // Implementation of MetricsMXBean.getCounters()
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    // Implementation of MetricsMXBean.getLatencies()
+    public Map<String, Long> getLatencies() {
+        Map<String, Long> values = new TreeMap<>();
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            for (int i = 0; i < PERCENTILES.length; i++)
+                values.put(name + "." + PERCENTILE_NAMES[i], histogram.valueAt(PERCENTILES[i]));
+            values.put(name + ".max", histogram.getMax());
+        });
+        return values;
+    }
+
+    // Implementation of MetricsMXBean.getScrape(). One "name value" line per value, sorted by name.
+    public String getScrape() {
+        StringBuilder text = new StringBuilder(4096);
+        getCounters().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+        new TreeMap<>(histograms).forEach((name, histogram) -> {
+            for (int i = 0; i < PERCENTILES.length; i++)
+                text.append(label(name, "quantile=\"" + QUANTILE_LABELS[i] + "\"")).append(' ').append(histogram.valueAt(PERCENTILES[i])).append('\n');
+            text.append(suffix(name, "_max")).append(' ').append(histogram.getMax()).append('\n');
+            text.append(suffix(name, "_count")).append(' ').append(histogram.getCount()).append('\n');
+        });
+        return text.toString();
+    }
+
+    // Implementation of MetricsMXBean.resetLatencies()
+    public void resetLatencies() {
+        for (LatencyHistogram histogram : histograms.values())
+            histogram.reset();
+    }
+
+    /**
+     * Register this registry with the platform MBeanServer as ChatApp:type=<type>,name=<name>.
+     * Returns false if it could not be registered, e.g. because the name is taken.
+     */
+    public boolean registerMBean(String type, String name) {
+        try {
+            ObjectName objectName = new ObjectName("ChatApp:type=" + type + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            mbeanName = objectName;
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    // Remove this registry from the platform MBeanServer, if it was registered.
+    public void unregisterMBean() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (mbeanName != null && server.isRegistered(mbeanName))
+                server.unregisterMBean(mbeanName);
+        } catch (JMException e) {
+        }
+        mbeanName = null;
+    }
+
+    // Helper method to add a label to a metric name that may already have some.
+    private static String label(String name, String label) {
+        int brace = name.indexOf('{');
+        if (brace < 0)
+            return name + "{" + label + "}";
+        return name.substring(0, name.length() - 1) + "," + label + "}";
+    }
+
+    // Helper method to add a suffix to a metric name, in front of any labels.
+    private static String suffix(String name, String suffix) {
+        int brace = name.indexOf('{');
+        if (brace < 0)
+            return name + suffix;
+        return name.substring(0, brace) + suffix + name.substring(brace);
+    }
+}
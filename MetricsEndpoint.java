@@ -0,0 +1,49 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsEndpoint {
+    /**
+     * Class:   MetricsEndpoint
+     * Purpose: Small HTTP server that serves a Metrics registry as plain text at /metrics, in the Prometheus text
+     *          format, so a scraper or curl can read the same values as JMX.
+     * Usage:   Create a MetricsEndpoint with a port (0 for any free port) and the Metrics to serve. Call stop() when done.
+     */
+
+    private final HttpServer http;
+
+    // Constructor binds the port and starts serving on a single daemon thread.
+    public MetricsEndpoint(int port, Metrics metrics) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(port), 16);
+        http.createContext("/metrics", exchange -> serve(exchange, metrics));
+        http.setExecutor(null); // Scrapes are rare and cheap, the server's own dispatcher thread is enough.
+        http.start();
+    }
+
+    // Return the port the endpoint is listening on.
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    public void stop() {
+        http.stop(0);
+    }
+
+    // Helper method to answer one scrape.
+    private static void serve(HttpExchange exchange, Metrics metrics) throws IOException {
+        byte[] body = metrics.getScrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
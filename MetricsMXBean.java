@@ -0,0 +1,26 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.util.Map;
+
+public interface MetricsMXBean {
+    /**
+     * Interface: MetricsMXBean
+     * Purpose:   JMX view of a Metrics registry, so counters and latencies can be read with jconsole or any JMX client.
+     * Usage:     Implemented by Metrics and registered with Metrics.registerMBean().
+     */
+
+    // Every counter and gauge, by name.
+    Map<String, Long> getCounters();
+
+    // Percentiles of every latency histogram in nanoseconds, by name with a .p50/.p90/.p99/.p999/.max suffix.
+    Map<String, Long> getLatencies();
+
+    // Everything in the plain-text format served by MetricsEndpoint.
+    String getScrape();
+
+    // Forget every recorded latency, e.g. to measure a fresh interval. Counters are left alone.
+    void resetLatencies();
+}
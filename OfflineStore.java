@@ -0,0 +1,319 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class OfflineStore {
+    /**
+     * Class:   OfflineStore
+     * Purpose: Holds messages for users who are not online, on disk, until they say HELLO again. Each recipient
+     *          has a mailbox directory of numbered segment files. Messages are appended to the newest segment
+     *          as ready-to-send OFFLINE frames, so delivering a segment is a single FileChannel.transferTo() to the
+     *          recipient's socket with no copying through the heap. Segments are sent one at a time, oldest
+     *          first, and deleted once written.
+     *
+     *          Memory use does not grow with the backlog: the store keeps a small Mailbox object per recipient
+     *          with messages waiting, and at most MAX_OPEN_WRITERS segment files open for appending.
+     *          Each mailbox is capped at MAX_MAILBOX_BYTES.
+     * Usage:   Create one per Server for a directory. Call append() to keep a message and drain() once the
+     *          recipient is connected.
+     */
+
+    private static final long SEGMENT_BYTES = 1 << 20;         // Segment size at which a new one is started
+    private static final long MAX_MAILBOX_BYTES = 64L << 20;   // Most bytes kept for one recipient
+    private static final int MAX_OPEN_WRITERS = 256;           // Segment files kept open for appending
+
+    private final Path dir;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>(); // Recipients with messages waiting
+    private final Map<Mailbox, Boolean> writers = new LinkedHashMap<>(16, 0.75f, true); // Mailboxes with an open writer, least recently used first. Guarded by itself.
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final LongAdder stored;
+    private final LongAdder rejected;
+    private final LongAdder segmentsSent;
+
+    // Constructor opens the directory, creating it if needed, and finds every mailbox left by an earlier run.
+    public OfflineStore(Path dir, Metrics metrics) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        stored = metrics.counter("server_offline_stored");
+        rejected = metrics.counter("server_offline_rejected");
+        segmentsSent = metrics.counter("server_offline_segments_sent");
+        metrics.gauge("server_offline_bytes", storedBytes::get);
+        metrics.gauge("server_offline_mailboxes", mailboxes::size);
+        try (DirectoryStream<Path> boxes = Files.newDirectoryStream(dir)) {
+            for (Path box : boxes) {
+                if (!Files.isDirectory(box))
+                    continue;
+                Mailbox mailbox = new Mailbox(box);
+                if (mailbox.load())
+                    mailboxes.put(decode(box.getFileName().toString()), mailbox);
+            }
+        }
+    }
+
+    // Returns True if there are messages waiting for the user.
+    public boolean hasMessages(String username) {
+        return mailboxes.containsKey(username);
+    }
+
+    /**
+     * Append an encoded frame to a user's mailbox. Safe to call from any thread. Returns false if the mailbox is
+     * full or the frame could not be written.
+     */
+    public boolean append(String username, ByteBuffer frame) {
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(username, name -> new Mailbox(dir.resolve(encode(name))));
+            Mailbox evicted;
+            synchronized (mailbox) {
+                if (mailbox.removed)
+                    continue; // Emptied and dropped just now; start a new one.
+                if (mailbox.bytes + frame.remaining() > MAX_MAILBOX_BYTES) {
+                    rejected.increment();
+                    return false;
+                }
+                try {
+                    evicted = mailbox.append(frame);
+                } catch (IOException e) {
+                    rejected.increment();
+                    return false;
+                }
+            }
+            if (evicted != null) {
+                synchronized (evicted) { // Taken after letting go of our own mailbox, so two appends can't wait on each other.
+                    evicted.closeWriter();
+                }
+            }
+            stored.increment();
+            return true;
+        }
+    }
+
+    /**
+     * Send everything in a user's mailbox over the given connection, one segment at a time, deleting each once
+     * it has been written. Messages appended meanwhile follow in later segments. A segment whose transfer is cut
+     * short by the connection closing is kept and sent again in full next time.
+     */
+    public void drain(String username, ServerConnection connection) {
+        Mailbox mailbox = mailboxes.get(username);
+        if (mailbox == null)
+            return;
+        synchronized (mailbox) {
+            if (mailbox.draining || mailbox.removed)
+                return;
+            mailbox.draining = true;
+        }
+        sendNext(username, mailbox, connection);
+    }
+
+    // Helper method to send a mailbox's oldest segment, and the next one once it is written.
+    private void sendNext(String username, Mailbox mailbox, ServerConnection connection) {
+        long segment;
+        synchronized (mailbox) {
+            if (mailbox.segments.isEmpty()) {
+                mailbox.draining = false;
+                mailbox.removed = true;
+                mailbox.delete(); // Before leaving the map, so a new mailbox for the user can't have its directory deleted.
+                mailboxes.remove(username, mailbox);
+                return;
+            }
+            segment = mailbox.segments.peekFirst();
+            if (segment == mailbox.active)
+                mailbox.seal(); // Later messages start a new segment, so this one stops growing while it is sent.
+        }
+        Path file = mailbox.segmentFile(segment);
+        FileChannel channel;
+        long size;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+        } catch (IOException e) {
+            synchronized (mailbox) {
+                mailbox.draining = false;
+            }
+            return;
+        }
+        connection.sendFile(channel, 0, size, sent -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            if (!sent) {
+                synchronized (mailbox) {
+                    mailbox.draining = false;
+                }
+                return;
+            }
+            synchronized (mailbox) {
+                mailbox.segments.pollFirst();
+                mailbox.bytes -= size;
+            }
+            storedBytes.addAndGet(-size);
+            segmentsSent.increment();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+            }
+            sendNext(username, mailbox, connection);
+        });
+    }
+
+    // Helper method to turn a username into a directory name that is safe on any file system.
+    private static String encode(String username) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8))
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return name.toString();
+    }
+
+    // Helper method to reverse encode().
+    private static String decode(String name) {
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(name.substring(2 * i, 2 * i + 2), 16);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Class:   Mailbox
+     * Purpose: One recipient's segment files. Guarded by its own lock.
+     */
+    private class Mailbox {
+        private final Path box;
+        private final ArrayDeque<Long> segments = new ArrayDeque<>(); // Segment numbers, oldest first
+        private long active = -1;     // Segment being appended to, or -1 to start a new one on the next append
+        private long activeBytes;
+        private long nextSegment;
+        private long bytes;           // Bytes in every segment
+        private FileChannel writer;   // Open on the active segment, or null if closed to save file handles
+        private boolean draining;
+        private boolean removed;      // Emptied and taken out of mailboxes; appends must start a new Mailbox
+
+        Mailbox(Path box) {
+            this.box = box;
+        }
+
+        Path segmentFile(long segment) {
+            return box.resolve(segment + ".seg");
+        }
+
+        // Find the segments left by an earlier run. Returns false if there are none. Every one is treated as sealed.
+        boolean load() throws IOException {
+            List<Long> found = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(box, "*.seg")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    long segment = Long.parseLong(name.substring(0, name.length() - ".seg".length()));
+                    if (Files.size(file) == 0)
+                        Files.delete(file);
+                    else
+                        found.add(segment);
+                }
+            }
+            Collections.sort(found);
+            for (long segment : found) {
+                long size = Files.size(segmentFile(segment));
+                segments.add(segment);
+                bytes += size;
+                storedBytes.addAndGet(size);
+                nextSegment = segment + 1;
+            }
+            if (found.isEmpty())
+                Files.deleteIfExists(box);
+            return !found.isEmpty();
+        }
+
+        /**
+         * Write a frame to the active segment, starting a new one if it is full or sealed. Returns another mailbox
+         * whose writer should be closed to stay within MAX_OPEN_WRITERS, or null.
+         */
+        Mailbox append(ByteBuffer frame) throws IOException {
+            Mailbox evicted = null;
+            if (active < 0 || activeBytes >= SEGMENT_BYTES) {
+                seal();
+                Files.createDirectories(box);
+                active = nextSegment++;
+                activeBytes = 0;
+                segments.add(active);
+            }
+            if (writer == null) {
+                writer = FileChannel.open(segmentFile(active), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                synchronized (writers) {
+                    writers.put(this, Boolean.TRUE);
+                    if (writers.size() > MAX_OPEN_WRITERS) {
+                        evicted = writers.keySet().iterator().next();
+                        writers.remove(evicted);
+                    }
+                }
+            }
+            else {
+                synchronized (writers) {
+                    writers.get(this); // Mark as recently used.
+                }
+            }
+            int length = frame.remaining();
+            try {
+                while (frame.hasRemaining())
+                    writer.write(frame);
+            } catch (IOException e) {
+                try {
+                    writer.truncate(activeBytes); // drain() sends segments byte for byte, so half a frame must not stay.
+                } catch (IOException truncateFailed) {
+                    e.addSuppressed(truncateFailed);
+                }
+                throw e;
+            }
+            activeBytes += length;
+            bytes += length;
+            storedBytes.addAndGet(length);
+            return evicted == this ? null : evicted;
+        }
+
+        // Stop appending to the active segment; the next append starts a new one.
+        void seal() {
+            closeWriter();
+            active = -1;
+        }
+
+        // Close the writer, if open. The next append to the same segment opens it again.
+        void closeWriter() {
+            if (writer == null)
+                return;
+            try {
+                writer.close();
+            } catch (IOException e) {
+            }
+            writer = null;
+            synchronized (writers) {
+                writers.remove(this);
+            }
+        }
+
+        // Remove the emptied mailbox directory.
+        void delete() {
+            closeWriter();
+            try {
+                Files.deleteIfExists(box);
+            } catch (IOException e) {
+                // Something else is in the directory; leave it.
+            }
+        }
+    }
+}
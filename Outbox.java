@@ -0,0 +1,189 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+public class Outbox {
+    /**
+     * Class:   Outbox
+     * Purpose: The sending half of a ChatSession: every message the other user has not yet processed, oldest first.
+     *          Messages are numbered from 1 in the order they are sent, over the whole session, and the other end
+     *          acknowledges them with the count its application has taken so far. Only a window's worth of bytes,
+     *          as advertised by the other end, may be written and not yet acknowledged; the rest wait here, so a
+     *          slow reader holds the sender back instead of filling socket buffers. If the connection is lost,
+     *          whatever the other end had not received is written again on the next one.
+     *          At most MAX_QUEUED messages or MAX_QUEUED_BYTES bytes are kept, so memory stays bounded.
+     * Usage:   Owned by a ChatSession. Guarded by its own lock, held only briefly; the session keeps the messages
+     *          next() hands out in order with a lock of its own while it writes them.
+     */
+
+    static final int MAX_QUEUED = 65536;                    // Messages kept before add() refuses more
+    static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024; // Bytes kept before add() refuses more
+
+    private final ArrayDeque<Entry> sent = new ArrayDeque<>();    // Written, not yet processed
+    private final ArrayDeque<Entry> waiting = new ArrayDeque<>(); // Not yet written on the current connection
+    private long nextSequence = 1;
+    private long processed;      // Messages the other end has said it has processed
+    private long sentBytes;      // Bytes in sent, counted against the window
+    private long queuedBytes;    // Bytes in sent and waiting
+    private long window = Protocol.MESSAGE_WINDOW;
+    private boolean failed;
+
+    /**
+     * Number and keep a message, with a receipt future if asked for. Returns null if MAX_QUEUED messages or
+     * MAX_QUEUED_BYTES bytes are already kept, or after fail().
+     */
+    synchronized Entry add(String message, boolean receipt) {
+        if (failed || isFull())
+            return null;
+        Entry entry = new Entry(nextSequence++, message, receipt);
+        waiting.add(entry);
+        queuedBytes += entry.size;
+        return entry;
+    }
+
+    /**
+     * Take the next message to write if the window allows it, or return null. A message is always allowed when
+     * nothing is outstanding, so one larger than the window still goes out.
+     */
+    synchronized Entry next() {
+        Entry entry = waiting.peek();
+        if (entry == null || (!sent.isEmpty() && sentBytes + entry.size > window))
+            return null;
+        waiting.poll();
+        sent.add(entry);
+        sentBytes += entry.size;
+        return entry;
+    }
+
+    // Forget every message up to and including the given number, which the other end has processed. Returns True if there were any.
+    synchronized boolean ack(long count) {
+        if (count <= processed)
+            return false;
+        processed = Math.min(count, nextSequence - 1);
+        Entry entry;
+        while ((entry = sent.peek()) != null && entry.sequence <= processed) {
+            sent.poll();
+            sentBytes -= entry.size;
+            queuedBytes -= entry.size;
+            entry.processed();
+        }
+        notifyAll(); // Wake senders waiting in awaitRoom().
+        return true;
+    }
+
+    // Take the window the other end advertised, in bytes. Returns True if it grew.
+    synchronized boolean setWindow(long window) {
+        boolean grew = window > this.window;
+        this.window = window;
+        return grew;
+    }
+
+    // Returns True if nothing is waiting to be written.
+    synchronized boolean isDrained() {
+        return waiting.isEmpty();
+    }
+
+    // Returns True if the other end has processed everything.
+    synchronized boolean isEmpty() {
+        return sent.isEmpty() && waiting.isEmpty();
+    }
+
+    /**
+     * Start again on a new connection, on which the other end says it has received count messages so far.
+     * Messages after that go back to the front of the queue to be written again, in order. Returns how many.
+     */
+    synchronized int rewind(long count) {
+        int rewound = 0;
+        Entry entry;
+        while ((entry = sent.peekLast()) != null && entry.sequence > count) {
+            sent.pollLast();
+            sentBytes -= entry.size;
+            waiting.addFirst(entry);
+            rewound++;
+        }
+        return rewound;
+    }
+
+    synchronized int size() {
+        return sent.size() + waiting.size();
+    }
+
+    // Return the bytes kept here, written or not.
+    synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    // Wait up to timeout ms until add() would take another message. Returns false if it still would not, or fail() was called.
+    synchronized boolean awaitRoom(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (isFull() && !failed) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+            wait(left);
+        }
+        return !failed;
+    }
+
+    // Give up on every message still kept. Their futures complete with false unless they already completed.
+    synchronized void fail() {
+        failed = true;
+        Entry entry;
+        while ((entry = sent.poll()) != null)
+            entry.failed();
+        while ((entry = waiting.poll()) != null)
+            entry.failed();
+        sentBytes = 0;
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    private boolean isFull() {
+        return sent.size() + waiting.size() >= MAX_QUEUED || queuedBytes >= MAX_QUEUED_BYTES;
+    }
+
+    /**
+     * Class:   Entry
+     * Purpose: One numbered message, the future that completes once it has been written, and the receipt that
+     *          completes once the other end has processed it, if one was asked for. Also the callback for each
+     *          attempt to write it, so sending needs no extra allocation; a failed attempt leaves the futures
+     *          alone, since the message is written again on the next connection.
+     */
+    static class Entry implements Consumer<Boolean> {
+        final long sequence;
+        final String message;
+        final int size;
+        final CompletableFuture<Boolean> written = new CompletableFuture<>();
+        final CompletableFuture<Boolean> receipt;
+
+        Entry(long sequence, String message, boolean receipt) {
+            this.sequence = sequence;
+            this.message = message;
+            this.size = message.length() + 8; // Close enough to the frame size, and never 0.
+            this.receipt = receipt ? new CompletableFuture<>() : null;
+        }
+
+        // Called with the outcome of one attempt to write the message.
+        public void accept(Boolean sent) {
+            if (sent)
+                written.complete(true);
+        }
+
+        private void processed() {
+            written.complete(true); // Processed implies written, even if it was written on an earlier connection.
+            if (receipt != null)
+                receipt.complete(true);
+        }
+
+        private void failed() {
+            written.complete(false);
+            if (receipt != null)
+                receipt.complete(false);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.net.InetSocketAddress;
+
+public class PendingConnect {
+    /**
+     * Class:   PendingConnect
+     * Purpose: A CONNECT request that is waiting for the other user to show up.
+     *          Remembers where to push the reply once the pair is matched, cancelled, or runs out of time.
+     * Usage:   Created by the Server for each CONNECT and stored in the Registry's waiting list. In a Cluster, the
+     *          Server a user talks to also keeps one for each CONNECT it forwards, until the reply comes back.
+     */
+
+    private final String fromUser;
+    private final String toUser;
+    private final ServerConnection connection; // Connection to reply on
+    private final int requestId;               // Request id to reply with
+    private final long deadline;               // Time in ms at which the request expires.
+    private final InetSocketAddress address;   // Where the waiting user's Client listens for sessions, or null if unknown
+    private final boolean remote;              // Made by a user of another Server in the cluster
+    private final long created = System.nanoTime();
+
+    /**
+     * Constructor accepts the waiting user, the user they want to reach, where to reply, when to give up, the waiting
+     * user's session address, and whether the request was forwarded from another Server in the cluster.
+     */
+    public PendingConnect(String fromUser, String toUser, ServerConnection connection, int requestId, long deadline,
+                          InetSocketAddress address, boolean remote) {
+        this.fromUser = fromUser;
+        this.toUser = toUser;
+        this.connection = connection;
+        this.requestId = requestId;
+        this.deadline = deadline;
+        this.address = address;
+        this.remote = remote;
+    }
+
+    public String getFromUser() {
+        return fromUser;
+    }
+
+    public String getToUser() {
+        return toUser;
+    }
+
+    public ServerConnection getConnection() {
+        return connection;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    // Returns True if the waiting user is registered with another Server, which forwarded this request.
+    public boolean isRemote() {
+        return remote;
+    }
+
+    // Time the request was made, from System.nanoTime().
+    public long getCreated() {
+        return created;
+    }
+
+    // Push the final reply for this request to the waiting client, if it is still connected.
+    public void reply(FrameWriter frame) {
+        if (connection != null && !connection.isClosed())
+            connection.send(frame.setRequestId(requestId).toBuffer());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.net.InetSocketAddress;
+
+public class Presence {
+    /**
+     * Class:   Presence
+     * Purpose: A registered user's session address and lease, stored compactly. An IPv4 literal and port are
+     *          packed into a single long; any other host is kept as a shared, interned string. The lease runs
+     *          out at expiresAt unless the user renews it.
+     * Usage:   Created and renewed by the Registry only. Read-only to everyone else.
+     */
+
+    private final String username;
+    private final long packed;     // IPv4 address << 16 | port. The address part is only used when host is null.
+    private final String host;     // Host for addresses that are not IPv4 literals, otherwise null
+    volatile Object owner;         // Connection the user registered or last renewed over, or null if restored from disk
+    volatile long expiresAt;       // Time in ms at which the lease runs out
+
+    // Constructor accepts the user, their address, the connection that registered them, and when the lease runs out.
+    Presence(String username, String host, int port, Object owner, long expiresAt) {
+        this.username = username;
+        long ip = parseIPv4(host);
+        this.packed = (Math.max(ip, 0) << 16) | (port & 0xFFFF);
+        this.host = ip < 0 ? host : null;
+        this.owner = owner;
+        this.expiresAt = expiresAt;
+    }
+
+    // Constructor accepts an address already in packed form, as stored by PresenceSnapshot and PresenceStore.
+    Presence(String username, long packed, String host, Object owner, long expiresAt) {
+        this.username = username;
+        this.packed = packed;
+        this.host = host;
+        this.owner = owner;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getHost() {
+        if (host != null)
+            return host;
+        long ip = packed >>> 16;
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    public int getPort() {
+        return (int) (packed & 0xFFFF);
+    }
+
+    Object getOwner() {
+        return owner;
+    }
+
+    // IPv4 address << 16 | port. Only the port part is meaningful when getRawHost() is not null.
+    long getPacked() {
+        return packed;
+    }
+
+    // Host name for addresses that are not IPv4 literals, otherwise null.
+    String getRawHost() {
+        return host;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    // Return the address as an unresolved InetSocketAddress, so no DNS lookup happens on the server.
+    public InetSocketAddress toAddress() {
+        return InetSocketAddress.createUnresolved(getHost(), getPort());
+    }
+
+    // Read a dotted IPv4 literal without any lookups. Returns -1 if the host is not one.
+    static long parseIPv4(String host) {
+        long ip = 0;
+        int parts = 0;
+        int value = -1;
+        for (int i = 0; i <= host.length(); i++) {
+            char c = i < host.length() ? host.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || ++parts > 4)
+                    return -1;
+                ip = (ip << 8) | value;
+                value = -1;
+            }
+            else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255)
+                    return -1;
+            }
+            else {
+                return -1;
+            }
+        }
+        return parts == 4 ? ip : -1;
+    }
+}
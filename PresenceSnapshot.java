@@ -0,0 +1,180 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class PresenceSnapshot {
+    /**
+     * Class:   PresenceSnapshot
+     * Purpose: Every registration at one point in time, written as an open-addressing hash table so it can be
+     *          memory-mapped and searched in place. Opening a snapshot reads only the header, so a restarted Server
+     *          can answer lookups straight from the file while the entries are loaded into the Registry behind it.
+     *
+     *          File layout, big-endian:
+     *              header   int MAGIC, int VERSION, long generation, int count, int capacity, 8 bytes unused
+     *              slots    capacity x { long packed address, int record offset + 1 (0 = empty), int name hash }
+     *              records  { ushort length, UTF-8 username, ushort length, UTF-8 host (empty for IPv4) } ...
+     * Usage:   Written by PresenceStore when it compacts its log. Open with open() and use lookup() or forEach().
+     */
+
+    private static final int MAGIC = 0x43485053; // "CHPS"
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final int SLOT = 16;
+
+    private final MappedByteBuffer map;
+    private final long generation;
+    private final int count;
+    private final int capacity;
+    private final int records; // Offset of the record area
+
+    // Constructor accepts a mapped snapshot file. Use open() instead.
+    private PresenceSnapshot(MappedByteBuffer map) throws IOException {
+        if (map.capacity() < HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+            throw new IOException("Not a presence snapshot");
+        this.map = map;
+        generation = map.getLong(8);
+        count = map.getInt(16);
+        capacity = map.getInt(20);
+        records = HEADER + capacity * SLOT;
+        if (Integer.bitCount(capacity) != 1 || records > map.capacity())
+            throw new IOException("Corrupt presence snapshot");
+    }
+
+    // Map a snapshot file. Only the header is read now; the rest is paged in as it is used.
+    public static PresenceSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Presence snapshot too large");
+            return new PresenceSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write every given registration to a new snapshot file. The file is written under a temporary name, forced
+     * to disk and then renamed over the old one, so a crash leaves either the old snapshot or the new one.
+     */
+    public static void write(Path file, long generation, List<Presence> entries) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(8, entries.size() * 2 - 1)) << 1; // At most half full, so probes stay short.
+        List<byte[]> names = new ArrayList<>(entries.size());
+        List<byte[]> hosts = new ArrayList<>(entries.size());
+        long size = HEADER + (long) capacity * SLOT;
+        for (Presence presence : entries) {
+            byte[] name = presence.getUsername().getBytes(StandardCharsets.UTF_8);
+            byte[] host = presence.getRawHost() == null ? new byte[0] : presence.getRawHost().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            hosts.add(host);
+            size += 4 + name.length + host.length;
+        }
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Too many registrations for one snapshot");
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, generation).putInt(16, entries.size()).putInt(20, capacity);
+            map.position(HEADER + capacity * SLOT);
+            for (int i = 0; i < entries.size(); i++) {
+                int record = map.position();
+                putString(map, names.get(i));
+                putString(map, hosts.get(i));
+                int hash = hash(entries.get(i).getUsername());
+                int slot = hash & (capacity - 1);
+                while (map.getInt(HEADER + slot * SLOT + 8) != 0) // Linear probing.
+                    slot = (slot + 1) & (capacity - 1);
+                map.putLong(HEADER + slot * SLOT, entries.get(i).getPacked())
+                   .putInt(HEADER + slot * SLOT + 8, record + 1)
+                   .putInt(HEADER + slot * SLOT + 12, hash);
+            }
+            map.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Log generation the snapshot was taken at. Log files from this generation on hold the changes made since.
+    public long getGeneration() {
+        return generation;
+    }
+
+    // Number of registrations in the snapshot.
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find a user's registration in the file. Returns it with no owner and the given lease expiry, or null if the
+     * user is not in the snapshot. Safe to call from any thread.
+     */
+    public Presence lookup(String username, long expiresAt) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(username);
+        for (int slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+            int base = HEADER + slot * SLOT;
+            int record = map.getInt(base + 8) - 1;
+            if (record < 0)
+                return null; // Reached an empty slot, so the user is not here.
+            if (map.getInt(base + 12) == hash && nameEquals(record, name))
+                return new Presence(username, map.getLong(base), host(record), null, expiresAt);
+        }
+    }
+
+    // Pass every registration in the snapshot to the consumer, with no owner and the given lease expiry.
+    public void forEach(long expiresAt, Consumer<Presence> consumer) {
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = HEADER + slot * SLOT;
+            int record = map.getInt(base + 8) - 1;
+            if (record >= 0)
+                consumer.accept(new Presence(string(record), map.getLong(base), host(record), null, expiresAt));
+        }
+    }
+
+    // Helper method to hash a username the same way when writing and reading.
+    private static int hash(String username) {
+        int hash = username.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // Helper method to write a length-prefixed string.
+    private static void putString(ByteBuffer buffer, byte[] bytes) throws IOException {
+        if (bytes.length > 0xFFFF)
+            throw new IOException("Name too long for a presence snapshot");
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    // Helper method to compare the username of the record at the given offset with the given bytes.
+    private boolean nameEquals(int record, byte[] name) {
+        if (record < records || (map.getShort(record) & 0xFFFF) != name.length)
+            return false;
+        for (int i = 0; i < name.length; i++) {
+            if (map.get(record + 2 + i) != name[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Helper method to read the length-prefixed string at the given offset.
+    private String string(int offset) {
+        byte[] bytes = new byte[map.getShort(offset) & 0xFFFF];
+        map.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Helper method to read the host of the record at the given offset, or null for an IPv4 address.
+    private String host(int record) {
+        int offset = record + 2 + (map.getShort(record) & 0xFFFF);
+        return map.getShort(offset) == 0 ? null : string(offset);
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PresenceStore {
+    /**
+     * Class:   PresenceStore
+     * Purpose: Keeps a Server's registrations on disk so a restart does not forget them. Every registration and
+     *          removal is appended to a log; now and then the log is compacted into a PresenceSnapshot and a new
+     *          log is started. Log files are numbered by generation, and a snapshot records the generation it was
+     *          taken at, so a restart maps the snapshot and replays only the logs from that generation on.
+     *
+     *          Log records, big-endian:
+     *              REGISTER    byte 1, ushort length, UTF-8 username, long packed address, ushort length, UTF-8 host
+     *              UNREGISTER  byte 2, ushort length, UTF-8 username
+     *
+     *          Appends are buffered and written every FLUSH_INTERVAL ms by a background thread, so a HELLO never
+     *          waits for the disk. There are two buffers: when the one being filled is full, it is swapped for the
+     *          other and handed to the background thread at once. If that one is still being written as well, the
+     *          record is dropped and counted in getDropped(); the registration itself still stands, it just would
+     *          not survive a restart. A Server that is killed loses at most FLUSH_INTERVAL; one that crashes mid-write
+     *          leaves a torn last record, which is dropped on the next start. Lease renewals are not logged;
+     *          registrations read back on a restart get a fresh lease instead.
+     * Usage:   Create one for a data directory and pass it to Registry.restore(), then call start().
+     */
+
+    private static final byte REGISTER = 1;
+    private static final byte UNREGISTER = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long FLUSH_INTERVAL = 100;             // ms between log writes
+    private static final long COMPACT_CHECK = 10 * 1000;        // ms between checks whether to compact
+    private static final long MIN_COMPACT_BYTES = 16 << 20;     // Smallest log worth compacting
+
+    private final Path dir;
+    private final PresenceSnapshot snapshot; // Snapshot found on disk when the store was opened, or null
+    private final TreeMap<Long, Path> logs = new TreeMap<>(); // Log files found on disk, by generation
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); // Appends not yet written. Guarded by this.
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);  // Empty buffer to swap in, or null while it is in use. Guarded by this.
+    private ByteBuffer full;                                      // Swapped out and waiting to be written, or null. Guarded by this.
+    private final Object writeLock = new Object();                // Held while writing to the log or switching logs, so writes stay in order
+    private final LongAdder dropped = new LongAdder();
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long generation;
+    private FileChannel log;
+    private volatile long logBytes;
+
+    // Constructor opens the data directory, creating it if needed, and maps the latest snapshot in it.
+    public PresenceStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        Path snapshotFile = dir.resolve("presence.snapshot");
+        snapshot = Files.exists(snapshotFile) ? PresenceSnapshot.open(snapshotFile) : null;
+        generation = snapshot == null ? 0 : snapshot.getGeneration();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "presence-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long fileGeneration = Long.parseLong(name.substring("presence-".length(), name.length() - ".log".length()));
+                if (fileGeneration < generation)
+                    Files.delete(file); // Already covered by the snapshot.
+                else
+                    logs.put(fileGeneration, file);
+            }
+        }
+        if (!logs.isEmpty())
+            generation = logs.lastKey();
+    }
+
+    // Return the snapshot found when the store was opened, or null if there was none.
+    public PresenceSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Apply every logged change since the snapshot to the Registry, oldest first, then open the newest log for
+     * appending. A torn record at the end of the newest log is cut off. Returns the number of records applied.
+     */
+    public int replay(Registry registry) throws IOException {
+        int applied = 0;
+        for (Path file : logs.values()) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int end = 0;
+                try {
+                    while (map.hasRemaining()) {
+                        byte op = map.get();
+                        String username = string(map);
+                        if (op == REGISTER)
+                            registry.replayRegister(username, map.getLong(), string(map));
+                        else if (op == UNREGISTER)
+                            registry.replayUnregister(username);
+                        else
+                            break;
+                        applied++;
+                        end = map.position();
+                    }
+                } catch (RuntimeException e) {
+                    // Ran off the end of a torn record.
+                }
+                if (end < channel.size())
+                    channel.truncate(end);
+            }
+        }
+        openLog(generation);
+        return applied;
+    }
+
+    /**
+     * Start the background thread that writes buffered appends and compacts the log once it has grown past
+     * both MIN_COMPACT_BYTES and the size of the last snapshot.
+     */
+    public void start(Registry registry) {
+        worker.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        worker.scheduleWithFixedDelay(() -> {
+            try {
+                if (logBytes > MIN_COMPACT_BYTES && logBytes > snapshotBytes() && registry.isRestored())
+                    compact(registry);
+            } catch (IOException e) {
+                // Keep appending to the current log and try again at the next check.
+            }
+        }, COMPACT_CHECK, COMPACT_CHECK, TimeUnit.MILLISECONDS);
+    }
+
+    // Append a registration to the log.
+    public synchronized void logRegister(Presence presence) {
+        byte[] name = presence.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] host = presence.getRawHost() == null ? new byte[0] : presence.getRawHost().getBytes(StandardCharsets.UTF_8);
+        if (13 + name.length + host.length > BUFFER_SIZE)
+            return;
+        if (!reserve(13 + name.length + host.length))
+            return;
+        buffer.put(REGISTER).putShort((short) name.length).put(name).putLong(presence.getPacked()).putShort((short) host.length).put(host);
+    }
+
+    // Append the removal of a registration to the log.
+    public synchronized void logUnregister(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (3 + name.length > BUFFER_SIZE)
+            return;
+        if (!reserve(3 + name.length))
+            return;
+        buffer.put(UNREGISTER).putShort((short) name.length).put(name);
+    }
+
+    // Return the number of records dropped because both buffers were full.
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Write buffered appends to the log file. Appends carry on into the other buffer meanwhile.
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            while (true) {
+                ByteBuffer out;
+                synchronized (this) {
+                    if (full != null) {
+                        out = full;
+                        full = null;
+                    }
+                    else if (buffer.position() > 0 && spare != null) {
+                        out = buffer;
+                        buffer = spare;
+                        spare = null;
+                    }
+                    else {
+                        return;
+                    }
+                }
+                out.flip();
+                try {
+                    while (out.hasRemaining())
+                        logBytes += log.write(out);
+                } finally {
+                    out.clear();
+                    synchronized (this) {
+                        spare = out;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write every current registration to a new snapshot and start a new log. Changes made while the snapshot is
+     * being written go to the new log, which is replayed over the snapshot on a restart; replaying a change the
+     * snapshot already has is harmless.
+     */
+    public void compact(Registry registry) throws IOException {
+        long snapshotGeneration;
+        FileChannel oldLog;
+        synchronized (writeLock) {
+            flush();
+            oldLog = log;
+            snapshotGeneration = generation + 1;
+            openLog(snapshotGeneration);
+        }
+        oldLog.close();
+        List<Presence> entries = new ArrayList<>(registry.registeredCount());
+        registry.forEachPresence(entries::add);
+        PresenceSnapshot.write(dir.resolve("presence.snapshot"), snapshotGeneration, entries);
+        for (long old : new ArrayList<>(logs.headMap(snapshotGeneration).keySet()))
+            Files.deleteIfExists(logs.remove(old));
+    }
+
+    // Write what is left in the buffer and stop the background thread.
+    public void close() {
+        worker.shutdownNow();
+        synchronized (writeLock) {
+            flushQuietly();
+            try {
+                log.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // Helper method to open the log for a generation for appending, creating it if needed.
+    private void openLog(long newGeneration) throws IOException {
+        Path file = dir.resolve("presence-" + newGeneration + ".log");
+        log = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logBytes = log.size();
+        logs.put(newGeneration, file);
+        generation = newGeneration;
+    }
+
+    /**
+     * Helper method to make room in the buffer for a record. If it does not fit, the buffer is swapped for the
+     * spare and handed to the background thread to write. Returns false, counting the record as dropped, if the
+     * spare is still being written. Never touches the disk itself.
+     */
+    private boolean reserve(int bytes) {
+        if (buffer.remaining() >= bytes)
+            return true;
+        if (spare == null || full != null) {
+            dropped.increment();
+            return false;
+        }
+        full = buffer;
+        buffer = spare;
+        spare = null;
+        try {
+            worker.execute(this::flushQuietly);
+        } catch (RejectedExecutionException e) {
+            // Closed; nothing more is written.
+        }
+        return true;
+    }
+
+    // Helper method to flush from the background thread, where there is nobody to report a failure to.
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+        }
+    }
+
+    // Helper method to return the size of the current snapshot file, or 0.
+    private long snapshotBytes() {
+        try {
+            return Files.size(dir.resolve("presence.snapshot"));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Helper method to read a length-prefixed string from a log.
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes.length == 0 ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.nio.ByteBuffer;
+
+public final class Protocol {
+    /**
+     * Class:   Protocol
+     * Purpose: Constants and varint helpers for the binary wire protocol spoken between Clients and the Server,
+     *          and between two Clients in a chat session.
+     *
+     *          Every frame has the layout:
+     *              varint  length       number of bytes that follow
+     *              byte    version      VERSION
+     *              byte    opcode       one of the opcodes below
+     *              int     requestId    matches replies to requests; 0 for pushed and fire-and-forget frames
+     *              fields               each either a varint, or a varint length followed by raw UTF-8 bytes
+     *
+     *          The one exception is FILE_DATA, whose frame is followed by the chunk of the file it describes, as
+     *          raw bytes outside any frame.
+     *
+     *          Use FrameWriter to build frames and FrameReader to decode them.
+     */
+
+    public static final byte VERSION = 1;
+    public static final int MAX_FRAME = 16 * 1024 * 1024; // Largest frame body accepted, in bytes.
+    public static final int MAX_MESSAGE = MAX_FRAME - 64 * 1024; // Largest session message, in UTF-8 bytes: its frame, even deflated, stays under MAX_FRAME.
+    public static final int NO_REPLY = 0;                 // Request id for frames that are not answered.
+    public static final int FILE_CHUNK = 256 * 1024;      // Most file bytes after one FILE_DATA frame.
+    public static final int FILE_WINDOW = 2 * 1024 * 1024; // Most file bytes sent ahead of the last FILE_ACK.
+    public static final int MESSAGE_WINDOW = 1024 * 1024;  // Default window: most message bytes sent ahead of the last ACK.
+
+    /* Client to Server requests */
+    public static final byte HELLO = 1;      // user, host, port(varint), offline(varint, optional): 1, the default, to have messages left with STORE pushed, 0 to keep them on the server
+    public static final byte CONNECT = 2;    // fromUser, toUser, waitMs(varint)
+    public static final byte QUIT = 3;       // user, toUser(optional): cancel the request for one user, or all of them
+    public static final byte JOIN = 4;       // room, user
+    public static final byte LEAVE = 5;      // room, user
+    public static final byte SAY = 6;        // room, user, message
+    public static final byte RENEW = 7;      // user, offline(varint, optional): extend the user's registration lease, ERROR if it has already run out
+    public static final byte STORE = 9;      // fromUser, toUser, message: deliver now if toUser is online, otherwise keep it until they are
+
+    /* Server to Server requests within a Cluster */
+    public static final byte FORWARD = 8;    // fromUser, toUser, waitMs(varint), host, port(varint): a CONNECT made on another Server, with the requester's address
+
+    /* Server to Client replies and pushes */
+    public static final byte OK = 32;
+    public static final byte ERROR = 33;
+    public static final byte ADDRESS = 34;   // host, port(varint): connect to the other user here
+    public static final byte ACCEPT = 35;    // host, port(varint): the other user is connecting from here
+    public static final byte TIMEOUT = 36;
+    public static final byte CANCELLED = 37;
+    public static final byte ROOM = 38;      // room, fromUser, message
+    public static final byte OFFLINE = 39;   // fromUser, message, sentAt(varint, ms): a message left with STORE
+    public static final byte BUSY = 40;      // retryAfterMs(varint): turned away by admission control; pushed before closing a connection that was not admitted
+
+    /* Client to Client session frames */
+    public static final byte MESSAGE = 64;   // message
+    public static final byte PEER_HELLO = 65; // fromUser, toUser, decoders(varint, optional), dictionaryId(varint, optional), sessionId(varint, optional), window(varint, optional):
+                                              // first frame on a session connection, names its two ends; the accepting end answers with its own
+    public static final byte FILE_OFFER = 66;   // transferId(varint), name, size(varint), modified(varint, optional), crc32c(varint, optional):
+                                                // when the file was last changed, in ms since the epoch, and the CRC32C of the whole file
+    public static final byte FILE_ACCEPT = 67;  // transferId(varint), offset(varint): send the file from here; sent again to ask for a bad chunk again
+    public static final byte FILE_DATA = 68;    // transferId(varint), offset(varint), length(varint), crc32c(varint), then length raw bytes
+    public static final byte FILE_ACK = 69;     // transferId(varint), offset(varint): every byte before offset has arrived and checked out
+    public static final byte FILE_DONE = 70;    // transferId(varint): the whole file has arrived and been saved
+    public static final byte FILE_DECLINE = 71; // transferId(varint): the receiver refuses the file or gives up on it
+    public static final byte FILE_CANCEL = 72;  // transferId(varint): the sender gives up on the file
+    public static final byte MESSAGE_DEFLATE = 73; // length(varint), bytes: the next part of the session's raw deflate stream, one message
+    public static final byte MESSAGE_DICT = 74;    // length(varint), bytes: one message as a zlib stream made with the shared dictionary
+    public static final byte PING = 75;        // processed(varint): the other end has been quiet; answer with PONG
+    public static final byte PONG = 76;        // processed(varint)
+    public static final byte ACK = 77;         // processed(varint), window(varint, optional): messages the application has taken over the whole session so far,
+                                               // and the most message bytes that may be sent beyond them
+    public static final byte PEER_RESUME = 78; // fromUser, toUser, sessionId(varint), received(varint), decoders(varint), dictionaryId(varint),
+                                               // processed(varint, optional), window(varint, optional):
+                                               // first frame on a connection that replaces a lost one; the accepting end answers with its own
+    public static final byte SESSION_END = 79; // the session was closed on purpose, so the other end should not wait for it to resume
+
+    private Protocol() {
+    }
+
+    // Returns True if a session message is no longer than MAX_MESSAGE once encoded as UTF-8.
+    public static boolean fitsMessage(CharSequence message) {
+        if (message.length() <= MAX_MESSAGE / 3) // No char takes more than 3 bytes.
+            return true;
+        return message.length() <= MAX_MESSAGE && FrameWriter.utf8Length(message) <= MAX_MESSAGE;
+    }
+
+    // Number of bytes needed to encode a value as a varint.
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Write a non-negative value as a varint at the buffer's position.
+    public static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
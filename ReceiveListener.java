@@ -0,0 +1,89 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+
+public class ReceiveListener implements MessageListener, FileListener {
+    /**
+     * Class:   ReceiveListener
+     * Purpose: Print messages from the other Client in a chat session as they arrive, and signal the end of the session.
+     *          Files sent by the other Client are saved in the RECEIVED directory, under a new name if one by that
+     *          name is already there. Files over MAX_FILE_SIZE, or larger than the disk has room for, are declined.
+     * Usage:   Create a ReceiveListener and pass it to Client.setMessageListener() and Client.setFileListener().
+     *          The future given to the constructor completes as soon as the other user quits or the connection drops.
+     */
+    private static final Path RECEIVED = Paths.get("received"); // Where files from the other user are saved
+    private static final long MAX_FILE_SIZE = 4L * 1024 * 1024 * 1024; // Largest file accepted, in bytes
+    private CompletableFuture<Void> sessionOver; // Completed when the other user leaves the session
+
+    // Constructor accepts the future to complete when the session ends.
+    public ReceiveListener(CompletableFuture<Void> sessionOver) {
+        this.sessionOver = sessionOver;
+    }
+
+    // Implementation of MessageListener.onMessage()
+    public void onMessage(String fromUser, String message) {
+        if (message.contains("$QUIT") || message.contains("<q>")) { // If the message is a special quit indicator, then the other user has decide to quit the session.
+            disconnected(fromUser);
+        }
+        else if (!message.isEmpty()) { // Otherwise, if the message is not blank, then print it out to screen.
+            System.out.print("\n\n\t[" + fromUser + "] >>> " + message + "\n\n (continue message) >>> ");  
+        }
+    }
+
+    // Implementation of MessageListener.onClose()
+    public void onClose(String otherUser) {
+        disconnected(otherUser);
+    }
+
+    // Implementation of FileListener.onOffer()
+    public Path onOffer(String fromUser, String name, long size) {
+        Path file = Paths.get(name).getFileName(); // Only the name, so the sender can't pick a directory.
+        if (file == null || file.toString().equals("..") || file.toString().endsWith(".part") || file.toString().endsWith(".part.id"))
+            return null;
+        try {
+            Files.createDirectories(RECEIVED);
+            if (size > MAX_FILE_SIZE || size > Files.getFileStore(RECEIVED).getUsableSpace()) {
+                System.out.print("\n\n\t<Declined " + file + " (" + size + " bytes) from " + fromUser + ": too large>\n\n (continue message) >>> ");
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        Path target = unusedName(file);
+        System.out.print("\n\n\t<Receiving " + target.getFileName() + " (" + size + " bytes) from " + fromUser + "...>\n\n (continue message) >>> ");
+        return target;
+    }
+
+    // Implementation of FileListener.onReceived()
+    public void onReceived(String fromUser, Path file) {
+        System.out.print("\n\n\t<Saved " + file + " from " + fromUser + ">\n\n (continue message) >>> ");
+    }
+
+    /**
+     * Helper method to return where in RECEIVED to save a file, never over one already there: its own name, or
+     * else "name (1).ext", "name (2).ext" and so on. A partial copy under the chosen name is carried on from.
+     */
+    private static Path unusedName(Path file) {
+        String name = file.toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        Path target = RECEIVED.resolve(file);
+        for (int copy = 1; Files.exists(target); copy++)
+            target = RECEIVED.resolve(base + " (" + copy + ")" + extension);
+        return target;
+    }
+
+    // Helper method to report the end of the session once, however it ended.
+    private void disconnected(String otherUser) {
+        if (sessionOver.complete(null))
+            System.out.println("\n\n\tUser " + otherUser + " disconnected from the session. Press enter to exit...");
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+public class Registry {
+    /**
+     * Class:   Registry
+     * Purpose: Thread-safe home for the server's presence state. Maps usernames to the IP Address and Port Number
+     *          their Client is listening on, and tracks <waiter, waitingFor> pairs of users requesting a session.
+     *          A user may wait for any number of other users at once, but holds at most one request per pair.
+     *
+     *          Registrations are leases: a user that neither renews nor says HELLO again within the lease time is
+     *          dropped, as is every user registered over a connection once that connection closes. Registrations
+     *          are split across shards by username hash; lookups never lock, and expiry sweeps one shard at a time
+     *          so no single sweep walks the whole table.
+     *
+     *          Registrations can be kept on disk with a PresenceStore. After a restart, restore() replays the
+     *          store's log and answers lookups straight from its memory-mapped snapshot while a background thread
+     *          loads the snapshot into the shards. Waiting requests are not kept: each one is answered over its
+     *          Client's connection, which a restart closes.
+     * Usage:   Create one Registry per Server and share it between all of the Server's event loop threads.
+     *          Call expire() regularly to drop lapsed leases and requests.
+     */
+
+    private static final int LOCK_STRIPES = 64; // Number of locks used to make pairing decisions atomic.
+    private static final int SHARDS = 16;       // Number of maps registrations are split across.
+    private static final int MAX_HOSTS = 1 << 16; // Most distinct non-IPv4 hosts kept interned.
+    public static final long DEFAULT_LEASE = 90 * 1000;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ConcurrentHashMap<String, Presence>[] shards = new ConcurrentHashMap[SHARDS]; // Will map usernames to IP Address & Port Number
+    private final ConcurrentHashMap<String, String> hosts = new ConcurrentHashMap<>(); // One copy of each host name, shared by every user on it
+    private final long leaseMillis;
+    private int nextShard; // Next shard to sweep. Only touched by the thread calling expire().
+    private volatile PresenceStore store;        // Where changes are logged, or null if nothing is kept on disk
+    private volatile PresenceSnapshot restoring; // Snapshot still being loaded into the shards, or null once done
+    private final Set<String> dropped = ConcurrentHashMap.newKeySet(); // Users removed while restoring, who must not come back from the snapshot
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, PendingConnect>> waiting = new ConcurrentHashMap<>(); // Will map waiting usernames to their pending CONNECT requests, by the user they want
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    // Constructor for Registry object. Registrations last DEFAULT_LEASE ms unless renewed.
+    public Registry() {
+        this(DEFAULT_LEASE);
+    }
+
+    // Constructor for Registry object. Accepts how long a registration lasts without being renewed, in ms.
+    public Registry(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new ConcurrentHashMap<>();
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Associate a username with the address its Client is listening on, for one lease. The owner is the connection
+     * the user registered over; when it closes, Server.connectionClosed() drops the user again with unregister(username, owner).
+     * Returns the stored copy of the username, which callers should use in place of their own.
+     */
+    public String register(String username, String host, int port, Object owner) {
+        if (Presence.parseIPv4(host) < 0) // IPv4 literals are packed into the entry, only other hosts need a shared copy.
+            host = internHost(host);
+        Presence presence = new Presence(canonical(username), host, port, owner, System.currentTimeMillis() + leaseMillis);
+        shard(username).put(presence.getUsername(), presence);
+        PresenceStore current = store;
+        if (current != null)
+            current.logRegister(presence);
+        return presence.getUsername();
+    }
+
+    /**
+     * Extend a user's lease. The registration moves to the given connection, so a Client that comes back over a
+     * new connection, for example after a Server restart, can keep its registration without saying HELLO again.
+     * Returns false if the user is not registered, in which case they must say HELLO again.
+     */
+    public boolean renew(String username, Object owner) {
+        long expiresAt = System.currentTimeMillis() + leaseMillis;
+        if (restoring != null)
+            restore(username);
+        return shard(username).computeIfPresent(username, (name, presence) -> { // Under the map's lock, so a sweep can't drop a lease mid-renewal.
+            presence.expiresAt = expiresAt;
+            presence.owner = owner;
+            return presence;
+        }) != null;
+    }
+
+    // Drop a user's registration, but only if it was made over the given connection.
+    public boolean unregister(String username, Object owner) {
+        boolean[] removed = new boolean[1];
+        shard(username).computeIfPresent(username, (name, presence) -> {
+            removed[0] = presence.getOwner() == owner;
+            return removed[0] ? null : presence;
+        });
+        if (removed[0])
+            removed(username);
+        return removed[0];
+    }
+
+    // Return the registration for a username, or null if the user never said HELLO or their lease has run out.
+    public Presence get(String username) {
+        Presence presence = shard(username).get(username);
+        if (presence == null && restoring != null)
+            presence = restore(username);
+        return presence == null || presence.expiresAt <= System.currentTimeMillis() ? null : presence;
+    }
+
+    // Return the address registered for a username, or null if the user is not registered.
+    public InetSocketAddress lookup(String username) {
+        Presence presence = get(username);
+        return presence == null ? null : presence.toAddress();
+    }
+
+    // Returns True if the user is registered and their lease has not run out.
+    public boolean isRegistered(String username) {
+        return get(username) != null;
+    }
+
+    /**
+     * Return the Registry's copy of a username if the user is registered, otherwise the name itself.
+     * Lets requests that name a user share one String instead of each holding their own.
+     */
+    public String canonical(String username) {
+        Presence presence = shard(username).get(username);
+        return presence == null ? username : presence.getUsername();
+    }
+
+    /**
+     * Drop registrations whose lease ran out before now, sweeping one shard per call so the cost of each call
+     * stays small however many users are registered. Returns the number of users dropped.
+     */
+    public int expireLeases(long now) {
+        ConcurrentHashMap<String, Presence> shard = shards[nextShard];
+        nextShard = (nextShard + 1) % shards.length;
+        int expired = 0;
+        for (Presence presence : shard.values()) {
+            if (presence.expiresAt <= now && shard.computeIfPresent(presence.getUsername(), (name, current) -> current.expiresAt <= now ? null : current) == null) {
+                removed(presence.getUsername());
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Record that a user wants a session with another user.
+     * If the other user is already waiting for this one, the other user's request is removed from the waiting list
+     * and returned so both sides can be told about each other. Otherwise the request is added to the waiting list,
+     * replacing any earlier request for the same pair, and null is returned.
+     */
+    public PendingConnect connect(PendingConnect request) {
+        String fromUser = request.getFromUser();
+        String toUser = request.getToUser();
+        synchronized (pairLock(fromUser, toUser)) { // Both sides of a pair share a lock, so simultaneous requests can't both end up waiting.
+            PendingConnect other = pending(toUser, fromUser);
+            if (other != null && (other.isRemote() || isRegistered(toUser))) { // Other user is already waiting for this user. Remote users are registered with their own Server.
+                removeEntry(other);
+                return other;
+            }
+            waiting.compute(fromUser, (user, requests) -> {
+                if (requests == null)
+                    requests = new ConcurrentHashMap<>();
+                requests.put(toUser, request);
+                return requests;
+            });
+            return null;
+        }
+    }
+
+    // Remove a user's request for another user from the waiting list. Returns the request, or null if there was none.
+    public PendingConnect quit(String username, String toUser) {
+        synchronized (pairLock(username, toUser)) {
+            PendingConnect request = pending(username, toUser);
+            return request != null && removeEntry(request) ? request : null;
+        }
+    }
+
+    // Remove every request a user has on the waiting list. Returns the requests that were removed.
+    public List<PendingConnect> quit(String username) {
+        List<PendingConnect> removed = new ArrayList<>();
+        ConcurrentHashMap<String, PendingConnect> requests = waiting.get(username);
+        if (requests == null)
+            return removed;
+        for (PendingConnect request : requests.values()) {
+            if (remove(request))
+                removed.add(request);
+        }
+        return removed;
+    }
+
+    // Remove a specific request from the waiting list, if it is still there.
+    public boolean remove(PendingConnect request) {
+        synchronized (pairLock(request.getFromUser(), request.getToUser())) {
+            return removeEntry(request);
+        }
+    }
+
+    // Remove and return every waiting request whose deadline has passed.
+    public List<PendingConnect> expire(long now) {
+        List<PendingConnect> expired = new ArrayList<>();
+        for (ConcurrentHashMap<String, PendingConnect> requests : waiting.values()) {
+            for (PendingConnect request : requests.values()) {
+                if (request.getDeadline() <= now && remove(request))
+                    expired.add(request);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Load registrations kept by a PresenceStore. Replays the store's log at once, then loads its snapshot in the
+     * background; until that finishes, users not loaded yet are looked up in the snapshot file directly.
+     * Changes are logged to the store from then on. Call before the Server starts taking requests.
+     */
+    public void restore(PresenceStore presenceStore) throws IOException {
+        PresenceSnapshot snapshot = presenceStore.getSnapshot();
+        restoring = snapshot;
+        presenceStore.replay(this);
+        store = presenceStore;
+        if (snapshot == null)
+            return;
+        Thread loader = new Thread(() -> {
+            snapshot.forEach(System.currentTimeMillis() + leaseMillis, presence -> {
+                if (!dropped.contains(presence.getUsername()))
+                    shard(presence.getUsername()).putIfAbsent(presence.getUsername(), intern(presence));
+            });
+            restoring = null;
+        }, "registry-restore");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    // Returns True once every registration from the last snapshot has been loaded, or if there was none.
+    public boolean isRestored() {
+        return restoring == null;
+    }
+
+    // Pass every registration to the consumer, including any whose lease has run out but not been swept yet.
+    public void forEachPresence(Consumer<Presence> consumer) {
+        for (ConcurrentHashMap<String, Presence> shard : shards)
+            shard.values().forEach(consumer);
+    }
+
+    // Called by PresenceStore.replay() for each logged registration.
+    void replayRegister(String username, long packed, String host) {
+        Presence presence = intern(new Presence(username, packed, host, null, System.currentTimeMillis() + leaseMillis));
+        shard(username).put(username, presence);
+    }
+
+    // Called by PresenceStore.replay() for each logged removal.
+    void replayUnregister(String username) {
+        shard(username).remove(username);
+        if (restoring != null)
+            dropped.add(username);
+    }
+
+    // Number of users currently registered with the server, including any whose lease has run out but not been swept yet.
+    public int registeredCount() {
+        int count = 0;
+        for (ConcurrentHashMap<String, Presence> shard : shards)
+            count += shard.size();
+        return count;
+    }
+
+    // Number of requests currently waiting for another user.
+    public int waitingCount() {
+        int count = 0;
+        for (ConcurrentHashMap<String, PendingConnect> requests : waiting.values())
+            count += requests.size();
+        return count;
+    }
+
+    // Helper method to find the request one user holds for another, or null.
+    private PendingConnect pending(String fromUser, String toUser) {
+        ConcurrentHashMap<String, PendingConnect> requests = waiting.get(fromUser);
+        return requests == null ? null : requests.get(toUser);
+    }
+
+    // Helper method to take a request off the waiting list, dropping the user's entry once it is empty. Caller holds the pair lock.
+    private boolean removeEntry(PendingConnect request) {
+        boolean[] removed = new boolean[1];
+        waiting.computeIfPresent(request.getFromUser(), (user, requests) -> {
+            removed[0] = requests.remove(request.getToUser(), request);
+            return requests.isEmpty() ? null : requests;
+        });
+        return removed[0];
+    }
+
+    // Helper method to log the removal of a registration, and keep the user from coming back from a snapshot still being loaded.
+    private void removed(String username) {
+        if (restoring != null)
+            dropped.add(username);
+        PresenceStore current = store;
+        if (current != null)
+            current.logUnregister(username);
+    }
+
+    // Helper method to load one user from the snapshot still being restored, ahead of the background loader.
+    private Presence restore(String username) {
+        PresenceSnapshot snapshot = restoring;
+        if (snapshot == null || dropped.contains(username))
+            return null;
+        Presence presence = snapshot.lookup(username, System.currentTimeMillis() + leaseMillis);
+        if (presence == null)
+            return null;
+        Presence existing = shard(username).putIfAbsent(username, intern(presence));
+        return existing != null ? existing : presence;
+    }
+
+    // Helper method to share the host name of a registration read from disk.
+    private Presence intern(Presence presence) {
+        if (presence.getRawHost() == null)
+            return presence;
+        return new Presence(presence.getUsername(), presence.getPacked(), internHost(presence.getRawHost()), null, presence.expiresAt);
+    }
+
+    // Helper method to pick the shard a username's registration lives in.
+    private ConcurrentHashMap<String, Presence> shard(String username) {
+        int hash = username.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (SHARDS - 1)];
+    }
+
+    // Helper method to share one copy of each host name. Gives up interning once there are too many distinct hosts.
+    private String internHost(String host) {
+        String shared = hosts.get(host);
+        if (shared != null)
+            return shared;
+        if (hosts.size() >= MAX_HOSTS)
+            return host;
+        shared = hosts.putIfAbsent(host, host);
+        return shared != null ? shared : host;
+    }
+
+    // Helper method to pick the lock guarding a pair of users. Symmetric, so (a, b) and (b, a) share a lock.
+    private Object pairLock(String a, String b) {
+        int hash = a.hashCode() ^ b.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Room {
+    /**
+     * Class:   Room
+     * Purpose: A multi-user chat room whose messages are relayed by the Server.
+     *          Each message is encoded once into a direct buffer and every member's connection is handed
+     *          a read-only view of the same bytes, so fan-out costs no per-recipient encoding or copying.
+     * Usage:   Rooms are created on demand by the Server. Call join()/leave() to manage members and publish() to relay a message.
+     */
+
+    private final String name;
+    private final ConcurrentHashMap<ServerConnection, String> members = new ConcurrentHashMap<>(); // Member connections and their usernames
+    private final LongAdder dropped = new LongAdder(); // Messages not delivered because a member's outbound queue was full
+
+    // Constructor accepts the name of the room.
+    public Room(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Add a user's connection to the room.
+    public void join(ServerConnection connection, String username) {
+        members.put(connection, username);
+        connection.addRoom(this);
+    }
+
+    // Remove a connection from the room. Returns true if the room is now empty.
+    public boolean leave(ServerConnection connection) {
+        members.remove(connection);
+        connection.removeRoom(this);
+        return members.isEmpty();
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Relay a message from one member to every other member of the room.
+     * The message field is copied straight from the sender's frame without being decoded.
+     * Members whose outbound queue is full miss the message rather than slowing down everyone else.
+     * Returns the number of members that missed it.
+     */
+    public int publish(ServerConnection sender, String fromUser, FrameReader message) throws IOException {
+        FrameWriter writer = new FrameWriter(Protocol.ROOM); // Pushed to members, so it carries no request id.
+        writer.string(name).string(fromUser);
+        message.copyField(writer);
+        ByteBuffer frame = writer.toDirectBuffer().asReadOnlyBuffer(); // Direct, so the socket write does not copy it again per member.
+        int missed = 0;
+        for (ServerConnection member : members.keySet()) {
+            if (member == sender)
+                continue;
+            if (!member.offer(frame.duplicate()))
+                missed++;
+        }
+        dropped.add(missed);
+        return missed;
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+public interface RoomListener {
+    /**
+     * Interface: RoomListener
+     * Purpose:   Receive messages relayed by the Server from the chat rooms a Client has joined.
+     * Usage:     Implement onRoomMessage() and pass the listener to Client.setRoomListener().
+     *            Called on the Client's control channel thread, so implementations should return quickly.
+     */
+    void onRoomMessage(String room, String fromUser, String message);
+}
@@ -0,0 +1,224 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SendPipeline {
+    /**
+     * Class:   SendPipeline
+     * Purpose: Outbound queue for a FramedConnection. Frames submitted from any thread are collected into batches
+     *          and written with a single gathering write, so a burst of small messages costs a few large writes
+     *          instead of one system call and TCP segment per message. Writes happen on the connection's
+     *          ClientEventLoop, so a pipeline needs no thread of its own.
+     * Usage:   Created by a FramedConnection. Call submit() for each frame; the returned future completes with true
+     *          once the frame has been written, or false if the connection failed first.
+     *          Use setFlushDelay() to let the pipeline wait briefly for more frames before writing a small batch.
+     *          submitFile() queues a frame followed by part of a file, which is copied to the socket with
+     *          FileChannel.transferTo() so it never passes through the heap, unless the connection uses TLS.
+     */
+
+    private static final int MAX_BATCH_FRAMES = 256;
+    private static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+
+    private final FramedConnection connection;
+    private final Queue<OutboundFrame> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_BATCH_FRAMES]; // Only used on the loop thread.
+    private final OutboundFrame[] batch = new OutboundFrame[MAX_BATCH_FRAMES];
+    private volatile long flushDelayNanos = 0;          // Longest a frame may wait for a batch to fill up.
+    private volatile int maxBatchBytes = DEFAULT_BATCH_BYTES;
+    private volatile boolean closed;
+    private boolean waitingForWritable;                 // Socket buffer was full on the last write.
+
+    // Constructor accepts the connection whose frames this pipeline writes.
+    public SendPipeline(FramedConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Queue a frame to be written. Safe to call from any thread.
+     * The future completes with true once the frame is written, or false if it never will be.
+     */
+    public CompletableFuture<Boolean> submit(ByteBuffer frame) {
+        return submit(new OutboundFrame(frame, null, 0, 0));
+    }
+
+    /**
+     * Queue a frame followed directly by count bytes of a file, starting at position. Nothing else is written
+     * between the two. The future completes with true once the last byte of the file has been written.
+     * The caller keeps ownership of the file channel and closes it.
+     */
+    public CompletableFuture<Boolean> submitFile(ByteBuffer frame, FileChannel file, long position, long count) {
+        return submit(new OutboundFrame(frame, file, position, count));
+    }
+
+    // Helper method to queue a frame and make sure a flush is on its way.
+    private CompletableFuture<Boolean> submit(OutboundFrame outbound) {
+        if (closed) {
+            outbound.done.complete(false);
+            return outbound.done;
+        }
+        queue.add(outbound);
+        long bytes = queuedBytes.addAndGet(outbound.size);
+        if (closed) { // close() may have drained the queue before this frame went in.
+            failPending();
+            return outbound.done;
+        }
+        if (flushScheduled.compareAndSet(false, true)) { // First frame of a new batch.
+            long delay = flushDelayNanos;
+            if (delay > 0 && bytes < maxBatchBytes)
+                connection.getLoop().schedule(this::scheduledFlush, delay); // Linger for more frames, up to the flush delay.
+            else
+                connection.getLoop().execute(this::scheduledFlush);
+        }
+        else if (bytes >= maxBatchBytes && bytes - outbound.size < maxBatchBytes) {
+            connection.getLoop().execute(this::flush); // This frame filled the batch, don't wait out the delay.
+        }
+        return outbound.done;
+    }
+
+    // Set the longest time a frame may wait for more frames to join its batch, in milliseconds. 0 writes as soon as possible.
+    public void setFlushDelay(long millis) {
+        flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    // Set the batch size, in bytes, at which a batch is written without waiting any longer.
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Returns True if frames are waiting to be written.
+    public boolean hasPending() {
+        return !queue.isEmpty();
+    }
+
+    // Number of bytes queued and not yet written.
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    // Stop the pipeline. Frames that have not been written yet complete with false.
+    public void close() {
+        closed = true;
+        failPending();
+    }
+
+    /**
+     * Write as many queued frames as the socket will take, in batches of gathering writes.
+     * Called on the loop thread.
+     */
+    void flush() {
+        if (closed || !connection.isRegistered())
+            return;
+        try {
+            while (true) {
+                int count = 0;
+                Iterator<OutboundFrame> frames = queue.iterator(); // Only the loop thread removes, so the head is stable.
+                while (count < MAX_BATCH_FRAMES && frames.hasNext()) {
+                    batch[count] = frames.next();
+                    buffers[count] = batch[count].frame;
+                    if (batch[count++].file != null)
+                        break; // The file's bytes have to follow its frame, so the batch ends here.
+                }
+                if (count == 0)
+                    break;
+                long sent = connection.write(buffers, 0, count);
+                int written = 0;
+                long bytes = 0;
+                while (written < count && !buffers[written].hasRemaining()) {
+                    if (batch[written].file != null) {
+                        sent += transferFile(batch[written]);
+                        if (batch[written].position < batch[written].end)
+                            break; // Socket buffer filled up part way through the file.
+                    }
+                    queue.poll();
+                    bytes += batch[written].size;
+                    batch[written].done.complete(true);
+                    written++;
+                }
+                queuedBytes.addAndGet(-bytes);
+                connection.countSent(sent, written);
+                for (int i = 0; i < count; i++) {
+                    batch[i] = null;
+                    buffers[i] = null;
+                }
+                if (written < count) { // Socket buffer is full, carry on once the channel is writable again.
+                    if (!waitingForWritable)
+                        connection.setWriteInterest(true);
+                    waitingForWritable = true;
+                    return;
+                }
+            }
+            if (waitingForWritable) {
+                connection.setWriteInterest(false);
+                waitingForWritable = false;
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    // Helper method to copy as much of a frame's file to the socket as it will take. Returns the bytes written.
+    private long transferFile(OutboundFrame outbound) throws IOException {
+        long sent = 0;
+        while (outbound.position < outbound.end) {
+            long written = connection.transferFile(outbound.file, outbound.position, outbound.end - outbound.position);
+            if (written <= 0) {
+                if (outbound.position >= outbound.file.size()) // The other end expects bytes that are not there.
+                    throw new IOException("File shorter than promised");
+                break;
+            }
+            outbound.position += written;
+            sent += written;
+        }
+        return sent;
+    }
+
+    // Helper method run on the loop thread when a batch is due. Lets the next submit() schedule another batch.
+    private void scheduledFlush() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    // Helper method to fail every frame still in the queue.
+    private void failPending() {
+        OutboundFrame outbound;
+        while ((outbound = queue.poll()) != null)
+            outbound.done.complete(false);
+        queuedBytes.set(0);
+    }
+
+    // A frame waiting to be written, the part of a file to follow it if any, and the future to complete once both are.
+    private static class OutboundFrame {
+        final ByteBuffer frame;
+        final int size;
+        final FileChannel file;
+        long position;
+        final long end;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        OutboundFrame(ByteBuffer frame, FileChannel file, long position, long count) {
+            this.frame = frame;
+            this.size = frame.remaining();
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+    }
+}
@@ -3,7 +3,10 @@
  * CS 4390 Spring 2022 UT Dallas
  * Socket Programming Project
  */
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 public class SendThread extends Thread {
     /**
@@ -13,43 +16,61 @@ public class SendThread extends Thread {
      */
     private Client client; // Associated client object
     private Scanner kbIn; // Scanner to retrieve keyboard input
+    private CompletableFuture<Void> sessionOver; // Completed when this thread stops sending
 
-    // Constructor accepts a Client object for whom to send messages for and a Scanner object to accept keyboard input.
-    public SendThread(Client client, Scanner scanner) {
+    // Constructor accepts a Client object for whom to send messages for, a Scanner object to accept keyboard input,
+    // and a future to complete once this user leaves the session.
+    public SendThread(Client client, Scanner scanner, CompletableFuture<Void> sessionOver) {
         this.client = client;
         this.kbIn = scanner;
+        this.sessionOver = sessionOver;
     }
     
     // Implementation of Thread.run()
     public void run() {
         String message = "";
-        int numAttempts = 0; // numAttempts used to exit chat if cannot contact other user within a reasonable number of tries.
         do {
             boolean status = true;
             //System.out.print("\n\t\t >>> ");
             System.out.print("\n\t[" + client.getFromUser() + "] >>> ");
             try {
                 message = kbIn.nextLine(); // Get message from keyboard input.
-                status = client.sendMessage(message); // Use Client object to send message in chat.
+                if (isInterrupted()) // Session already ended on the other side, this was the enter key to exit.
+                    break;
+                if (message.startsWith("/file ")) { // Send a file in the background; chat carries on while it goes.
+                    sendFile(message.substring("/file ".length()).trim());
+                    continue;
+                }
+                status = client.sendMessage(message); // Use Client object to send message in chat. Waits out a reconnect.
                 if (message.contains("<q>")) // If the keyboard input is the special quit message, then quit this thread.
                     break;
-                if (numAttempts >= 2) { // If cannot reach other user within 2 attempts, quit chat.
+                if (status == false) { // The session could not be resumed, so leave the message with the server instead and quit chat.
                     System.out.println();
+                    if (!message.isEmpty() && client.leaveMessage(client.getToUser(), message).join())
+                        System.out.println("\t<" + client.getToUser() + " could not be reached. Your message was left with the server for when they return.>");
+                    else
+                        System.out.println("\t<Previous message may not have been delivered. Please re-send the message.>");
                     System.out.println("\t<Other user may be unavailable. Please restart application.>");
                     break;
                 }
-                else if (status == false) { // If client failed to send message, then print the below and increment numAttempts.
-                    System.out.println();
-                    System.out.println("\t<Previous message may not have been delivered. Please re-send the message.>");
-                    numAttempts++;
-                }
                 else if (!message.isEmpty()) { // Otherwise, if the message is not blank then print the message to screen.
                 }
             } catch (Exception e) {
                 break;
             }
         } while (!message.contains("<q>") && !interrupted());
+        sessionOver.complete(null);
         return;
     }
 
+    // Helper method to send a file named on the keyboard and report how it went once it is done.
+    private void sendFile(String name) {
+        CompletableFuture<Boolean> sent;
+        try {
+            sent = client.sendFile(Paths.get(name));
+        } catch (InvalidPathException e) {
+            sent = CompletableFuture.completedFuture(false);
+        }
+        sent.thenAccept(ok -> System.out.print("\n\n\t<" + name + (ok ? " sent" : " could not be sent") + ">\n\n (continue message) >>> "));
+    }
 }
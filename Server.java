@@ -1,6 +1,8 @@
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 /**
  * Pranay Yadav
  * CS 4390 Spring 2022 UT Dallas
@@ -11,79 +13,579 @@ import java.net.Socket;
  *              Take the IP:Port address printed out to stdout and provide it as
  *              command line argument when running the ChatApp.java file.
  */
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class:   Server
  * Purpose: Run the server side logic for the Chat App.
+ *          Connections are accepted on the main thread and spread across a set of ServerLoop threads,
+ *          each of which multiplexes many connections, so one slow client cannot stall the others.
+ *          AdmissionControl turns away connections and requests over their limits with a quick BUSY, so one
+ *          flooding host or user cannot crowd out the rest.
+ *          Given a TlsContext, every connection is TLS, handshaken on the ServerLoops.
  */
 public class Server {
+    private static final long DEFAULT_WAIT = 20*1000; // How long a CONNECT is held when the client does not say.
+    private static final long MAX_WAIT = 10*60*1000;
+    private static final long EXPIRY_INTERVAL = 100;
+    private static final long SWEEP_INTERVAL = 1000;  // How often idle rate limiting state is dropped, in ms.
+    private static final int MAX_BACKLOG = 1024;      // Connections waiting for a ServerLoop beyond which new ones are shed.
+    private static final ByteBuffer BUSY = new FrameWriter(Protocol.BUSY, Protocol.NO_REPLY, 8).varint(AdmissionControl.RETRY_AFTER).toBuffer();
+
+    private final Registry registry; // Presence state shared by every ServerLoop
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>(); // Chat rooms relayed by this server
+    private final ServerLoop[] loops;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "server-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocketChannel serverChannel;
+    private final ByteBuffer discard = ByteBuffer.allocate(256); // Input thrown away by reject(), on the accepting thread
+    private volatile Cluster cluster; // Servers that split the waiting list between them, or null when running alone
+    private PresenceStore store;      // Where registrations are kept across restarts, or null
+    private OfflineStore offline;     // Messages kept for users who are not online, or null
+    private volatile TlsContext tls;  // Keys for TLS connections, or null for plain TCP
+    private volatile boolean quitServer = false;
+
+    // Instrumentation. Looked up once here so the hot paths only touch LongAdders and histograms.
+    private final Metrics metrics = new Metrics();
+    private final AdmissionControl admission = new AdmissionControl(metrics);
+    private final LatencyHistogram[] commandTime = new LatencyHistogram[128]; // Handling time by request opcode
+    private final LatencyHistogram pairingTime = metrics.histogram("server_pairing_ns");
+    private final LongAdder accepted = metrics.counter("server_connections_accepted");
+    private final LongAdder acceptErrors = metrics.counter("server_errors{type=\"accept\"}");
+    private final LongAdder shed = metrics.counter("server_rejected{reason=\"backlog\"}");
+    private final LongAdder unknownCommands = metrics.counter("server_errors{type=\"unknown_command\"}");
+    private final LongAdder closed = metrics.counter("server_connections_closed");
+    private final LongAdder paired = metrics.counter("server_pairs_matched");
+    private final LongAdder timedOut = metrics.counter("server_requests_timed_out");
+    private final LongAdder cancelled = metrics.counter("server_requests_cancelled");
+    private final LongAdder roomMessages = metrics.counter("server_room_messages");
+    private final LongAdder roomDropped = metrics.counter("server_room_dropped");
+    private final LongAdder leasesExpired = metrics.counter("server_leases_expired");
+    private final LongAdder forwardedRequests = metrics.counter("server_cluster_forwarded");
+    private final LongAdder forwardErrors = metrics.counter("server_errors{type=\"cluster\"}");
+
+    /**
+     * Constructor for Server object.
+     * Accepts the number of event loop threads used to service connections.
+     */
+    public Server(int numLoops) throws IOException {
+        this(numLoops, Registry.DEFAULT_LEASE);
+    }
+
     /**
-     * Main method. Runs the server logic in a while loop.
+     * Constructor for Server object.
+     * Accepts the number of event loop threads, and how long a user stays registered without renewing, in ms.
      */
-    public static void main(String[] args) throws IOException, EOFException {
+    public Server(int numLoops, long leaseMillis) throws IOException {
+        registry = new Registry(leaseMillis);
+        loops = new ServerLoop[numLoops];
+        for (int i = 0; i < numLoops; i++)
+            loops[i] = new ServerLoop(this, i);
+        String[] commands = { null, "hello", "connect", "quit", "join", "leave", "say", "renew", "forward", "store" };
+        for (int opcode = 1; opcode < commands.length; opcode++)
+            commandTime[opcode] = metrics.histogram("server_command_ns{command=\"" + commands[opcode] + "\"}");
+        metrics.gauge("server_connections_open", () -> accepted.sum() - closed.sum());
+        metrics.gauge("server_registered_users", registry::registeredCount);
+        metrics.gauge("server_waiting_requests", registry::waitingCount);
+        metrics.gauge("server_rooms", rooms::size);
+    }
+
+    /**
+     * Main method. Starts the server on port 1600 (or the port given as the first argument).
+     * Metrics are published over JMX, and as plain text on http://<host>:<port>/metrics if a second argument gives the port.
+     * To run several Servers as one, give each of them the same list of every node with --cluster:
+     *     $ java Server 1601 --cluster localhost:1600,localhost:1601,localhost:1602
+     * To keep registrations across restarts, and messages for users who are offline, name a directory with --data:
+     *     $ java Server 1600 --data /var/lib/chatapp
+     * To change the admission limits, or turn them off with "off", see AdmissionControl.configure():
+     *     $ java Server 1600 --limits host-connections=4096,host-rate=50000
+     * To accept only TLS connections, add --tls and name the key store with the standard system properties:
+     *     $ java -Djavax.net.ssl.keyStore=server.p12 -Djavax.net.ssl.keyStorePassword=secret Server 1600 --tls
+     */
+    public static void main(String[] args) throws IOException {
         int serverPort = 1600; // server port number
-        ServerSocket serverSocket = new ServerSocket(serverPort); // Create TCP ServerSocket
-        System.out.println("Server started on address:port >>> " + InetAddress.getLocalHost().getHostAddress() + ":" + serverPort);
-        boolean quitServer = false;
-        HashMap<String, String> nameToIP = new HashMap<>(); // Will map usernames to IP Address & Port Number
-        HashMap<String, String> waiting = new HashMap<>(); // Will contain <waiter, waitingFor> pairs of usernames
-
-        while (!quitServer) { // Main loop to accept incoming connection requests.
-            Socket clientSocket = serverSocket.accept(); // Accept incoming TCP connection
-
-            /* Get associated output and input streams for the TCP connection */
-            DataOutputStream clientOut = new DataOutputStream(clientSocket.getOutputStream());
-            DataInputStream clientIn = new DataInputStream(clientSocket.getInputStream());
-            clientSocket.setSoTimeout(250); // set timeout to 250 ms
+        String clusterList = null;
+        String dataDirectory = null;
+        String limits = null;
+        boolean secure = false;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--cluster"))
+                clusterList = args[++i];
+            else if (args[i].equals("--data"))
+                dataDirectory = args[++i];
+            else if (args[i].equals("--limits"))
+                limits = args[++i];
+            else if (args[i].equals("--tls"))
+                secure = true;
+            else
+                positional.add(args[i]);
+        }
+        args = positional.toArray(new String[0]);
+        if (args.length > 0)
+            serverPort = Integer.parseInt(args[0]);
+        Server server = new Server(Runtime.getRuntime().availableProcessors());
+        if (clusterList != null)
+            server.setCluster(Cluster.parse(clusterList, serverPort));
+        if (dataDirectory != null)
+            server.setDataDirectory(Paths.get(dataDirectory));
+        if (limits != null)
+            server.getAdmission().configure(limits);
+        if (secure)
+            server.setTls(TlsContext.getDefault());
+        server.start(serverPort);
+        server.getMetrics().registerMBean("Server", Integer.toString(server.getPort()));
+        System.out.println("Server started on address:port >>> " + InetAddress.getLocalHost().getHostAddress() + ":" + server.getPort());
+        if (args.length > 1) {
+            MetricsEndpoint endpoint = new MetricsEndpoint(Integer.parseInt(args[1]), server.getMetrics());
+            System.out.println("Metrics on http://" + InetAddress.getLocalHost().getHostAddress() + ":" + endpoint.getPort() + "/metrics");
+        }
+        server.acceptLoop();
+    }
+
+    // Bind the listening socket and start the event loops.
+    public void start(int serverPort) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(serverPort), 1024); // Create TCP ServerSocketChannel
+        if (cluster != null && tls != null)
+            cluster.setTls(tls); // The other nodes listen on TLS too.
+        for (ServerLoop loop : loops)
+            loop.start();
+        timer.scheduleWithFixedDelay(this::expirePending, EXPIRY_INTERVAL, EXPIRY_INTERVAL, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(admission::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Return the port the server is listening on.
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Join the other Servers of a cluster, which split the waiting list of CONNECT requests between them by pair.
+     * Registrations stay on this Server, which holds the connections of the Clients that made them. Call before start().
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+        for (String host : cluster.getPeerHosts()) { // Forwarded requests from the other nodes are never rate limited.
+            try {
+                for (InetAddress address : InetAddress.getAllByName(host))
+                    admission.exempt(address);
+            } catch (UnknownHostException e) {
+                // Not resolvable now; its requests are limited like any other host's.
+            }
+        }
+        metrics.gauge("server_cluster_nodes", cluster::size);
+    }
+
+    /**
+     * Keep registrations, and messages left for offline users, in the given directory, and load any kept by an
+     * earlier run. Call before start(). Lookups are answered as soon as this returns; the rest of the snapshot
+     * loads in the background.
+     */
+    public void setDataDirectory(Path dir) throws IOException {
+        offline = new OfflineStore(dir.resolve("offline"), metrics);
+        store = new PresenceStore(dir);
+        registry.restore(store);
+        store.start(registry);
+        metrics.gauge("server_presence_dropped", store::getDropped);
+        metrics.gauge("server_restoring", () -> registry.isRestored() ? 0 : 1);
+    }
+
+    // Accept only TLS connections, with the keys and session cache of the given context. Call before start().
+    public void setTls(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    // Return the TlsContext connections are accepted with, or null for plain TCP.
+    public TlsContext getTls() {
+        return tls;
+    }
+
+    public Registry getRegistry() {
+        return registry;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    // Main loop to accept incoming connection requests. Runs until stop() is called.
+    public void acceptLoop() throws IOException {
+        int next = 0;
+        while (!quitServer) {
+            SocketChannel clientChannel;
             try {
-                String rcvMessage = clientIn.readUTF(); // Read in the message from the TCP client
-                /*  
-                    On Initial Server contact, map the username to the IP Address that sent the username. 
-                    Will be used to provide target address to clients attempting to connect to each other. 
-                */
-                if (rcvMessage.length() > 7 && rcvMessage.substring(0, 7).equals(("$HELLO:"))) { 
-                    String[] rcvList = rcvMessage.split(":");
-                    String username = rcvList[1];
-                    String sessionAddress = rcvList[2] + ":" + rcvList[3];
-                    nameToIP.put(username, sessionAddress);
+                clientChannel = serverChannel.accept(); // Accept incoming TCP connection
+            } catch (IOException e) {
+                if (quitServer)
+                    break;
+                acceptErrors.increment();
+                continue;
+            }
+            accepted.increment();
+            ServerLoop loop = loops[next];
+            next = (next + 1) % loops.length; // Hand connections out to the event loops in turn
+            AdmissionControl.Host host = null;
+            if (loop.getBacklog() < MAX_BACKLOG) {
+                try {
+                    host = admission.admit(((InetSocketAddress) clientChannel.getRemoteAddress()).getAddress());
+                } catch (IOException e) {
+                    acceptErrors.increment();
                 }
-                /*
-                    If server receives a $CONNECT request, it means the client is attempting to connect to another user.
-                */
-                else if (rcvMessage.length() > 9 && rcvMessage.substring(0, 9).equals("$CONNECT:")) {
-                    String[] msgList = rcvMessage.split(":");
-                    String fromUsername = msgList[1];
-                    String toUsername = msgList[2];
-                    if (!nameToIP.containsKey(toUsername) || !waiting.containsKey(toUsername)) { // Other user has not started their app or has not requested to join session
-                        clientOut.writeUTF("$WAIT"); // Send $WAIT message to Client to signal to them to wait for connection
-                        waiting.put(fromUsername, toUsername);
-                    }
-                    else if (waiting.containsKey(toUsername) && waiting.get(toUsername).equals(fromUsername)) { // Other user is already waiting, let incoming Client know what address to target. 
-                        clientOut.writeUTF("$ADDRESS:" + nameToIP.get(toUsername));
-                        waiting.remove(toUsername);
-                        waiting.remove(fromUsername);
-                    }
+            }
+            else {
+                shed.increment();
+            }
+            if (host == null) {
+                reject(clientChannel);
+                continue;
+            }
+            clientChannel.socket().setTcpNoDelay(true);
+            loop.addConnection(clientChannel, host);
+        }
+        serverChannel.close();
+    }
+
+    /**
+     * Helper method to turn away a connection without stalling the accept loop: a BUSY frame so the Client knows
+     * to back off rather than wait for a timeout, then close. Nothing here can block. With TLS the BUSY could only
+     * be sent after a handshake, which is what a busy Server cannot afford, so the connection is just closed.
+     */
+    private void reject(SocketChannel channel) {
+        try {
+            if (tls == null) {
+                channel.configureBlocking(false);
+                channel.write(BUSY.duplicate());
+                channel.shutdownOutput();
+                discard.clear();
+                channel.read(discard); // Closing with unread input sends a reset, which can discard the BUSY.
+            }
+        } catch (IOException e) {
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        closed.increment();
+    }
+
+    // Stop accepting connections and shut down the event loops.
+    public void stop() throws IOException {
+        quitServer = true;
+        serverChannel.close();
+        timer.shutdownNow();
+        metrics.unregisterMBean();
+        if (cluster != null)
+            cluster.close();
+        if (store != null)
+            store.close();
+        for (ServerLoop loop : loops)
+            loop.shutdown();
+    }
+
+    /**
+     * Handle one frame received from a client. Called on the ServerLoop thread that owns the connection.
+     * Requests are answered with a frame carrying the same request id, unless the id is Protocol.NO_REPLY.
+     */
+    void handleFrame(ServerConnection connection, FrameReader frame) throws IOException {
+        long start = System.nanoTime();
+        byte reply = handleRequest(connection, frame);
+        LatencyHistogram time = frame.opcode() > 0 ? commandTime[frame.opcode()] : null;
+        if (time != null)
+            time.record(System.nanoTime() - start);
+        else
+            unknownCommands.increment();
+        if (reply != 0 && frame.requestId() != Protocol.NO_REPLY) // No reply yet means the answer will be pushed later.
+            connection.reply(reply, frame.requestId());
+    }
+
+    /**
+     * Run a single request. Returns the opcode of a reply without fields, or 0 if the request has already
+     * been answered or is a CONNECT that is being held until the other user arrives.
+     */
+    private byte handleRequest(ServerConnection connection, FrameReader frame) throws IOException {
+        switch (frame.opcode()) {
+            /*  
+                On Initial Server contact, map the username to the IP Address that sent the username. 
+                Will be used to provide target address to clients attempting to connect to each other. 
+            */
+            case Protocol.HELLO: {
+                String username = frame.string();
+                if (!admission.takeUser(username))
+                    return busy(connection, frame.requestId());
+                String host = frame.string();
+                int port = (int) frame.varint();
+                boolean takesOffline = !frame.hasField() || frame.varint() != 0;
+                username = registry.register(username, host, port, connection);
+                connection.addUser(username); // Registered until the lease runs out or this connection closes.
+                connection.setTakesOffline(username, takesOffline);
+                if (frame.requestId() != Protocol.NO_REPLY)
+                    connection.reply(Protocol.OK, frame.requestId());
+                deliverOffline(username, connection); // After the OK, so the Client knows it is registered first.
+                return 0;
+            }
+            case Protocol.RENEW: { // Heartbeat from a registered user, keeps their lease alive.
+                String username = frame.string();
+                if (!admission.takeUser(username))
+                    return busy(connection, frame.requestId());
+                boolean takesOffline = !frame.hasField() || frame.varint() != 0;
+                if (!registry.renew(username, connection))
+                    return Protocol.ERROR;
+                username = registry.canonical(username);
+                connection.addUser(username); // Renewing over a new connection moves the registration to it.
+                connection.setTakesOffline(username, takesOffline);
+                if (frame.requestId() != Protocol.NO_REPLY)
+                    connection.reply(Protocol.OK, frame.requestId());
+                deliverOffline(username, connection);
+                return 0;
+            }
+            /*
+                Message for a user who may not be online. Pushed to them at once if they are, otherwise kept on disk
+                until they next say HELLO. Messages already waiting for them go first, to keep the order.
+            */
+            case Protocol.STORE: {
+                String fromUsername = frame.string();
+                if (!admission.takeUser(fromUsername))
+                    return busy(connection, frame.requestId());
+                String toUsername = frame.string();
+                String message = frame.string();
+                ByteBuffer delivery = new FrameWriter(Protocol.OFFLINE, Protocol.NO_REPLY, message.length() + 32)
+                    .string(fromUsername).string(message).varint(System.currentTimeMillis()).toBuffer();
+                Presence presence = registry.get(toUsername);
+                ServerConnection recipient = presence != null && presence.getOwner() instanceof ServerConnection ? (ServerConnection) presence.getOwner() : null;
+                if (recipient != null && (recipient.isClosed() || !recipient.takesOffline(toUsername)))
+                    recipient = null; // Kept until the user's Client is ready for it.
+                if (recipient != null && (offline == null || !offline.hasMessages(toUsername)) && recipient.offer(delivery))
+                    return Protocol.OK;
+                // Not online, or too far behind to queue more for: kept on disk, and drained one segment at a time.
+                if (offline == null || !offline.append(toUsername, delivery))
+                    return Protocol.ERROR; // Nowhere to keep it, or the user's mailbox is full.
+                if (recipient != null)
+                    offline.drain(toUsername, recipient);
+                return Protocol.OK;
+            }
+            /*
+                If server receives a CONNECT request, it means the client is attempting to connect to another user.
+            */
+            case Protocol.CONNECT: {
+                String fromUsername = registry.canonical(frame.string()); // Share the registry's copies of the names while the request is held.
+                if (!admission.takeUser(fromUsername))
+                    return busy(connection, frame.requestId());
+                String toUsername = registry.canonical(frame.string());
+                long waitTime = frame.hasField() ? Math.min(frame.varint(), MAX_WAIT) : DEFAULT_WAIT;
+                PendingConnect request = new PendingConnect(fromUsername, toUsername, connection, frame.requestId(),
+                                                            System.currentTimeMillis() + waitTime, registry.lookup(fromUsername), false);
+                int owner = ownerOf(fromUsername, toUsername);
+                if (owner >= 0) // Another Server in the cluster matches this pair.
+                    forwardConnect(owner, request, waitTime);
+                else
+                    pair(request);
+                return 0;
+            }
+            /*
+                CONNECT made by a user of another Server in the cluster, for a pair this Server owns.
+            */
+            case Protocol.FORWARD: {
+                String fromUsername = registry.canonical(frame.string());
+                String toUsername = registry.canonical(frame.string());
+                long waitTime = Math.min(frame.varint(), MAX_WAIT);
+                InetSocketAddress address = InetSocketAddress.createUnresolved(frame.string(), (int) frame.varint());
+                pair(new PendingConnect(fromUsername, toUsername, connection, frame.requestId(), System.currentTimeMillis() + waitTime,
+                                        address.getPort() == 0 ? null : address, true));
+                return 0;
+            }
+            case Protocol.QUIT: { // User has requested to manually remove their name from waiting list
+                String username = frame.string();
+                if (frame.hasField()) { // Only give up on one user.
+                    String toUsername = frame.string();
+                    cancelPending(registry.quit(username, toUsername));
+                    forwardQuit(username, toUsername);
+                    return Protocol.OK;
                 }
-                else if (rcvMessage.length() > 6 && rcvMessage.substring(0,6).equals("$QUIT:")) { // User has requested to manually remove their name from waiting list
-                    String[] msgList = rcvMessage.split(":");
-                    String username = msgList[1];
-                    waiting.remove(username); // Remove the user from the waiting HashMap
+                for (PendingConnect request : registry.quit(username)) // Remove every request by the user from the waiting list
+                    cancelPending(request);
+                for (PendingConnect request : connection.getForwarded()) {
+                    if (request.getFromUser().equals(username))
+                        forwardQuit(username, request.getToUser());
                 }
-                // Close socket and streams
-                clientIn.close();
-                clientOut.close();
-                clientSocket.close();
-            } catch (Exception e) {
-                clientIn.close();
-                clientOut.close();
-                clientSocket.close();
+                return Protocol.OK;
+            }
+            /*
+                Room requests. The server relays every SAY to the other members of the room as a pushed ROOM frame.
+            */
+            case Protocol.SAY: {
+                String roomName = frame.string();
+                String fromUsername = frame.string();
+                if (!admission.takeUser(fromUsername))
+                    return busy(connection, frame.requestId());
+                Room room = rooms.get(roomName);
+                if (room == null)
+                    return Protocol.ERROR;
+                roomMessages.increment();
+                roomDropped.add(room.publish(connection, fromUsername, frame));
+                return Protocol.OK;
+            }
+            case Protocol.JOIN: {
+                String roomName = frame.string();
+                String username = frame.string();
+                if (!admission.takeUser(username))
+                    return busy(connection, frame.requestId());
+                rooms.compute(roomName, (name, room) -> { // compute() keeps a join from racing with the removal of an empty room.
+                    if (room == null)
+                        room = new Room(name);
+                    room.join(connection, username);
+                    return room;
+                });
+                return Protocol.OK;
             }
+            case Protocol.LEAVE: {
+                leaveRoom(connection, frame.string());
+                return Protocol.OK;
+            }
+            default:
+                return Protocol.ERROR;
+        }
+    }
+
+    /**
+     * Helper method to match a CONNECT request against the waiting list of a pair this Server owns. Either holds the
+     * request until the other user asks too, or answers both users with each other's session address.
+     */
+    private void pair(PendingConnect request) {
+        cancelPending(registry.quit(request.getFromUser(), request.getToUser())); // A new request replaces any earlier one for the same pair.
+        PendingConnect other = registry.connect(request);
+        if (other == null) { // Other user has not started their app or has not requested to join session
+            request.getConnection().addPending(request); // Hold the reply until the other user arrives, the request expires, or it is cancelled.
+            return;
         }
-        serverSocket.close();
+        // Other user is already waiting. Tell them who is about to connect, and tell this Client what address to target.
+        if (other.getConnection() != null)
+            other.getConnection().removePending(other);
+        paired.increment();
+        pairingTime.record(System.nanoTime() - other.getCreated()); // Time the first user spent waiting for the second.
+        other.reply(addressFrame(Protocol.ACCEPT, request.getAddress()));
+        request.reply(addressFrame(Protocol.ADDRESS, other.getAddress()));
+    }
+
+    // Helper method to find the cluster node that matches requests between two users. Returns -1 if it is this Server.
+    private int ownerOf(String user, String otherUser) {
+        Cluster current = cluster;
+        if (current == null)
+            return -1;
+        int owner = current.owner(Cluster.pairKey(user, otherUser));
+        return owner == current.getSelf() ? -1 : owner;
+    }
+
+    /**
+     * Helper method to pass a CONNECT on to the cluster node that owns the pair, along with the requester's address.
+     * That node's answer is relayed to the Client as the reply to its own request; if the node cannot be reached,
+     * the Client gets ERROR and may ask again, by which time the pair has moved to the next node on the ring.
+     */
+    private void forwardConnect(int owner, PendingConnect request, long waitTime) {
+        ServerConnection connection = request.getConnection();
+        InetSocketAddress address = request.getAddress();
+        FrameWriter frame = new FrameWriter(Protocol.FORWARD).string(request.getFromUser()).string(request.getToUser()).varint(waitTime);
+        if (address == null)
+            frame.string("").varint(0);
+        else
+            frame.string(address.getHostString()).varint(address.getPort());
+        connection.addForwarded(request);
+        forwardedRequests.increment();
+        cluster.request(owner, frame).whenComplete((reply, error) -> {
+            connection.removeForwarded(request);
+            if (error != null) {
+                forwardErrors.increment();
+                request.reply(new FrameWriter(Protocol.ERROR));
+            } else if (reply.getHost() != null) {
+                request.reply(new FrameWriter(reply.getOpcode()).string(reply.getHost()).varint(reply.getPort()));
+            } else {
+                request.reply(new FrameWriter(reply.getOpcode()));
+            }
+        });
+    }
+
+    // Helper method to cancel a user's request for another user at the cluster node that owns the pair, if that is not this Server.
+    private void forwardQuit(String username, String toUsername) {
+        int owner = ownerOf(username, toUsername);
+        if (owner >= 0)
+            cluster.send(owner, new FrameWriter(Protocol.QUIT).string(username).string(toUsername));
+    }
+
+    // Helper method to answer a request turned away by AdmissionControl. Returns 0, as the reply has been sent.
+    private static byte busy(ServerConnection connection, int requestId) {
+        if (requestId != Protocol.NO_REPLY)
+            connection.send(new FrameWriter(Protocol.BUSY, requestId, 8).varint(AdmissionControl.RETRY_AFTER).toBuffer());
+        return 0;
+    }
+
+    // Helper method to send a user any messages left for them while they were offline, if their Client takes them.
+    private void deliverOffline(String username, ServerConnection connection) {
+        if (offline != null && connection.takesOffline(username) && offline.hasMessages(username))
+            offline.drain(username, connection);
+    }
+
+    // Helper method to build a reply carrying a Client's session address. Unknown addresses are sent as empty.
+    private static FrameWriter addressFrame(byte opcode, InetSocketAddress address) {
+        FrameWriter writer = new FrameWriter(opcode, Protocol.NO_REPLY, 32);
+        if (address == null)
+            return writer.string("").varint(0);
+        return writer.string(address.getHostString()).varint(address.getPort());
+    }
+
+    // Helper method to take a connection out of a room, dropping the room once nobody is left in it.
+    private void leaveRoom(ServerConnection connection, String roomName) {
+        rooms.computeIfPresent(roomName, (name, room) -> room.leave(connection) ? null : room);
+    }
+
+    // Helper method to tell a waiting client that its CONNECT request was cancelled.
+    private void cancelPending(PendingConnect request) {
+        if (request == null)
+            return;
+        if (request.getConnection() != null)
+            request.getConnection().removePending(request);
+        cancelled.increment();
+        request.reply(new FrameWriter(Protocol.CANCELLED));
+    }
+
+    // Helper method run on the timer thread. Fails every held CONNECT request whose wait time has run out, and drops lapsed leases.
+    private void expirePending() {
+        long now = System.currentTimeMillis();
+        leasesExpired.add(registry.expireLeases(now));
+        for (PendingConnect request : registry.expire(now)) {
+            if (request.getConnection() != null)
+                request.getConnection().removePending(request);
+            timedOut.increment();
+            request.reply(new FrameWriter(Protocol.TIMEOUT));
+        }
+    }
+
+    // Called by a ServerLoop when one of its connections is closed. Drops any users, requests and room memberships still tied to it.
+    void connectionClosed(ServerConnection connection) {
+        admission.release(connection.getHost());
+        for (String username : connection.getUsers())
+            registry.unregister(username, connection);
+        for (PendingConnect request : connection.getPending())
+            registry.remove(request);
+        for (PendingConnect request : connection.getForwarded())
+            forwardQuit(request.getFromUser(), request.getToUser());
+        for (Room room : connection.getRooms())
+            leaveRoom(connection, room.getName());
     }
-}
\ No newline at end of file
+}
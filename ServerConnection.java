@@ -0,0 +1,409 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class ServerConnection {
+    /**
+     * Class:   ServerConnection
+     * Purpose: State for a single TCP connection accepted by the Server. Buffers partially received frames
+     *          and queues outgoing frames until the owning ServerLoop can write them without blocking.
+     *          Whole files of ready-made frames can be queued too; they are copied to the socket by the kernel
+     *          with FileChannel.transferTo(), in order with the frames around them.
+     *          Every frame takes a token from the host's bucket in AdmissionControl before it is decoded; a frame
+     *          over the limit is answered with BUSY and the connection stops being read until the bucket refills.
+     *          If the Server uses TLS, every byte goes through a TlsChannel, and files are encrypted on their way
+     *          out instead of being copied by the kernel.
+     * Usage:   Created by the Server when a connection is admitted. Call send() from any thread to queue a reply.
+     */
+
+    private static final int MAX_QUEUED = 1024;       // Relayed messages a slow client may fall behind by before it starts missing them.
+    private static final int MAX_GATHER = 64;         // Buffers written per gathering write.
+    private static final ByteBuffer FILE_MARKER = ByteBuffer.allocate(0); // Stands in the outbound queue for the next file in files.
+
+    private final SocketChannel channel;
+    private final TlsChannel tls; // Encrypts the connection, or null for plain TCP
+    private final ServerLoop loop;
+    private final AdmissionControl.Host host; // Remote address the connection counts against
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final Queue<FileRegion> files = new ConcurrentLinkedQueue<>(); // Files queued with sendFile(), in the order of their markers
+    private final Set<PendingConnect> pending = ConcurrentHashMap.newKeySet(); // CONNECT requests held open on this connection
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet(); // Rooms this connection has joined
+    private final Set<String> users = ConcurrentHashMap.newKeySet(); // Users registered over this connection
+    private final Set<String> offlineUsers = ConcurrentHashMap.newKeySet(); // Those of them whose Client takes left messages
+    private final Set<PendingConnect> forwarded = ConcurrentHashMap.newKeySet(); // CONNECT requests sent on to another Server, awaiting its reply
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final FrameReader reader = new FrameReader();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private SelectionKey key;
+    private long lastActivity;
+    private long resumeAt;    // While paused, System.nanoTime() at which reading starts again; 0 when not paused
+    private volatile boolean closeAfterFlush;
+    private volatile boolean persistent;
+    private volatile boolean closed;
+    private final LongAdder bytesReceived;
+    private final LongAdder bytesSent;
+    private final LongAdder framesReceived;
+    private final LongAdder framesSent;
+
+    /**
+     * Constructor accepts the accepted SocketChannel, the ServerLoop that will service it, the host it was admitted
+     * for, and the TlsChannel for the channel, or null for plain TCP.
+     */
+    public ServerConnection(SocketChannel channel, ServerLoop loop, AdmissionControl.Host host, TlsChannel tls) {
+        this.channel = channel;
+        this.tls = tls;
+        this.loop = loop;
+        this.host = host;
+        this.lastActivity = System.currentTimeMillis();
+        if (tls != null)
+            tls.setTaskCallback(() -> loop.requestWrite(this)); // flush() carries the handshake on.
+        Metrics metrics = loop.getMetrics();
+        bytesReceived = metrics.counter("server_bytes_received");
+        bytesSent = metrics.counter("server_bytes_sent");
+        framesReceived = metrics.counter("server_frames_received");
+        framesSent = metrics.counter("server_frames_sent");
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    AdmissionControl.Host getHost() {
+        return host;
+    }
+
+    // Returns True while reading is paused because the host went over its frame rate.
+    boolean isPaused() {
+        return resumeAt != 0;
+    }
+
+    long getResumeAt() {
+        return resumeAt;
+    }
+
+    void resume() {
+        resumeAt = 0;
+    }
+
+    // Connections that have sent a valid frame stay open between requests and are exempt from the idle timeout.
+    // Returns True while a TLS handshake is still under way.
+    boolean isHandshaking() {
+        return tls != null && tls.isHandshaking();
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    // Track a CONNECT request whose reply will be pushed on this connection later.
+    void addPending(PendingConnect request) {
+        pending.add(request);
+    }
+
+    void removePending(PendingConnect request) {
+        pending.remove(request);
+    }
+
+    Set<PendingConnect> getPending() {
+        return pending;
+    }
+
+    // Track a CONNECT request forwarded to another Server in the cluster, whose reply will be relayed on this connection.
+    void addForwarded(PendingConnect request) {
+        forwarded.add(request);
+    }
+
+    void removeForwarded(PendingConnect request) {
+        forwarded.remove(request);
+    }
+
+    Set<PendingConnect> getForwarded() {
+        return forwarded;
+    }
+
+    void addUser(String username) {
+        users.add(username);
+    }
+
+    Set<String> getUsers() {
+        return users;
+    }
+
+    // Record whether a user's Client has a listener for messages left with STORE, as said in its last HELLO or RENEW.
+    void setTakesOffline(String username, boolean takes) {
+        if (takes)
+            offlineUsers.add(username);
+        else
+            offlineUsers.remove(username);
+    }
+
+    // Returns True if messages left for the user may be pushed on this connection rather than kept for later.
+    boolean takesOffline(String username) {
+        return offlineUsers.contains(username);
+    }
+
+    void addRoom(Room room) {
+        rooms.add(room);
+    }
+
+    void removeRoom(Room room) {
+        rooms.remove(room);
+    }
+
+    Set<Room> getRooms() {
+        return rooms;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Queue a frame to be sent to the connected client. Safe to call from any thread.
+    public void send(ByteBuffer frame) {
+        queued.incrementAndGet();
+        outbound.add(frame);
+        loop.requestWrite(this);
+    }
+
+    /**
+     * Queue part of a file that holds complete frames, to be sent after everything already queued. Safe to call
+     * from any thread. The callback runs on the loop thread with true once every byte has been written, or false
+     * if the connection closed first. The caller still owns the file channel and closes it in the callback.
+     */
+    public void sendFile(FileChannel file, long position, long count, Consumer<Boolean> done) {
+        if (closed) {
+            done.accept(false);
+            return;
+        }
+        queued.incrementAndGet();
+        synchronized (files) { // Keeps the file and its marker in the same order in both queues.
+            files.add(new FileRegion(file, position, position + count, done));
+            outbound.add(FILE_MARKER);
+        }
+        loop.requestWrite(this);
+        if (closed)
+            failFiles(); // Closed while queueing; make sure the callback still runs.
+    }
+
+    // Build and queue a reply that has no fields.
+    public void reply(byte opcode, int requestId) {
+        send(new FrameWriter(opcode, requestId, 0).toBuffer());
+    }
+
+    /**
+     * Queue an already encoded frame, unless the client has fallen too far behind. Safe to call from any thread.
+     * Returns false if the frame was dropped.
+     */
+    public boolean offer(ByteBuffer frame) {
+        if (closed || queued.get() >= MAX_QUEUED)
+            return false;
+        queued.incrementAndGet();
+        outbound.add(frame);
+        loop.requestWrite(this);
+        return true;
+    }
+
+    // Close the connection once every queued message has been written.
+    public void closeWhenFlushed() {
+        closeAfterFlush = true;
+        loop.requestWrite(this);
+    }
+
+    /**
+     * Read whatever is available on the channel and hand each complete frame to the Server. Frames already read
+     * are handled even if the channel has nothing new, so this is also how a paused connection catches up.
+     * Returns false once the client has closed its side of the connection.
+     */
+    boolean read(Server server) throws IOException {
+        if (tls == null)
+            return readFrames(server, channel.read(readBuffer));
+        boolean handshaking = tls.isHandshaking();
+        boolean open;
+        do { // Take everything the socket read gave, so none of it waits for another.
+            open = readFrames(server, tls.read(readBuffer));
+        } while (open && !isPaused() && tls.hasBufferedInput());
+        if (tls.hasPendingOutput() || (handshaking && !tls.isHandshaking() && !outbound.isEmpty()))
+            loop.requestWrite(this); // The handshake has more to say, or replies held back by it can go now.
+        return open;
+    }
+
+    // Returns True if a TlsChannel holds plaintext that has not been read yet.
+    boolean hasBufferedInput() {
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    // Helper method to hand each complete frame to the Server after reading count bytes. Returns false if the client has closed its side.
+    private boolean readFrames(Server server, int count) throws IOException {
+        if (count < 0)
+            return false;
+        lastActivity = System.currentTimeMillis();
+        bytesReceived.add(count);
+        readBuffer.flip();
+        int frames = 0;
+        AdmissionControl admission = server.getAdmission();
+        while (reader.next(readBuffer)) {
+            persistent = true; // Client has spoken the protocol, it may now stay connected while idle.
+            long wait = admission.takeFrame(host); // Only the header has been decoded so far.
+            if (wait > 0) {
+                if (reader.requestId() != Protocol.NO_REPLY)
+                    send(new FrameWriter(Protocol.BUSY, reader.requestId(), 8).varint(TimeUnit.NANOSECONDS.toMillis(wait) + 1).toBuffer());
+                reader.finish();
+                resumeAt = System.nanoTime() + wait; // Leave the rest in the buffer and the socket until the bucket refills.
+                break;
+            }
+            server.handleFrame(this, reader);
+            reader.finish();
+            frames++;
+        }
+        framesReceived.add(frames);
+        if (reader.needed() > readBuffer.capacity()) { // Grow the buffer for a large frame.
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(reader.needed(), readBuffer.capacity() * 2));
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        else {
+            readBuffer.compact();
+        }
+        return true;
+    }
+
+    /**
+     * Write as much queued output as the channel will accept, several buffers per system call.
+     * Returns true when the queue has been drained.
+     */
+    boolean flush() throws IOException {
+        if (tls != null && !tls.flush())
+            return false;
+        if (tls != null && tls.isHandshaking())
+            return true; // Nothing more can go until the handshake is done; read() asks for a write once it is.
+        while (true) {
+            int count = 0;
+            Iterator<ByteBuffer> buffers = outbound.iterator(); // Only the loop thread removes, so the head is stable.
+            while (count < MAX_GATHER && buffers.hasNext()) {
+                ByteBuffer next = buffers.next();
+                if (next == FILE_MARKER)
+                    break; // Write the buffers ahead of the file first.
+                gather[count++] = next;
+            }
+            if (count == 0) {
+                if (outbound.peek() != FILE_MARKER)
+                    return tls == null || !tls.hasPendingOutput();
+                if (!transferFile())
+                    return false;
+                continue;
+            }
+            bytesSent.add(tls == null ? channel.write(gather, 0, count) : tls.write(gather, 0, count));
+            int written = 0;
+            while (written < count && !gather[written].hasRemaining()) {
+                outbound.poll();
+                written++;
+            }
+            queued.addAndGet(-written);
+            framesSent.add(written);
+            Arrays.fill(gather, 0, count, null);
+            if (written < count)
+                return false; // Socket buffer is full, wait until the channel is writable again.
+        }
+    }
+
+    // Claim the right to schedule a write for this connection. Returns false if one is already scheduled.
+    boolean scheduleWrite() {
+        return writeScheduled.compareAndSet(false, true);
+    }
+
+    void writeStarted() {
+        writeScheduled.set(false);
+    }
+
+    /**
+     * Helper method to copy the file at the head of the queue to the socket. Returns true once all of it is written.
+     * Throws if the file is shorter than promised, which closes the connection and fails every queued file.
+     */
+    private boolean transferFile() throws IOException {
+        FileRegion region = files.peek();
+        while (region.position < region.end) {
+            long written = tls == null ? region.file.transferTo(region.position, region.end - region.position, channel)
+                                       : tls.transferFrom(region.file, region.position, region.end - region.position);
+            if (written < 0 || (written == 0 && region.position >= region.file.size())) // Cut short since it was queued; part of it may be out already.
+                throw new IOException("File ended at " + region.position + " of " + region.end + " bytes");
+            if (written == 0)
+                return false; // Socket buffer is full.
+            region.position += written;
+            bytesSent.add(written);
+        }
+        files.poll();
+        outbound.poll();
+        queued.decrementAndGet();
+        region.done.accept(true);
+        return true;
+    }
+
+    // Helper method to tell the owners of queued files that they will not be sent.
+    private void failFiles() {
+        FileRegion region;
+        while ((region = files.poll()) != null)
+            region.done.accept(false);
+    }
+
+    boolean shouldClose() {
+        return closeAfterFlush && outbound.isEmpty();
+    }
+
+    // Called on the loop thread once the connection is closed.
+    void markClosed() {
+        closed = true;
+        failFiles();
+        if (tls != null)
+            tls.close();
+    }
+
+    /**
+     * Class:   FileRegion
+     * Purpose: Part of a file waiting to be sent with sendFile(), and who to tell once it has been.
+     */
+    private static class FileRegion {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+        private final Consumer<Boolean> done;
+
+        FileRegion(FileChannel file, long position, long end, Consumer<Boolean> done) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+            this.done = done;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerLoop extends Thread {
+    /**
+     * Class:   ServerLoop
+     * Purpose: Event loop that multiplexes many client connections on one Selector, so a slow or idle
+     *          client never holds up requests from any other client.
+     *          Connections whose host is over its frame rate are paused: the loop stops reading them until the time
+     *          AdmissionControl gives, so a flood waits in the flooder's socket rather than taking loop time.
+     * Usage:   Created and started by the Server. Admitted connections are handed over with addConnection().
+     */
+
+    private static final long IDLE_TIMEOUT = 250; // Close new connections that have not sent a full frame within 250 ms.
+    private static final long HANDSHAKE_TIMEOUT = 10000; // Or within 10 s while a TLS handshake, which takes round trips of its own, is under way.
+    private static final long SWEEP_INTERVAL = 100;
+
+    private final Server server;
+    private final Selector selector;
+    private final Queue<ServerConnection> pendingConnections = new ConcurrentLinkedQueue<>();
+    private final Queue<ServerConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<ServerConnection> paused = new PriorityQueue<>(Comparator.comparingLong(ServerConnection::getResumeAt)); // Loop thread only
+    private final AtomicInteger backlog = new AtomicInteger(); // Connections handed over but not yet registered
+    private volatile boolean running = true;
+    private final LongAdder closedCount;
+    private final LongAdder protocolErrors;
+    private final LongAdder ioErrors;
+    private final LongAdder internalErrors;
+    private final LongAdder idleClosed;
+
+    // Constructor accepts the Server whose requests this loop will handle.
+    public ServerLoop(Server server, int id) throws IOException {
+        super("server-loop-" + id);
+        this.server = server;
+        this.selector = Selector.open();
+        Metrics metrics = server.getMetrics();
+        closedCount = metrics.counter("server_connections_closed");
+        protocolErrors = metrics.counter("server_errors{type=\"protocol\"}");
+        ioErrors = metrics.counter("server_errors{type=\"io\"}");
+        internalErrors = metrics.counter("server_errors{type=\"internal\"}");
+        idleClosed = metrics.counter("server_errors{type=\"idle\"}");
+        setDaemon(true);
+    }
+
+    public Metrics getMetrics() {
+        return server.getMetrics();
+    }
+
+    // Hand a newly admitted connection to this loop. Safe to call from any thread.
+    public void addConnection(SocketChannel channel, AdmissionControl.Host host) {
+        backlog.incrementAndGet();
+        TlsContext tls = server.getTls();
+        pendingConnections.add(new ServerConnection(channel, this, host, tls == null ? null : tls.server(channel, getMetrics())));
+        selector.wakeup();
+    }
+
+    // Number of connections handed over that the loop has not got to yet. Grows when the loop is overloaded.
+    public int getBacklog() {
+        return backlog.get();
+    }
+
+    // Ask the loop to write queued output for a connection. Safe to call from any thread.
+    void requestWrite(ServerConnection connection) {
+        if (!connection.scheduleWrite())
+            return; // Already queued, the loop will pick up the new output too.
+        pendingWrites.add(connection);
+        if (Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    // Stop the loop and close every connection it owns.
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // Implementation of Thread.run()
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(selectTimeout());
+                registerPending();
+                resumePaused();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ServerConnection connection = (ServerConnection) key.attachment();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isReadable())
+                        handleRead(connection);
+                    if (key.isValid() && key.isWritable())
+                        handleWrite(connection);
+                }
+                processWrites(); // Flush output queued by other threads, or by the reads just handled.
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            } catch (IOException e) {
+                // Selector failures are not tied to one client, keep serving the rest.
+                ioErrors.increment();
+            }
+        }
+        for (SelectionKey key : selector.keys())
+            close((ServerConnection) key.attachment());
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    // Close a connection and forget about it.
+    void close(ServerConnection connection) {
+        if (connection.isClosed())
+            return;
+        connection.markClosed();
+        closedCount.increment();
+        if (connection.getKey() != null)
+            connection.getKey().cancel();
+        try {
+            connection.getChannel().close();
+        } catch (IOException e) {
+        }
+        server.connectionClosed(connection);
+    }
+
+    // Helper method to register connections handed over by the acceptor.
+    private void registerPending() {
+        ServerConnection connection;
+        while ((connection = pendingConnections.poll()) != null) {
+            backlog.decrementAndGet();
+            SocketChannel channel = connection.getChannel();
+            try {
+                channel.configureBlocking(false);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+    }
+
+    // Helper method to flush connections that queued output from any thread.
+    private void processWrites() {
+        ServerConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            connection.writeStarted();
+            if (!connection.isClosed() && connection.getKey() != null)
+                handleWrite(connection);
+        }
+    }
+
+    private void handleRead(ServerConnection connection) {
+        try {
+            if (!connection.read(server)) { // Client closed the connection.
+                close(connection);
+                return;
+            }
+            if (connection.isPaused()) { // Host went over its frame rate, stop reading until its bucket refills.
+                SelectionKey key = connection.getKey();
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                paused.add(connection);
+            }
+        } catch (Exception e) {
+            countError(e);
+            close(connection);
+        }
+    }
+
+    // Helper method to start reading again from paused connections whose time is up, beginning with what they already sent.
+    private void resumePaused() {
+        long now = System.nanoTime();
+        while (!paused.isEmpty() && paused.peek().getResumeAt() - now <= 0) {
+            ServerConnection connection = paused.poll();
+            connection.resume();
+            if (connection.isClosed())
+                continue;
+            SelectionKey key = connection.getKey();
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            handleRead(connection);
+        }
+    }
+
+    // Helper method to return how long select() may block: until the next sweep, or the first paused connection is due.
+    private long selectTimeout() {
+        if (paused.isEmpty())
+            return SWEEP_INTERVAL;
+        long wait = TimeUnit.NANOSECONDS.toMillis(paused.peek().getResumeAt() - System.nanoTime());
+        return Math.max(1, Math.min(SWEEP_INTERVAL, wait + 1));
+    }
+
+    private void handleWrite(ServerConnection connection) {
+        try {
+            boolean drained = connection.flush();
+            if (drained && connection.shouldClose()) {
+                close(connection);
+                return;
+            }
+            SelectionKey key = connection.getKey();
+            int read = connection.isPaused() ? 0 : SelectionKey.OP_READ;
+            key.interestOps(drained ? read : read | SelectionKey.OP_WRITE);
+            if (read != 0 && connection.hasBufferedInput())
+                handleRead(connection); // A TLS handshake finished by this write left the client's first frames unread.
+        } catch (Exception e) {
+            countError(e);
+            close(connection);
+        }
+    }
+
+    // Helper method to count the failure that is about to close a connection, by kind.
+    private void countError(Exception e) {
+        if (e instanceof ProtocolException)
+            protocolErrors.increment(); // Client sent something that is not a valid frame.
+        else if (e instanceof IOException)
+            ioErrors.increment();
+        else
+            internalErrors.increment(); // A bug on our side.
+    }
+
+    // Helper method to drop connections that have been silent for too long.
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            ServerConnection connection = (ServerConnection) key.attachment();
+            if (connection == null || connection.isPersistent())
+                continue;
+            if (now - connection.getLastActivity() > (connection.isHandshaking() ? HANDSHAKE_TIMEOUT : IDLE_TIMEOUT)) {
+                idleClosed.increment();
+                close(connection);
+            }
+        }
+    }
+}
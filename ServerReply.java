@@ -0,0 +1,41 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+public class ServerReply {
+    /**
+     * Class:   ServerReply
+     * Purpose: The Server's answer to a request sent over a ControlChannel.
+     * Usage:   Returned by ControlChannel.request(). Check getOpcode() against the reply opcodes in Protocol;
+     *          ADDRESS and ACCEPT replies also carry the other Client's host and port.
+     */
+
+    private final byte opcode;
+    private final String host;
+    private final int port;
+
+    // Constructor accepts the reply opcode, and the host and port for replies that carry an address.
+    public ServerReply(byte opcode, String host, int port) {
+        this.opcode = opcode;
+        this.host = host;
+        this.port = port;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    // Returns True if the server accepted the request.
+    public boolean isOk() {
+        return opcode == Protocol.OK;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+public class TlsChannel {
+    /**
+     * Class:   TlsChannel
+     * Purpose: TLS over a non-blocking SocketChannel, for the FramedConnections of a ChatEngine and the
+     *          ServerConnections of a Server. Reads and writes plaintext much like the SocketChannel itself, and
+     *          moves the handshake on as part of each call, so the event loops drive it like any other connection
+     *          and never block on it. Encrypted bytes pass through buffers taken from the TlsContext's pool, and
+     *          each buffer goes back as soon as it is empty, so an idle connection holds none.
+     * Usage:   Created by TlsContext.client() or server() for one channel. Only call it on the thread of the loop
+     *          that drives the channel, and give it setTaskCallback() before the handshake starts. Plaintext
+     *          written before the handshake has finished is not taken until it has. No close_notify is sent: every connection already ends with the protocol's own frames or with
+     *          the socket closing.
+     */
+
+    private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+    private static final int RECORD_HEADER = 5;
+    private static final int MAX_PLAINTEXT = 16 * 1024; // Largest plaintext of one record
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final TlsContext context;
+    private final LongAdder fullHandshakes;
+    private final LongAdder resumedHandshakes;
+    private final LatencyHistogram handshakeTime;
+    private ByteBuffer netIn;   // Encrypted bytes read and not yet decrypted, ready to read more into; null when empty
+    private ByteBuffer netOut;  // Encrypted bytes not yet written, ready to encrypt more into; null when empty
+    private ByteBuffer appIn;   // Decrypted bytes not yet read, ready to be read; null when empty
+    private boolean handshaking = true;
+    private long handshakeStart;  // System.nanoTime() when the handshake began, 0 before
+    private boolean inputClosed;  // The other end has closed the connection
+    private volatile boolean tasksRunning; // Handshake steps are running on the context's task threads
+    private Runnable taskCallback;
+
+    // Constructor accepts the channel, an SSLEngine set up for this end, the context it came from, and the Metrics and side ("client" or "server") to count handshakes under.
+    TlsChannel(SocketChannel channel, SSLEngine engine, TlsContext context, Metrics metrics, String side) {
+        this.channel = channel;
+        this.engine = engine;
+        this.context = context;
+        fullHandshakes = metrics.counter(side + "_tls_handshakes{resumed=\"false\"}");
+        resumedHandshakes = metrics.counter(side + "_tls_handshakes{resumed=\"true\"}");
+        handshakeTime = metrics.histogram(side + "_tls_handshake_ns");
+    }
+
+    // Returns True until the handshake has finished. Plaintext can only be written after that.
+    public boolean isHandshaking() {
+        return handshaking;
+    }
+
+    /**
+     * Set what to call, on a task thread, once the handshake's slow steps have finished running there. It must get
+     * the loop to call handshake() again, such as through flush(), since nothing arriving on the socket will.
+     */
+    public void setTaskCallback(Runnable callback) {
+        this.taskCallback = callback;
+    }
+
+    // Returns True if encrypted bytes are waiting for the socket to have room.
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    /**
+     * Returns True if read() would return plaintext without reading the socket: decrypted bytes not yet read, or
+     * a whole record already read. Callers keep reading until this is false, so nothing is left behind once the
+     * socket has nothing more to report.
+     */
+    public boolean hasBufferedInput() {
+        if (handshaking)
+            return false;
+        if (appIn != null)
+            return true;
+        if (netIn == null || netIn.position() < RECORD_HEADER)
+            return false;
+        int length = (netIn.get(3) & 0xFF) << 8 | netIn.get(4) & 0xFF;
+        return netIn.position() >= RECORD_HEADER + length;
+    }
+
+    /**
+     * Move the handshake on as far as it goes without blocking: write what it has to say, and read and act on
+     * whatever the other end has said. Returns True once it has finished.
+     */
+    public boolean handshake() throws IOException {
+        if (!handshaking)
+            return true;
+        if (tasksRunning)
+            return false; // The callback says when to go on.
+        if (handshakeStart == 0) {
+            handshakeStart = System.nanoTime();
+            engine.beginHandshake();
+        }
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    if (!wrap(NOTHING, 0, 1, true))
+                        return false; // Socket is full.
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!writeOut())
+                        return false;
+                    if (!unwrapHandshake())
+                        return false; // Waiting for the other end.
+                    break;
+                case NEED_TASK:
+                    startTasks();
+                    return false;
+                default:
+                    finished();
+                    writeOut(); // Anything left goes once the socket has room; see hasPendingOutput().
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Read plaintext into the buffer, like SocketChannel.read(): returns the bytes read, which may be 0, or -1
+     * once the other end has closed the connection and everything it sent has been read. Only reads the socket
+     * if nothing is buffered, and then only once, so it never blocks.
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        int count = take(buffer);
+        if (!buffer.hasRemaining())
+            return count;
+        if (!inputClosed && !hasBufferedInput()) {
+            if (netIn == null)
+                netIn = context.takeNetBuffer();
+            if (channel.read(netIn) < 0)
+                inputClosed = true;
+        }
+        if (handshake()) {
+            while (buffer.hasRemaining()) {
+                boolean direct = buffer.remaining() >= context.getAppSize(); // Room for any record, so skip the copy.
+                ByteBuffer target = direct ? buffer : appBuffer();
+                SSLEngineResult result = unwrap(target);
+                if (direct) {
+                    if (result != null)
+                        count += result.bytesProduced();
+                }
+                else {
+                    target.flip();
+                    count += take(buffer);
+                }
+                if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    break;
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                    runTasks();
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                    wrap(NOTHING, 0, 1, true); // Answer a message sent after the handshake, such as a key update.
+            }
+        }
+        release();
+        return count == 0 && inputClosed && !hasBufferedInput() ? -1 : count;
+    }
+
+    /**
+     * Encrypt and write as much of the given buffers as the socket takes, like a gathering SocketChannel.write().
+     * Returns the plaintext bytes taken, which is 0 until the handshake has finished. Bytes taken may still be
+     * waiting in this channel; see hasPendingOutput().
+     */
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        if (!handshake() || !writeOut())
+            return 0;
+        long before = remaining(sources, offset, length);
+        if (wrap(sources, offset, length, false))
+            writeOut();
+        return before - remaining(sources, offset, length);
+    }
+
+    /**
+     * Encrypt and write up to count bytes of a file, starting at position. Takes the place of FileChannel.transferTo(),
+     * which would bypass the encryption. Returns the file bytes taken, 0 if the socket has no room, or -1 at the
+     * end of the file.
+     */
+    public long transferFrom(FileChannel file, long position, long count) throws IOException {
+        if (!handshake() || !writeOut())
+            return 0;
+        ByteBuffer chunk = context.takeAppBuffer();
+        try {
+            chunk.limit((int) Math.min(count, MAX_PLAINTEXT));
+            int read = file.read(chunk, position);
+            if (read <= 0)
+                return read;
+            chunk.flip();
+            if (wrap(new ByteBuffer[] { chunk }, 0, 1, false))
+                writeOut();
+            return chunk.position(); // What did not fit is read from the file again next time.
+        } finally {
+            context.give(chunk);
+        }
+    }
+
+    /**
+     * Write out encrypted bytes waiting for the socket, and move an unfinished handshake on. Returns True if
+     * nothing is left waiting. Call when the channel becomes writable.
+     */
+    public boolean flush() throws IOException {
+        if (handshaking && !handshake())
+            return netOut == null;
+        return writeOut();
+    }
+
+    // Helper method to write as much of netOut as the socket takes. Returns True if all of it went.
+    private boolean writeOut() throws IOException {
+        if (netOut == null)
+            return true;
+        netOut.flip();
+        channel.write(netOut);
+        netOut.compact();
+        if (netOut.position() > 0)
+            return false;
+        context.give(netOut);
+        netOut = null;
+        return true;
+    }
+
+    // Give the buffers back to the pool. Call on the loop thread once the channel is closed.
+    public void close() {
+        for (ByteBuffer buffer : new ByteBuffer[] { netIn, netOut, appIn }) {
+            if (buffer != null)
+                context.give(buffer);
+        }
+        netIn = null;
+        netOut = null;
+        appIn = null;
+    }
+
+    /**
+     * Helper method to encrypt from the sources into netOut until they are used up, or just once for a handshake
+     * message, writing netOut out whenever it fills. Returns false if the socket filled up first.
+     */
+    private boolean wrap(ByteBuffer[] sources, int offset, int length, boolean once) throws IOException {
+        while (true) {
+            if (netOut == null)
+                netOut = context.takeNetBuffer();
+            SSLEngineResult result = engine.wrap(sources, offset, length, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new SSLException("TLS connection closed");
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (!writeOut())
+                    return false;
+                continue;
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK && !handshaking)
+                runTasks(); // During the handshake, handshake() hands them to the task threads.
+            if (once || result.bytesConsumed() == 0 || remaining(sources, offset, length) == 0)
+                return true;
+        }
+    }
+
+    // Helper method to decrypt one handshake record. Returns false if no whole record has arrived yet.
+    private boolean unwrapHandshake() throws IOException {
+        ByteBuffer target = appBuffer();
+        SSLEngineResult result = unwrap(target);
+        target.flip(); // Nothing is expected, but keep whatever plaintext came with the record.
+        if (!target.hasRemaining()) {
+            context.give(target);
+            appIn = null;
+        }
+        if (result == null && inputClosed)
+            throw new SSLException("Connection closed during the TLS handshake");
+        return result != null;
+    }
+
+    // Helper method to decrypt one record from netIn into the target. Returns null if no whole record has arrived yet.
+    private SSLEngineResult unwrap(ByteBuffer target) throws IOException {
+        if (netIn == null)
+            return null;
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, target);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                return null;
+            case BUFFER_OVERFLOW:
+                throw new SSLException("TLS record larger than " + target.remaining() + " bytes");
+            case CLOSED:
+                inputClosed = true; // The other end sent close_notify.
+                return result;
+            default:
+                return result;
+        }
+    }
+
+    // Helper method to return appIn ready to decrypt a record into, taking it from the pool if needed. Only called when it holds nothing unread.
+    private ByteBuffer appBuffer() {
+        if (appIn == null)
+            appIn = context.takeAppBuffer();
+        else
+            appIn.clear();
+        return appIn;
+    }
+
+    // Helper method to copy as much decrypted plaintext as fits into the buffer. Returns the bytes copied.
+    private int take(ByteBuffer buffer) {
+        if (appIn == null)
+            return 0;
+        int count = Math.min(appIn.remaining(), buffer.remaining());
+        buffer.put(buffer.position(), appIn, appIn.position(), count);
+        buffer.position(buffer.position() + count);
+        appIn.position(appIn.position() + count);
+        if (!appIn.hasRemaining()) {
+            context.give(appIn);
+            appIn = null;
+        }
+        return count;
+    }
+
+    // Helper method to give back the buffers of encrypted bytes that are empty.
+    private void release() {
+        if (netIn != null && netIn.position() == 0) {
+            context.give(netIn);
+            netIn = null;
+        }
+    }
+
+    /**
+     * Helper method to hand the engine's slow handshake steps, such as checking certificates and signing, to the
+     * context's task threads, so the loop goes on serving its other connections meanwhile.
+     */
+    private void startTasks() {
+        tasksRunning = true;
+        context.execute(() -> {
+            try {
+                runTasks(); // A step that fails leaves its error with the engine, to be thrown by the next wrap or unwrap.
+            } finally {
+                tasksRunning = false;
+                taskCallback.run();
+            }
+        });
+    }
+
+    // Helper method to run the engine's slow steps on this thread. Used after the handshake, where they are rare.
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    // Helper method to count a finished handshake, and whether it resumed an earlier session.
+    private void finished() {
+        handshaking = false;
+        long elapsed = System.nanoTime() - handshakeStart;
+        handshakeTime.record(elapsed);
+        if (engine.getSession().getCreationTime() < System.currentTimeMillis() - elapsed / 1000000 - 1)
+            resumedHandshakes.increment(); // A resumed session keeps the time it was first made.
+        else
+            fullHandshakes.increment();
+    }
+
+    private static long remaining(ByteBuffer[] buffers, int offset, int length) {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++)
+            remaining += buffers[i].remaining();
+        return remaining;
+    }
+}
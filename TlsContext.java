@@ -0,0 +1,190 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+public class TlsContext {
+    /**
+     * Class:   TlsContext
+     * Purpose: What every TLS connection of a Server or ChatEngine shares: the keys and trusted certificates, the
+     *          cache of sessions a later connection can resume, and a pool of the buffers encrypted bytes pass
+     *          through. Only TLS 1.3 is spoken. A Client connection to a host and port it has connected to before
+     *          resumes the session with the ticket it was given, which skips the certificate exchange and the
+     *          public key operations that make a full handshake expensive. Those operations, and checking
+     *          certificates, run on task threads of their own rather than on the event loops. Connections to the
+     *          Server check that its certificate names the host that was asked for; session connections between
+     *          Clients go to an address the Server handed out, so they only check that the certificate is trusted.
+     * Usage:   Build one with load() from a key store holding this end's key and the certificates it trusts, or
+     *          with getDefault() from the standard javax.net.ssl system properties, and give it to
+     *          Server.setTls() or the ChatEngine constructor. One TlsContext can serve any number of both.
+     */
+
+    public static final int DEFAULT_SESSION_CACHE = 10000;            // Sessions kept for resumption, on each side
+    public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;  // Seconds a session can be resumed for
+    private static final String[] PROTOCOLS = { "TLSv1.3" };
+    private static final int NET_RECORDS = 4;   // Records one buffer of encrypted bytes holds, so a system call moves several
+    private static final int POOL_LIMIT = 256;  // Idle buffers kept of each kind
+
+    private final SSLContext context;
+    private final int netSize;  // Capacity of a buffer of encrypted bytes
+    private final int appSize;  // Capacity of a buffer of plaintext: the most one record decrypts to
+    private final ArrayDeque<ByteBuffer> netBuffers = new ArrayDeque<>(); // Guarded by itself
+    private final ArrayDeque<ByteBuffer> appBuffers = new ArrayDeque<>(); // Guarded by itself
+    private final ExecutorService tasks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+        Thread thread = new Thread(runnable, "tls-tasks");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean resumption = true;
+
+    // Constructor accepts an initialized SSLContext.
+    public TlsContext(SSLContext context) {
+        this.context = context;
+        SSLSession session = context.createSSLEngine().getSession();
+        netSize = session.getPacketBufferSize() * NET_RECORDS;
+        appSize = session.getApplicationBufferSize();
+        setSessionCache(DEFAULT_SESSION_CACHE, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * Build a TlsContext from a PKCS12 key store that holds both this end's key and certificate and the
+     * certificates it trusts, such as one made by keytool with a self-signed certificate.
+     */
+    public static TlsContext load(Path keyStore, char[] password) throws IOException {
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            store.load(in, password);
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, password);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(store);
+            SSLContext context = SSLContext.getInstance("TLSv1.3");
+            context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+            return new TlsContext(context);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use key store " + keyStore, e);
+        }
+    }
+
+    /**
+     * Build a TlsContext from the standard system properties: javax.net.ssl.keyStore and keyStorePassword for
+     * this end's key, and javax.net.ssl.trustStore and trustStorePassword for the certificates it trusts.
+     */
+    public static TlsContext getDefault() throws IOException {
+        try {
+            return new TlsContext(SSLContext.getDefault());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS", e);
+        }
+    }
+
+    // Set how many sessions each side keeps for resumption, and for how many seconds.
+    public void setSessionCache(int size, int timeoutSeconds) {
+        for (SSLSessionContext sessions : new SSLSessionContext[] { context.getClientSessionContext(), context.getServerSessionContext() }) {
+            sessions.setSessionCacheSize(size);
+            sessions.setSessionTimeout(timeoutSeconds);
+        }
+    }
+
+    // Turn session resumption on or off for new connections made from here. With it off every one makes a full handshake.
+    public void setResumption(boolean resumption) {
+        this.resumption = resumption;
+    }
+
+    /**
+     * Start TLS as the client on a channel that is connected or connecting to the given host and port, counting
+     * handshakes in the given Metrics. If verifyHost is set, the certificate must name the host.
+     */
+    public TlsChannel client(SocketChannel channel, String host, int port, boolean verifyHost, Metrics metrics) {
+        if (!resumption)
+            forgetSessions();
+        SSLEngine engine = context.createSSLEngine(host, port); // The host and port find a session to resume.
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(PROTOCOLS);
+        if (verifyHost)
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsChannel(channel, engine, this, metrics, "client");
+    }
+
+    // Start TLS as the server on an accepted channel, counting handshakes in the given Metrics.
+    public TlsChannel server(SocketChannel channel, Metrics metrics) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(PROTOCOLS);
+        engine.setSSLParameters(parameters);
+        return new TlsChannel(channel, engine, this, metrics, "server");
+    }
+
+    // Take a buffer for encrypted bytes from the pool, cleared, allocating one if the pool is empty.
+    ByteBuffer takeNetBuffer() {
+        synchronized (netBuffers) {
+            ByteBuffer buffer = netBuffers.poll();
+            if (buffer != null)
+                return buffer;
+        }
+        return ByteBuffer.allocateDirect(netSize); // Read and written by the socket without a copy.
+    }
+
+    // Take a buffer for plaintext from the pool, cleared, allocating one if the pool is empty.
+    ByteBuffer takeAppBuffer() {
+        synchronized (appBuffers) {
+            ByteBuffer buffer = appBuffers.poll();
+            if (buffer != null)
+                return buffer;
+        }
+        return ByteBuffer.allocate(appSize);
+    }
+
+    // Return a buffer taken from the pool once nothing in it is needed.
+    void give(ByteBuffer buffer) {
+        ArrayDeque<ByteBuffer> pool = buffer.isDirect() ? netBuffers : appBuffers;
+        buffer.clear();
+        synchronized (pool) {
+            if (pool.size() < POOL_LIMIT)
+                pool.push(buffer); // Last in, first out, so the buffers in use stay warm in the cache.
+        }
+    }
+
+    // Run a handshake's slow steps on the task threads.
+    void execute(Runnable task) {
+        tasks.execute(task);
+    }
+
+    // Return the most plaintext one record decrypts to.
+    int getAppSize() {
+        return appSize;
+    }
+
+    // Helper method to drop every session cached for resumption by the client side.
+    private void forgetSessions() {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        for (byte[] id : Collections.list(sessions.getIds())) {
+            SSLSession session = sessions.getSession(id);
+            if (session != null)
+                session.invalidate();
+        }
+    }
+}
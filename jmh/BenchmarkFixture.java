@@ -0,0 +1,141 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+public class BenchmarkFixture implements Function<String, Callable<Object>>, AutoCloseable {
+    /**
+     * Class:   BenchmarkFixture
+     * Purpose: A Server and ChatEngine in this process on a free loopback port, and the single operations the JMH
+     *          benchmarks time against them: one HELLO/CONNECT/QUIT round, one pairing, one message sent.
+     *          JMH will not generate code for benchmarks in the default package, and a class in a named package
+     *          cannot name the chat classes, so the benchmarks build this by name and only use it through the
+     *          Function and AutoCloseable interfaces.
+     * Usage:   apply() with "handshake", "pairing" or "throughput:<message size>" returns the operation; call it once
+     *          per benchmark invocation. close() stops everything.
+     */
+
+    private static final long WINDOW_BYTES = 1 << 20; // Bytes a sender may have in flight before waiting for the receiver.
+
+    private final Server server;
+    private final ChatEngine engine;
+    private final List<AutoCloseable> resources = new ArrayList<>();
+    private int userIds;
+
+    // Constructor starts the Server, with admission control off since every user is on this host, and the engine.
+    public BenchmarkFixture() throws IOException {
+        server = new Server(Runtime.getRuntime().availableProcessors());
+        server.getAdmission().setEnabled(false);
+        server.start(0);
+        Thread acceptThread = new Thread(() -> {
+            try {
+                server.acceptLoop();
+            } catch (IOException e) {
+            }
+        }, "benchmark-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        engine = new ChatEngine(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Return the named operation, setting up the connections it uses.
+    public Callable<Object> apply(String name) {
+        try {
+            if (name.equals("handshake"))
+                return handshake();
+            if (name.equals("pairing"))
+                return pairing();
+            if (name.startsWith("throughput:"))
+                return throughput(Integer.parseInt(name.substring("throughput:".length())));
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot set up " + name, e);
+        }
+        throw new IllegalArgumentException("No benchmark operation " + name);
+    }
+
+    // Close every connection opened for an operation, then the engine and the Server.
+    public void close() throws Exception {
+        for (AutoCloseable resource : resources)
+            resource.close();
+        engine.close();
+        server.stop();
+    }
+
+    // One HELLO, CONNECT and QUIT for the same pair, pipelined on one control connection. Returns the last reply.
+    private Callable<Object> handshake() throws IOException {
+        ControlChannel channel = new ControlChannel("localhost", server.getPort(), engine.nextLoop());
+        resources.add(channel::close);
+        String user = "handshake" + (userIds++);
+        return () -> {
+            channel.request(new FrameWriter(Protocol.HELLO).string(user).string("127.0.0.1").varint(1));
+            channel.request(new FrameWriter(Protocol.CONNECT).string(user).string("nobody").varint(60000));
+            return channel.request(new FrameWriter(Protocol.QUIT).string(user).string("nobody")).get(30, TimeUnit.SECONDS);
+        };
+    }
+
+    // Two users ask for each other with openSession() and close the session once both sides have it.
+    private Callable<Object> pairing() throws IOException {
+        Client a = newClient();
+        Client b = newClient();
+        return () -> {
+            CompletableFuture<ChatSession> sessionA = a.openSession(b.getFromUser());
+            CompletableFuture<ChatSession> sessionB = b.openSession(a.getFromUser());
+            ChatSession first = sessionA.get(30, TimeUnit.SECONDS);
+            ChatSession second = sessionB.get(30, TimeUnit.SECONDS);
+            first.close();
+            second.close();
+            return second;
+        };
+    }
+
+    /**
+     * One message of the given size sent with sendAsync() over a session opened here, keeping at most WINDOW_BYTES
+     * unread, so the rate measured is the rate the receiver takes them at.
+     */
+    private Callable<Object> throughput(int size) throws Exception {
+        Client a = newClient();
+        Client b = newClient();
+        CompletableFuture<ChatSession> sessionA = a.openSession(b.getFromUser());
+        CompletableFuture<ChatSession> sessionB = b.openSession(a.getFromUser());
+        ChatSession sender = sessionA.get(30, TimeUnit.SECONDS);
+        ChatSession receiver = sessionB.get(30, TimeUnit.SECONDS);
+        int window = (int) Math.min(4096, Math.max(16, WINDOW_BYTES / size));
+        Semaphore credits = new Semaphore(window);
+        receiver.setMessageListener(new MessageListener() {
+            public void onMessage(String fromUser, String message) {
+                credits.release();
+            }
+
+            public void onClose(String otherUser) {
+                credits.release(window);
+            }
+        });
+        resources.add(() -> {
+            credits.tryAcquire(window, 30, TimeUnit.SECONDS); // Let the receiver catch up before closing.
+            sender.close();
+        });
+        String message = "x".repeat(size);
+        return () -> {
+            credits.acquire();
+            return sender.sendAsync(message);
+        };
+    }
+
+    // Helper method to create a Client with a fresh username on the engine, closed with the fixture.
+    private Client newClient() throws IOException {
+        Client client = new Client("jmh" + (userIds++), "localhost", server.getPort(), engine);
+        if (!client.isConnected())
+            throw new IOException("Benchmark client could not reach the server");
+        resources.add(client::disconnect);
+        return client;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatBenchmarks {
+    /**
+     * Class:   ChatBenchmarks
+     * Purpose: JMH versions of the handshake, pairing and throughput runs of the loopback Benchmark, each against
+     *          a Server and ChatEngine in the forked JVM. Results returned from each operation go to JMH's
+     *          blackhole, so none of the work is optimized away.
+     *              handshake   HELLO/CONNECT/QUIT rounds per second on one control connection
+     *              pairing     sessions per second opened and closed by one pair of users
+     *              throughput  messages per second over one session, per message size
+     * Usage:   $ mvn -P jmh package && java -jar target/benchmarks.jar ChatBenchmarks
+     */
+
+    // Builds the BenchmarkFixture by name, since it lives in the default package with the classes it drives.
+    @SuppressWarnings("unchecked")
+    static Function<String, Callable<Object>> newFixture() throws Exception {
+        return (Function<String, Callable<Object>>) Class.forName("BenchmarkFixture").getConstructor().newInstance();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Handshake {
+        Function<String, Callable<Object>> fixture;
+        Callable<Object> round;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            fixture = newFixture();
+            round = fixture.apply("handshake");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            ((AutoCloseable) fixture).close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pairing {
+        Function<String, Callable<Object>> fixture;
+        Callable<Object> pair;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            fixture = newFixture();
+            pair = fixture.apply("pairing");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            ((AutoCloseable) fixture).close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Throughput {
+        @Param({ "16", "256", "4096", "65536" })
+        int size;
+        Function<String, Callable<Object>> fixture;
+        Callable<Object> send;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            fixture = newFixture();
+            send = fixture.apply("throughput:" + size);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            ((AutoCloseable) fixture).close();
+        }
+    }
+
+    @Benchmark
+    public Object handshake(Handshake state) throws Exception {
+        return state.round.call();
+    }
+
+    @Benchmark
+    public Object pairing(Pairing state) throws Exception {
+        return state.pair.call();
+    }
+
+    @Benchmark
+    public Object throughput(Throughput state) throws Exception {
+        return state.send.call();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+
+public class CompressionTest {
+    /**
+     * Class:   CompressionTest
+     * Purpose: Compressed message frames must decode to the message they were made from, and frames with a length
+     *          no message can have, or that differs from what they inflate to, must be refused as a ProtocolException.
+     */
+
+    private static final byte[] DICTIONARY = "hello world status ok".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void badLengths() throws IOException {
+        ClientEventLoop loop = new ClientEventLoop("compression-test");
+        try (SocketChannel channel = SocketChannel.open()) {
+            Compression compression = new Compression(new FramedConnection(channel, loop, null));
+            for (byte opcode : new byte[] { Protocol.MESSAGE_DEFLATE, Protocol.MESSAGE_DICT }) {
+                for (long length : new long[] { -1, -2, Long.MIN_VALUE, Protocol.MAX_FRAME + 1L }) {
+                    FrameReader reader = new FrameReader();
+                    assertTrue(reader.next(new FrameWriter(opcode).varint(length).bytes(ByteBuffer.allocate(4)).toBuffer()));
+                    assertThrows(ProtocolException.class, () -> compression.decode(reader));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        ClientEventLoop loop = new ClientEventLoop("compression-test");
+        try (SocketChannel channel = SocketChannel.open()) {
+            Compression compression = new Compression(new FramedConnection(channel, loop, null));
+            compression.setMode(Compression.DICTIONARY, 0, DICTIONARY);
+            byte[] message = new byte[100000]; // Far more than the first buffer set aside for it.
+            for (int i = 0; i < message.length; i++)
+                message[i] = (byte) ('a' + i * 7 % 26);
+            Deflater stream = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            for (int round = 0; round < 2; round++) // The second message is coded against the first.
+                assertEquals(new String(message, StandardCharsets.UTF_8), compression.decode(frame(Protocol.MESSAGE_DEFLATE, message.length, stream, message)));
+            assertEquals(new String(message, StandardCharsets.UTF_8), compression.decode(frame(Protocol.MESSAGE_DICT, message.length, dictionaryDeflater(), message)));
+        }
+    }
+
+    @Test
+    public void lengthMismatch() throws IOException {
+        ClientEventLoop loop = new ClientEventLoop("compression-test");
+        try (SocketChannel channel = SocketChannel.open()) {
+            Compression compression = new Compression(new FramedConnection(channel, loop, null));
+            compression.setMode(Compression.DICTIONARY, 0, DICTIONARY);
+            byte[] message = "hello world, hello world".getBytes(StandardCharsets.UTF_8);
+            for (long length : new long[] { Protocol.MAX_MESSAGE, message.length - 1, message.length + 1 }) {
+                FrameReader claimed = frame(Protocol.MESSAGE_DICT, length, dictionaryDeflater(), message);
+                assertThrows(ProtocolException.class, () -> compression.decode(claimed));
+            }
+            FrameReader tooLong = frame(Protocol.MESSAGE_DEFLATE, message.length - 1, new Deflater(Deflater.DEFAULT_COMPRESSION, true), message);
+            assertThrows(ProtocolException.class, () -> compression.decode(tooLong));
+        }
+    }
+
+    // Helper method to build a compressed message frame claiming the given length, ready to decode.
+    private static FrameReader frame(byte opcode, long length, Deflater deflater, byte[] message) throws ProtocolException {
+        deflater.setInput(message);
+        if (opcode == Protocol.MESSAGE_DICT)
+            deflater.finish();
+        byte[] output = new byte[message.length + 64];
+        int count = deflater.deflate(output, 0, output.length, opcode == Protocol.MESSAGE_DICT ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        FrameReader reader = new FrameReader();
+        assertTrue(reader.next(new FrameWriter(opcode).varint(length).bytes(ByteBuffer.wrap(Arrays.copyOf(output, count))).toBuffer()));
+        return reader;
+    }
+
+    // Helper method to make a deflater primed with the test dictionary, as the sending end's would be.
+    private static Deflater dictionaryDeflater() {
+        Deflater deflater = new Deflater();
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+}
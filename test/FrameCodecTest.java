@@ -0,0 +1,150 @@
+/**
+ * Pranay Yadav
+ * CS 4390 Spring 2022 UT Dallas
+ * Socket Programming Project
+ */
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class FrameCodecTest {
+    /**
+     * Class:   FrameCodecTest
+     * Purpose: Round trips through FrameWriter and FrameReader, and frames a peer could send that FrameReader
+     *          must turn away with a ProtocolException rather than any other exception.
+     */
+
+    @Test
+    public void fieldsRoundTrip() throws ProtocolException {
+        long[] numbers = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE };
+        FrameWriter writer = new FrameWriter(Protocol.HELLO, 42);
+        for (long number : numbers)
+            writer.varint(number);
+        writer.string("").string("plain").string("héllo 世界 😀");
+        writer.bytes(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        FrameReader reader = new FrameReader();
+        ByteBuffer buffer = writer.toBuffer();
+        assertTrue(reader.next(buffer));
+        assertEquals(Protocol.HELLO, reader.opcode());
+        assertEquals(42, reader.requestId());
+        for (long number : numbers)
+            assertEquals(number, reader.varint());
+        assertEquals("", reader.string());
+        assertEquals("plain", reader.string());
+        assertEquals("héllo 世界 😀", reader.string());
+        ByteBuffer bytes = reader.bytes();
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, copy);
+        assertFalse(reader.hasField());
+        reader.finish();
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void copyFieldAndSkip() throws ProtocolException {
+        FrameReader reader = new FrameReader();
+        assertTrue(reader.next(new FrameWriter(Protocol.SAY).string("skipped").string("copied").toBuffer()));
+        reader.skip();
+        FrameWriter out = new FrameWriter(Protocol.ROOM);
+        reader.copyField(out);
+        assertTrue(reader.next(out.toBuffer()));
+        assertEquals("copied", reader.string());
+    }
+
+    @Test
+    public void framesSplitAcrossReads() throws ProtocolException {
+        ByteBuffer first = new FrameWriter(Protocol.HELLO).string("a".repeat(300)).toBuffer();
+        ByteBuffer second = new FrameWriter(Protocol.QUIT).string("b").toBuffer();
+        int firstSize = first.remaining();
+        ByteBuffer stream = ByteBuffer.allocate(firstSize + second.remaining());
+        stream.put(first).put(second).flip();
+        FrameReader reader = new FrameReader();
+        ByteBuffer partial = stream.duplicate();
+        partial.limit(1);
+        assertFalse(reader.next(partial));
+        assertEquals(2, reader.needed()); // Still inside the two byte length prefix.
+        partial.limit(10);
+        assertFalse(reader.next(partial));
+        assertEquals(firstSize, reader.needed());
+        assertEquals(0, partial.position());
+        assertTrue(reader.next(stream));
+        assertEquals("a".repeat(300), reader.string());
+        reader.finish();
+        assertTrue(reader.next(stream));
+        assertEquals(Protocol.QUIT, reader.opcode());
+        assertEquals("b", reader.string());
+    }
+
+    @Test
+    public void negativeFieldLength() throws ProtocolException {
+        byte[] length = { -1, -1, -1, -1, -1, -1, -1, -1, -1, 1 }; // 2^64 - 1 as a varint, which is -1 as a long.
+        for (int field = 0; field < 4; field++) {
+            FrameReader reader = new FrameReader();
+            assertTrue(reader.next(frame(Protocol.HELLO, length)));
+            int which = field;
+            assertThrows(ProtocolException.class, () -> {
+                if (which == 0)
+                    reader.string();
+                else if (which == 1)
+                    reader.bytes();
+                else if (which == 2)
+                    reader.skip();
+                else
+                    reader.copyField(new FrameWriter(Protocol.ROOM));
+            });
+        }
+    }
+
+    @Test
+    public void malformedVarints() throws ProtocolException {
+        byte[][] bodies = {
+            { -1, -1, -1, -1, -1, -1, -1, -1, -1, 2 },     // Tenth byte past the top bit.
+            { -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1 }, // Eleven bytes.
+            { -128 },                                      // Continues past the end of the frame.
+        };
+        for (byte[] body : bodies) {
+            FrameReader reader = new FrameReader();
+            assertTrue(reader.next(frame(Protocol.HELLO, body)));
+            assertThrows(ProtocolException.class, reader::varint);
+        }
+        FrameReader reader = new FrameReader();
+        assertTrue(reader.next(frame(Protocol.HELLO, new byte[] { -1, -1, -1, -1, -1, -1, -1, -1, -1, 1 })));
+        assertEquals(-1L, reader.varint()); // Only a length has to be non-negative.
+    }
+
+    @Test
+    public void fieldPastEndOfFrame() throws ProtocolException {
+        FrameReader reader = new FrameReader();
+        assertTrue(reader.next(frame(Protocol.HELLO, new byte[] { 5, 'a', 'b' })));
+        assertThrows(ProtocolException.class, reader::string);
+    }
+
+    @Test
+    public void badFrames() {
+        FrameReader reader = new FrameReader();
+        assertThrows(ProtocolException.class, () -> reader.next(ByteBuffer.wrap(new byte[] { 2, Protocol.VERSION, 1 })));
+        assertThrows(ProtocolException.class, () -> reader.next(ByteBuffer.wrap(new byte[] { -128, -128, -128, -128, -128, 1 })));
+        assertThrows(ProtocolException.class, () -> reader.next(ByteBuffer.wrap(new byte[] { -1, -1, -1, -1, 7 }))); // Negative.
+        ByteBuffer tooLarge = ByteBuffer.allocate(5);
+        Protocol.putVarint(tooLarge, Protocol.MAX_FRAME + 1);
+        assertThrows(ProtocolException.class, () -> reader.next(tooLarge.flip()));
+        ByteBuffer wrongVersion = frame(Protocol.HELLO, new byte[0]);
+        wrongVersion.put(1, (byte) (Protocol.VERSION + 1));
+        assertThrows(ProtocolException.class, () -> reader.next(wrongVersion));
+    }
+
+    // Helper method to build a frame by hand around the given field bytes, which need not be valid.
+    private static ByteBuffer frame(byte opcode, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + body.length);
+        Protocol.putVarint(buffer, 6 + body.length);
+        buffer.put(Protocol.VERSION).put(opcode).putInt(Protocol.NO_REPLY).put(body);
+        return buffer.flip();
+    }
+}